@@ -0,0 +1,854 @@
+/*
+Copyright (c) Microsoft Open Technologies, Inc.
+All Rights Reserved
+Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except in compliance with the
+License. You may obtain a copy of the License at http://www.apache.org/licenses/LICENSE-2.0
+
+THIS CODE IS PROVIDED ON AN *AS IS* BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, EITHER EXPRESS OR IMPLIED,
+INCLUDING WITHOUT LIMITATION ANY IMPLIED WARRANTIES OR CONDITIONS OF TITLE, FITNESS FOR A PARTICULAR PURPOSE,
+MERCHANTABLITY OR NON-INFRINGEMENT.
+
+See the Apache 2 License for the specific language governing permissions and limitations under the License.
+*/
+package com.msopentech.thali.java.toronionproxy;
+
+import com.msopentech.thali.toronionproxy.DnsResolver;
+import com.msopentech.thali.toronionproxy.OnionProxyManager;
+import com.msopentech.thali.toronionproxy.Utilities;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.ProtocolException;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.SocketTimeoutException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+
+/**
+ * Local HTTP forward proxy in front of tor's SOCKS port, for clients that only speak HTTP proxy. CONNECT requests
+ * become tunnels through tor; plain HTTP requests with an absolute URI are forwarded on connections to the origin
+ * that are pooled and reused across client connections, so repeated requests to the same onion service skip the
+ * SOCKS handshake and rendezvous.
+ *
+ <pre>
+ HttpProxyServer proxy = new HttpProxyServer(8118, "127.0.0.1", onionProxyManager.getIPv4LocalHostSocksPort());
+ proxy.start();
+ </pre>
+ */
+public class HttpProxyServer {
+    private static final Logger LOG = LoggerFactory.getLogger(HttpProxyServer.class);
+
+    private static final int BUFFER_SIZE = 16 * 1024;
+    private static final int MAX_LINE = 8192;
+    private static final int MAX_HEADERS = 100;
+    private static final int CLIENT_IDLE_MILLIS = 60000;
+    private static final int TUNNEL_IDLE_MILLIS = 300000;
+    private static final long POOL_IDLE_MILLIS = 30000;
+    private static final int MAX_IDLE_PER_ORIGIN = 4;
+    private static final int MAX_ORIGIN_STATS = 256;
+    private static final Set<String> HOP_BY_HOP = new HashSet<>(Arrays.asList(
+            "connection", "proxy-connection", "keep-alive", "proxy-authorization", "proxy-authenticate", "te",
+            "trailer", "upgrade"));
+
+    private final InetSocketAddress bindAddress;
+    private final String socksHost;
+    private final int socksPort;
+    // Most recently used origins, guarded by itself
+    private final Map<String, OriginStats> stats = new LinkedHashMap<String, OriginStats>(16, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, OriginStats> eldest) {
+            return size() > MAX_ORIGIN_STATS;
+        }
+    };
+    // Idle connections by origin, most recently used first. Guarded by itself.
+    private final Map<String, Deque<Upstream>> idle = new HashMap<>();
+    private final Set<Socket> clients = Collections.newSetFromMap(new ConcurrentHashMap<Socket, Boolean>());
+
+    private volatile DnsResolver dnsResolver;
+    private volatile boolean running;
+    private ServerSocket serverSocket;
+    private ExecutorService executor;
+
+    /**
+     * Listens on localhost
+     *
+     * @param port      port to listen on, or 0 for any free port
+     * @param socksHost host of tor's SOCKS listener
+     * @param socksPort port of tor's SOCKS listener
+     */
+    public HttpProxyServer(int port, String socksHost, int socksPort) {
+        this(new InetSocketAddress(InetAddress.getLoopbackAddress(), port), socksHost, socksPort);
+    }
+
+    public HttpProxyServer(InetSocketAddress bindAddress, String socksHost, int socksPort) {
+        this.bindAddress = bindAddress;
+        this.socksHost = socksHost;
+        this.socksPort = socksPort;
+    }
+
+    /**
+     * Makes upstream connections send addresses cached by the resolver instead of host names, see
+     * {@link OnionProxyManager#getDnsResolver()}
+     *
+     * @param dnsResolver resolver to use, or null to always send host names
+     */
+    public void setDnsResolver(DnsResolver dnsResolver) {
+        this.dnsResolver = dnsResolver;
+    }
+
+    public synchronized void start() throws IOException {
+        if (running) {
+            return;
+        }
+        serverSocket = new ServerSocket();
+        serverSocket.bind(bindAddress);
+        executor = Executors.newCachedThreadPool(r -> {
+            Thread thread = new Thread(r, "HttpProxyServer");
+            thread.setDaemon(true);
+            return thread;
+        });
+        running = true;
+        final ServerSocket server = serverSocket;
+        executor.execute(() -> accept(server));
+        LOG.info("HTTP proxy listening on {}", server.getLocalSocketAddress());
+    }
+
+    /**
+     * Closes the listener, all client connections and all pooled connections
+     */
+    public synchronized void stop() {
+        if (!running) {
+            return;
+        }
+        running = false;
+        closeQuietly(serverSocket);
+        for (Socket client : clients) {
+            closeQuietly(client);
+        }
+        synchronized (idle) {
+            for (Deque<Upstream> connections : idle.values()) {
+                for (Upstream upstream : connections) {
+                    upstream.close();
+                }
+            }
+            idle.clear();
+        }
+        executor.shutdownNow();
+    }
+
+    /**
+     * @return port the proxy listens on, or -1 if it is not started
+     */
+    public synchronized int getPort() {
+        return serverSocket == null ? -1 : serverSocket.getLocalPort();
+    }
+
+    /**
+     * @return connection reuse counters of the most recently used origins, by origin in the form host:port
+     */
+    public Map<String, OriginStats> getOriginStats() {
+        synchronized (stats) {
+            return Collections.unmodifiableMap(new LinkedHashMap<>(stats));
+        }
+    }
+
+    /**
+     * @return number of pooled connections waiting for a request
+     */
+    public int getIdleConnectionCount() {
+        synchronized (idle) {
+            int count = 0;
+            for (Deque<Upstream> connections : idle.values()) {
+                count += connections.size();
+            }
+            return count;
+        }
+    }
+
+    private void accept(ServerSocket server) {
+        while (running) {
+            try {
+                final Socket client = server.accept();
+                clients.add(client);
+                try {
+                    executor.execute(() -> serve(client));
+                } catch (RejectedExecutionException e) {
+                    // Executor shut down by stop()
+                    clients.remove(client);
+                    closeQuietly(client);
+                    return;
+                }
+            } catch (IOException e) {
+                if (running) {
+                    LOG.warn("HTTP proxy accept failed", e);
+                }
+            }
+        }
+    }
+
+    private void serve(Socket client) {
+        try {
+            client.setSoTimeout(CLIENT_IDLE_MILLIS);
+            InputStream in = new BufferedInputStream(client.getInputStream(), BUFFER_SIZE);
+            OutputStream out = new BufferedOutputStream(client.getOutputStream(), BUFFER_SIZE);
+            while (running) {
+                Head request = readHead(in);
+                if (request == null) {
+                    return;
+                }
+                if (request.parts.length != 3) {
+                    sendError(out, "400 Bad Request");
+                    return;
+                }
+                if ("CONNECT".equals(request.parts[0])) {
+                    tunnel(request, client, in, out);
+                    return;
+                }
+                if (!forward(request, in, out)) {
+                    return;
+                }
+            }
+        } catch (SocketTimeoutException e) {
+            LOG.debug("HTTP proxy client idle");
+        } catch (IOException e) {
+            LOG.debug("HTTP proxy client connection failed", e);
+        } finally {
+            clients.remove(client);
+            closeQuietly(client);
+        }
+    }
+
+    /**
+     * Forwards one plain HTTP request and its response
+     *
+     * @return true if the client connection can be used for another request
+     */
+    private boolean forward(Head request, InputStream in, OutputStream out) throws IOException {
+        String method = request.parts[0];
+        String target = request.parts[1];
+        if (!target.regionMatches(true, 0, "http://", 0, 7)) {
+            sendError(out, "400 Bad Request");
+            return false;
+        }
+        int pathStart = 7;
+        while (pathStart < target.length() && target.charAt(pathStart) != '/' && target.charAt(pathStart) != '?') {
+            pathStart++;
+        }
+        String authority = target.substring(7, pathStart);
+        String path = pathStart < target.length() ? target.substring(pathStart) : "/";
+        if (path.charAt(0) == '?') {
+            path = "/" + path;
+        }
+        HostPort origin = HostPort.parse(authority, 80);
+        if (origin == null) {
+            sendError(out, "400 Bad Request");
+            return false;
+        }
+        OriginStats originStats = stats(origin.toString());
+        originStats.requests.increment();
+
+        boolean clientKeepAlive = isKeepAlive(request);
+        boolean chunkedBody = request.isChunked();
+        if (request.get("Transfer-Encoding") != null) {
+            // Only a chunked body can be delimited, and a Content-Length next to it would let the origin read
+            // the body differently from this proxy, smuggling a request past it
+            if (!chunkedBody) {
+                sendError(out, "400 Bad Request");
+                return false;
+            }
+            request.remove("Content-Length");
+        }
+        long bodyLength;
+        try {
+            bodyLength = request.contentLength();
+        } catch (ProtocolException e) {
+            LOG.debug("HTTP proxy request to {} rejected", origin, e);
+            sendError(out, "400 Bad Request");
+            return false;
+        }
+        boolean hasBody = chunkedBody || bodyLength > 0;
+        byte[] head = request.toBytes(method + " " + path + " HTTP/1.1", authority);
+
+        Upstream upstream = acquire(origin.toString());
+        boolean reused = upstream != null;
+        Head response;
+        while (true) {
+            try {
+                if (upstream == null) {
+                    upstream = new Upstream(Utilities.socks4aSocketConnection(origin.host, origin.port,
+                            socksHost, socksPort, dnsResolver));
+                    originStats.connectionsOpened.increment();
+                }
+                upstream.out.write(head);
+                if (chunkedBody) {
+                    copyChunked(in, upstream.out);
+                } else if (bodyLength > 0) {
+                    copyFixed(in, upstream.out, bodyLength);
+                }
+                upstream.out.flush();
+                response = readHead(upstream.in);
+                while (response != null && isInterim(response)) {
+                    out.write(response.toBytes(response.startLine, null));
+                    out.flush();
+                    response = readHead(upstream.in);
+                }
+                if (response == null || response.parts.length < 2) {
+                    throw new EOFException("No response from " + origin);
+                }
+                break;
+            } catch (IOException e) {
+                if (upstream != null) {
+                    upstream.close();
+                }
+                // A pooled connection may have been closed by the origin while idle; retry once if the request
+                // can be sent again
+                if (reused && !hasBody) {
+                    upstream = null;
+                    reused = false;
+                    continue;
+                }
+                originStats.failures.increment();
+                LOG.debug("HTTP proxy request to {} failed", origin, e);
+                sendError(out, "502 Bad Gateway");
+                return false;
+            }
+        }
+        if (reused) {
+            originStats.connectionsReused.increment();
+        }
+
+        String status = response.parts[1];
+        boolean noBody = "HEAD".equals(method) || status.startsWith("1") || "204".equals(status)
+                || "304".equals(status);
+        boolean chunked = !noBody && response.isChunked();
+        if (chunked) {
+            response.remove("Content-Length");
+        }
+        long length;
+        try {
+            length = noBody || chunked ? -1 : response.contentLength();
+        } catch (ProtocolException e) {
+            upstream.close();
+            originStats.failures.increment();
+            LOG.debug("HTTP proxy response from {} rejected", origin, e);
+            sendError(out, "502 Bad Gateway");
+            return false;
+        }
+        boolean closeDelimited = !noBody && !chunked && length < 0;
+        boolean upstreamReusable = isKeepAlive(response) && !closeDelimited;
+        clientKeepAlive &= !closeDelimited;
+
+        try {
+            out.write(response.toBytes(response.startLine, null, clientKeepAlive ? "keep-alive" : "close"));
+            if (chunked) {
+                copyChunked(upstream.in, out);
+            } else if (length > 0) {
+                copyFixed(upstream.in, out, length);
+            } else if (closeDelimited) {
+                copyToEnd(upstream.in, out);
+            }
+            out.flush();
+        } catch (IOException e) {
+            upstream.close();
+            throw e;
+        }
+        if (upstreamReusable) {
+            release(origin.toString(), upstream);
+        } else {
+            upstream.close();
+        }
+        return clientKeepAlive;
+    }
+
+    private void tunnel(Head request, Socket client, InputStream in, OutputStream out) throws IOException {
+        HostPort origin = HostPort.parse(request.parts[1], 443);
+        if (origin == null) {
+            sendError(out, "400 Bad Request");
+            return;
+        }
+        OriginStats originStats = stats(origin.toString());
+        originStats.tunnels.increment();
+        final Socket upstream;
+        try {
+            upstream = Utilities.socks4aSocketConnection(origin.host, origin.port, socksHost, socksPort,
+                    dnsResolver);
+        } catch (IOException e) {
+            originStats.failures.increment();
+            LOG.debug("HTTP proxy tunnel to {} failed", origin, e);
+            sendError(out, "502 Bad Gateway");
+            return;
+        }
+        try {
+            upstream.setSoTimeout(TUNNEL_IDLE_MILLIS);
+            client.setSoTimeout(TUNNEL_IDLE_MILLIS);
+            out.write("HTTP/1.1 200 Connection established\r\n\r\n".getBytes(StandardCharsets.ISO_8859_1));
+            out.flush();
+            // Bytes the client sent after the CONNECT head may already be buffered in 'in'
+            final InputStream clientIn = in;
+            executor.execute(() -> {
+                try {
+                    pipe(clientIn, upstream.getOutputStream());
+                    upstream.shutdownOutput();
+                } catch (IOException e) {
+                    closeQuietly(upstream);
+                }
+            });
+            pipe(upstream.getInputStream(), client.getOutputStream());
+        } finally {
+            closeQuietly(upstream);
+        }
+    }
+
+    private OriginStats stats(String origin) {
+        synchronized (stats) {
+            OriginStats originStats = stats.get(origin);
+            if (originStats == null) {
+                originStats = new OriginStats();
+                stats.put(origin, originStats);
+            }
+            return originStats;
+        }
+    }
+
+    private Upstream acquire(String origin) {
+        long now = System.currentTimeMillis();
+        synchronized (idle) {
+            Deque<Upstream> connections = idle.get(origin);
+            while (connections != null && !connections.isEmpty()) {
+                Upstream upstream = connections.pollFirst();
+                if (now - upstream.idleSince < POOL_IDLE_MILLIS) {
+                    return upstream;
+                }
+                upstream.close();
+            }
+        }
+        return null;
+    }
+
+    private void release(String origin, Upstream upstream) {
+        long now = System.currentTimeMillis();
+        synchronized (idle) {
+            if (!running) {
+                upstream.close();
+                return;
+            }
+            // Drop connections that have been idle too long, so origins that are not visited again don't hold
+            // circuits open
+            for (Iterator<Deque<Upstream>> it = idle.values().iterator(); it.hasNext(); ) {
+                Deque<Upstream> connections = it.next();
+                while (!connections.isEmpty() && now - connections.peekLast().idleSince >= POOL_IDLE_MILLIS) {
+                    connections.pollLast().close();
+                }
+                if (connections.isEmpty()) {
+                    it.remove();
+                }
+            }
+            Deque<Upstream> connections = idle.get(origin);
+            if (connections == null) {
+                connections = new ArrayDeque<>();
+                idle.put(origin, connections);
+            }
+            if (connections.size() >= MAX_IDLE_PER_ORIGIN) {
+                upstream.close();
+                return;
+            }
+            upstream.idleSince = now;
+            connections.addFirst(upstream);
+        }
+    }
+
+    private static boolean isKeepAlive(Head head) {
+        String version = head.isRequest() ? head.parts[2] : head.parts[0];
+        if (head.hasToken("connection", "close") || head.hasToken("proxy-connection", "close")) {
+            return false;
+        }
+        if ("HTTP/1.1".equals(version)) {
+            return true;
+        }
+        return head.hasToken("connection", "keep-alive") || head.hasToken("proxy-connection", "keep-alive");
+    }
+
+    private static boolean isInterim(Head response) {
+        return response.parts.length >= 2 && response.parts[1].startsWith("1") && !"101".equals(response.parts[1]);
+    }
+
+    private static void sendError(OutputStream out, String status) throws IOException {
+        out.write(("HTTP/1.1 " + status + "\r\nContent-Length: 0\r\nConnection: close\r\n\r\n")
+                .getBytes(StandardCharsets.ISO_8859_1));
+        out.flush();
+    }
+
+    private static void copyFixed(InputStream in, OutputStream out, long length) throws IOException {
+        byte[] buffer = new byte[(int) Math.min(BUFFER_SIZE, length)];
+        long remaining = length;
+        while (remaining > 0) {
+            int read = in.read(buffer, 0, (int) Math.min(buffer.length, remaining));
+            if (read < 0) {
+                throw new EOFException("Message body ended early");
+            }
+            out.write(buffer, 0, read);
+            remaining -= read;
+        }
+    }
+
+    private static void copyChunked(InputStream in, OutputStream out) throws IOException {
+        while (true) {
+            String sizeLine = readLine(in);
+            if (sizeLine == null) {
+                throw new EOFException("Chunked body ended early");
+            }
+            writeLine(out, sizeLine);
+            int end = sizeLine.indexOf(';');
+            String hex = (end < 0 ? sizeLine : sizeLine.substring(0, end)).trim();
+            long size;
+            try {
+                size = Long.parseLong(hex, 16);
+            } catch (NumberFormatException e) {
+                throw new IOException("Invalid chunk size: " + sizeLine);
+            }
+            if (size == 0) {
+                // Trailer section, ended by an empty line
+                String line;
+                do {
+                    line = readLine(in);
+                    if (line == null) {
+                        throw new EOFException("Chunked body ended early");
+                    }
+                    writeLine(out, line);
+                } while (!line.isEmpty());
+                return;
+            }
+            copyFixed(in, out, size + 2);
+        }
+    }
+
+    private static void copyToEnd(InputStream in, OutputStream out) throws IOException {
+        byte[] buffer = new byte[BUFFER_SIZE];
+        int read;
+        while ((read = in.read(buffer)) >= 0) {
+            out.write(buffer, 0, read);
+        }
+    }
+
+    private static void pipe(InputStream in, OutputStream out) throws IOException {
+        byte[] buffer = new byte[BUFFER_SIZE];
+        int read;
+        while ((read = in.read(buffer)) >= 0) {
+            out.write(buffer, 0, read);
+            out.flush();
+        }
+    }
+
+    private static void writeLine(OutputStream out, String line) throws IOException {
+        out.write(line.getBytes(StandardCharsets.ISO_8859_1));
+        out.write('\r');
+        out.write('\n');
+    }
+
+    /**
+     * @return the line without its CRLF, or null if the stream ended before any byte was read
+     */
+    private static String readLine(InputStream in) throws IOException {
+        ByteArrayOutputStream line = new ByteArrayOutputStream(64);
+        int b;
+        while ((b = in.read()) >= 0) {
+            if (b == '\n') {
+                byte[] bytes = line.toByteArray();
+                int length = bytes.length > 0 && bytes[bytes.length - 1] == '\r' ? bytes.length - 1 : bytes.length;
+                return new String(bytes, 0, length, StandardCharsets.ISO_8859_1);
+            }
+            if (line.size() >= MAX_LINE) {
+                throw new IOException("HTTP line too long");
+            }
+            line.write(b);
+        }
+        if (line.size() == 0) {
+            return null;
+        }
+        throw new EOFException("HTTP line ended early");
+    }
+
+    /**
+     * @return the request or response head, or null if the stream ended before it started
+     */
+    private static Head readHead(InputStream in) throws IOException {
+        String startLine;
+        do {
+            startLine = readLine(in);
+            if (startLine == null) {
+                return null;
+            }
+        } while (startLine.isEmpty());
+        Head head = new Head(startLine);
+        String line;
+        while (true) {
+            line = readLine(in);
+            if (line == null) {
+                throw new EOFException("HTTP head ended early");
+            }
+            if (line.isEmpty()) {
+                break;
+            }
+            if (head.names.size() >= MAX_HEADERS) {
+                throw new IOException("Too many HTTP headers");
+            }
+            int colon = line.indexOf(':');
+            if (colon <= 0) {
+                throw new IOException("Invalid HTTP header: " + line);
+            }
+            head.names.add(line.substring(0, colon).trim());
+            head.values.add(line.substring(colon + 1).trim());
+        }
+        return head;
+    }
+
+    private static void closeQuietly(java.io.Closeable closeable) {
+        if (closeable == null) {
+            return;
+        }
+        try {
+            closeable.close();
+        } catch (IOException e) {
+            LOG.debug("Close failed", e);
+        }
+    }
+
+    /**
+     * Start line and headers of an HTTP message
+     */
+    private static final class Head {
+        final String startLine;
+        final String[] parts;
+        final List<String> names = new ArrayList<>();
+        final List<String> values = new ArrayList<>();
+
+        Head(String startLine) {
+            this.startLine = startLine;
+            this.parts = startLine.split(" ", 3);
+        }
+
+        boolean isRequest() {
+            return parts.length == 3 && parts[2].startsWith("HTTP/");
+        }
+
+        String get(String name) {
+            for (int i = 0; i < names.size(); i++) {
+                if (names.get(i).equalsIgnoreCase(name)) {
+                    return values.get(i);
+                }
+            }
+            return null;
+        }
+
+        boolean hasToken(String name, String token) {
+            for (int i = 0; i < names.size(); i++) {
+                if (names.get(i).equalsIgnoreCase(name)) {
+                    for (String value : values.get(i).split(",")) {
+                        if (value.trim().equalsIgnoreCase(token)) {
+                            return true;
+                        }
+                    }
+                }
+            }
+            return false;
+        }
+
+        /**
+         * @return true if chunked is the last transfer coding, which then delimits the body
+         */
+        boolean isChunked() {
+            String encoding = get("Transfer-Encoding");
+            if (encoding == null) {
+                return false;
+            }
+            String[] codings = encoding.split(",");
+            return codings[codings.length - 1].trim().equalsIgnoreCase("chunked");
+        }
+
+        void remove(String name) {
+            for (int i = names.size() - 1; i >= 0; i--) {
+                if (names.get(i).equalsIgnoreCase(name)) {
+                    names.remove(i);
+                    values.remove(i);
+                }
+            }
+        }
+
+        /**
+         * @return the body length, or -1 if there is no Content-Length
+         * @throws ProtocolException if a Content-Length is not a non-negative number or several disagree, which
+         *                           would let the next hop delimit the body differently
+         */
+        long contentLength() throws ProtocolException {
+            long length = -1;
+            for (int i = 0; i < names.size(); i++) {
+                if (!names.get(i).equalsIgnoreCase("Content-Length")) {
+                    continue;
+                }
+                for (String value : values.get(i).split(",", -1)) {
+                    long parsed = parseLength(value.trim());
+                    if (parsed < 0 || (length >= 0 && parsed != length)) {
+                        throw new ProtocolException("Invalid Content-Length: " + values.get(i));
+                    }
+                    length = parsed;
+                }
+            }
+            return length;
+        }
+
+        /**
+         * @return the value of a string of digits, or -1 for anything else, including signs
+         */
+        private static long parseLength(String value) {
+            if (value.isEmpty() || value.length() > 18) {
+                return -1;
+            }
+            long length = 0;
+            for (int i = 0; i < value.length(); i++) {
+                char c = value.charAt(i);
+                if (c < '0' || c > '9') {
+                    return -1;
+                }
+                length = length * 10 + (c - '0');
+            }
+            return length;
+        }
+
+        byte[] toBytes(String startLine, String host) {
+            return toBytes(startLine, host, null);
+        }
+
+        /**
+         * Serializes the head without hop-by-hop headers
+         *
+         * @param host       Host header to add if there is none, or null
+         * @param connection Connection header value to add, or null
+         */
+        byte[] toBytes(String startLine, String host, String connection) {
+            Set<String> dropped = new HashSet<>(HOP_BY_HOP);
+            for (int i = 0; i < names.size(); i++) {
+                if (names.get(i).equalsIgnoreCase("connection")) {
+                    for (String token : values.get(i).split(",")) {
+                        dropped.add(token.trim().toLowerCase(Locale.US));
+                    }
+                }
+            }
+            StringBuilder sb = new StringBuilder(startLine).append("\r\n");
+            for (int i = 0; i < names.size(); i++) {
+                if (!dropped.contains(names.get(i).toLowerCase(Locale.US))) {
+                    sb.append(names.get(i)).append(": ").append(values.get(i)).append("\r\n");
+                }
+            }
+            if (host != null && get("Host") == null) {
+                sb.append("Host: ").append(host).append("\r\n");
+            }
+            if (connection != null) {
+                sb.append("Connection: ").append(connection).append("\r\n");
+            }
+            return sb.append("\r\n").toString().getBytes(StandardCharsets.ISO_8859_1);
+        }
+    }
+
+    private static final class HostPort {
+        final String host;
+        final int port;
+
+        private HostPort(String host, int port) {
+            this.host = host;
+            this.port = port;
+        }
+
+        /**
+         * Parses host, host:port, [v6] or [v6]:port
+         *
+         * @return null if the authority is invalid
+         */
+        static HostPort parse(String authority, int defaultPort) {
+            int at = authority.lastIndexOf('@');
+            if (at >= 0) {
+                authority = authority.substring(at + 1);
+            }
+            String host = authority;
+            String port = null;
+            if (authority.startsWith("[")) {
+                int close = authority.indexOf(']');
+                if (close < 0) {
+                    return null;
+                }
+                host = authority.substring(1, close);
+                if (close + 1 < authority.length()) {
+                    if (authority.charAt(close + 1) != ':') {
+                        return null;
+                    }
+                    port = authority.substring(close + 2);
+                }
+            } else {
+                int colon = authority.lastIndexOf(':');
+                if (colon >= 0) {
+                    host = authority.substring(0, colon);
+                    port = authority.substring(colon + 1);
+                }
+            }
+            if (host.isEmpty()) {
+                return null;
+            }
+            try {
+                int parsed = port == null || port.isEmpty() ? defaultPort : Integer.parseInt(port);
+                return parsed > 0 && parsed < 65536 ? new HostPort(host, parsed) : null;
+            } catch (NumberFormatException e) {
+                return null;
+            }
+        }
+
+        @Override
+        public String toString() {
+            return host.indexOf(':') >= 0 ? "[" + host + "]:" + port : host + ":" + port;
+        }
+    }
+
+    /**
+     * A connection to an origin through tor
+     */
+    private static final class Upstream {
+        final Socket socket;
+        final InputStream in;
+        final OutputStream out;
+        long idleSince;
+
+        Upstream(Socket socket) throws IOException {
+            this.socket = socket;
+            this.in = new BufferedInputStream(socket.getInputStream(), BUFFER_SIZE);
+            this.out = new BufferedOutputStream(socket.getOutputStream(), BUFFER_SIZE);
+        }
+
+        void close() {
+            closeQuietly(socket);
+        }
+    }
+}
@@ -0,0 +1,232 @@
+/*
+Copyright (c) Microsoft Open Technologies, Inc.
+All Rights Reserved
+Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except in compliance with the
+License. You may obtain a copy of the License at http://www.apache.org/licenses/LICENSE-2.0
+
+THIS CODE IS PROVIDED ON AN *AS IS* BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, EITHER EXPRESS OR IMPLIED,
+INCLUDING WITHOUT LIMITATION ANY IMPLIED WARRANTIES OR CONDITIONS OF TITLE, FITNESS FOR A PARTICULAR PURPOSE,
+MERCHANTABLITY OR NON-INFRINGEMENT.
+
+See the Apache 2 License for the specific language governing permissions and limitations under the License.
+*/
+package com.msopentech.thali.java.toronionproxy;
+
+import com.msopentech.thali.toronionproxy.Instrumentation;
+
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+import java.lang.management.ManagementFactory;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Publishes library measurements as an MXBean on the platform MBean server.
+ *
+ <pre>
+ JmxInstrumentation instrumentation = new JmxInstrumentation();
+ instrumentation.register("node1");
+ onionProxyManager.setInstrumentation(instrumentation);
+ Utilities.setInstrumentation(instrumentation);
+ </pre>
+ */
+public class JmxInstrumentation implements Instrumentation, JmxInstrumentationMXBean {
+    public static final String DOMAIN = "com.msopentech.thali.toronionproxy";
+
+    private final ConcurrentMap<String, Long> startStages = new ConcurrentHashMap<>();
+    private final AtomicInteger bootstrapProgress = new AtomicInteger();
+    private final ConcurrentMap<String, Timer> commands = new ConcurrentHashMap<>();
+    private final ConcurrentMap<String, LongAdder> events = new ConcurrentHashMap<>();
+    private final LongAdder circuitsBuilt = new LongAdder();
+    private final LongAdder circuitsFailed = new LongAdder();
+    private final Timer socksHandshakes = new Timer();
+    private final ConcurrentMap<String, Long> installer = new ConcurrentHashMap<>();
+    private final LongAdder restarts = new LongAdder();
+    private final LongAdder restartFailures = new LongAdder();
+    private final AtomicLong lastRestartDowntime = new AtomicLong(-1);
+    private ObjectName objectName;
+
+    /**
+     * Registers this instance on the platform MBean server
+     *
+     * @param name distinguishes managers in the same JVM
+     */
+    public synchronized void register(String name) throws JMException {
+        MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+        objectName = new ObjectName(DOMAIN + ":type=OnionProxyManager,name=" + ObjectName.quote(name));
+        server.registerMBean(this, objectName);
+    }
+
+    public synchronized void unregister() throws JMException {
+        if (objectName != null) {
+            ManagementFactory.getPlatformMBeanServer().unregisterMBean(objectName);
+            objectName = null;
+        }
+    }
+
+    @Override
+    public boolean isEnabled() {
+        return true;
+    }
+
+    @Override
+    public void recordStartStage(String stage, long millis) {
+        startStages.put(stage, millis);
+    }
+
+    @Override
+    public void recordBootstrapProgress(int progress) {
+        bootstrapProgress.set(progress);
+    }
+
+    @Override
+    public void recordControlCommand(String verb, long nanos, boolean success) {
+        Timer timer = commands.get(verb);
+        if (timer == null) {
+            timer = commands.computeIfAbsent(verb, k -> new Timer());
+        }
+        timer.record(nanos, success);
+    }
+
+    @Override
+    public void recordEvent(String type) {
+        LongAdder count = events.get(type);
+        if (count == null) {
+            count = events.computeIfAbsent(type, k -> new LongAdder());
+        }
+        count.increment();
+    }
+
+    @Override
+    public void recordCircuitBuild(boolean success) {
+        (success ? circuitsBuilt : circuitsFailed).increment();
+    }
+
+    @Override
+    public void recordSocksHandshake(long nanos, boolean success) {
+        socksHandshakes.record(nanos, success);
+    }
+
+    @Override
+    public void recordInstallerIo(String operation, long nanos) {
+        installer.put(operation, nanos / 1000000);
+    }
+
+    @Override
+    public void recordRestart(String cause, long downtimeMillis, boolean success) {
+        if (success) {
+            restarts.increment();
+            lastRestartDowntime.set(downtimeMillis);
+        } else {
+            restartFailures.increment();
+        }
+    }
+
+    @Override
+    public long getRestarts() {
+        return restarts.sum();
+    }
+
+    @Override
+    public long getRestartFailures() {
+        return restartFailures.sum();
+    }
+
+    @Override
+    public long getLastRestartDowntimeMillis() {
+        return lastRestartDowntime.get();
+    }
+
+    @Override
+    public Map<String, Long> getStartStageMillis() {
+        return new TreeMap<>(startStages);
+    }
+
+    @Override
+    public int getBootstrapProgress() {
+        return bootstrapProgress.get();
+    }
+
+    @Override
+    public Map<String, Long> getControlCommandCounts() {
+        Map<String, Long> result = new TreeMap<>();
+        commands.forEach((verb, timer) -> result.put(verb, timer.count.sum()));
+        return result;
+    }
+
+    @Override
+    public Map<String, Long> getControlCommandFailures() {
+        Map<String, Long> result = new TreeMap<>();
+        commands.forEach((verb, timer) -> result.put(verb, timer.failures.sum()));
+        return result;
+    }
+
+    @Override
+    public Map<String, Double> getControlCommandMeanMillis() {
+        Map<String, Double> result = new TreeMap<>();
+        commands.forEach((verb, timer) -> result.put(verb, timer.meanMillis()));
+        return result;
+    }
+
+    @Override
+    public Map<String, Long> getEventCounts() {
+        Map<String, Long> result = new TreeMap<>();
+        events.forEach((type, count) -> result.put(type, count.sum()));
+        return result;
+    }
+
+    @Override
+    public long getCircuitsBuilt() {
+        return circuitsBuilt.sum();
+    }
+
+    @Override
+    public long getCircuitsFailed() {
+        return circuitsFailed.sum();
+    }
+
+    @Override
+    public long getSocksHandshakes() {
+        return socksHandshakes.count.sum();
+    }
+
+    @Override
+    public long getSocksHandshakeFailures() {
+        return socksHandshakes.failures.sum();
+    }
+
+    @Override
+    public double getSocksHandshakeMeanMillis() {
+        return socksHandshakes.meanMillis();
+    }
+
+    @Override
+    public Map<String, Long> getInstallerMillis() {
+        return new TreeMap<>(installer);
+    }
+
+    private static final class Timer {
+        final LongAdder count = new LongAdder();
+        final LongAdder failures = new LongAdder();
+        final AtomicLong totalNanos = new AtomicLong();
+
+        void record(long nanos, boolean success) {
+            count.increment();
+            totalNanos.addAndGet(nanos);
+            if (!success) {
+                failures.increment();
+            }
+        }
+
+        double meanMillis() {
+            long n = count.sum();
+            return n == 0 ? 0 : totalNanos.get() / (n * 1000000.0);
+        }
+    }
+}
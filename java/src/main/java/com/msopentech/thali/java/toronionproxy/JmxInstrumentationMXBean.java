@@ -0,0 +1,74 @@
+/*
+Copyright (c) Microsoft Open Technologies, Inc.
+All Rights Reserved
+Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except in compliance with the
+License. You may obtain a copy of the License at http://www.apache.org/licenses/LICENSE-2.0
+
+THIS CODE IS PROVIDED ON AN *AS IS* BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, EITHER EXPRESS OR IMPLIED,
+INCLUDING WITHOUT LIMITATION ANY IMPLIED WARRANTIES OR CONDITIONS OF TITLE, FITNESS FOR A PARTICULAR PURPOSE,
+MERCHANTABLITY OR NON-INFRINGEMENT.
+
+See the Apache 2 License for the specific language governing permissions and limitations under the License.
+*/
+package com.msopentech.thali.java.toronionproxy;
+
+import java.util.Map;
+
+/**
+ * Attributes published over JMX by {@link JmxInstrumentation}
+ */
+public interface JmxInstrumentationMXBean {
+    /**
+     * @return duration in milliseconds of the last run of each start stage
+     */
+    Map<String, Long> getStartStageMillis();
+
+    int getBootstrapProgress();
+
+    /**
+     * @return number of control commands sent, by verb
+     */
+    Map<String, Long> getControlCommandCounts();
+
+    /**
+     * @return number of control commands that failed, by verb
+     */
+    Map<String, Long> getControlCommandFailures();
+
+    /**
+     * @return mean control command latency in milliseconds, by verb
+     */
+    Map<String, Double> getControlCommandMeanMillis();
+
+    /**
+     * @return number of control port events received, by event type
+     */
+    Map<String, Long> getEventCounts();
+
+    long getCircuitsBuilt();
+
+    long getCircuitsFailed();
+
+    long getSocksHandshakes();
+
+    long getSocksHandshakeFailures();
+
+    double getSocksHandshakeMeanMillis();
+
+    /**
+     * @return duration in milliseconds of the last run of each installer operation
+     */
+    Map<String, Long> getInstallerMillis();
+
+    /**
+     * @return number of times the process supervisor restarted tor
+     */
+    long getRestarts();
+
+    long getRestartFailures();
+
+    /**
+     * @return milliseconds from detecting the last crash to tor running again, or -1 if it never restarted
+     */
+    long getLastRestartDowntimeMillis();
+}
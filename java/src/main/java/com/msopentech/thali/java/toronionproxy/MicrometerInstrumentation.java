@@ -0,0 +1,94 @@
+/*
+Copyright (c) Microsoft Open Technologies, Inc.
+All Rights Reserved
+Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except in compliance with the
+License. You may obtain a copy of the License at http://www.apache.org/licenses/LICENSE-2.0
+
+THIS CODE IS PROVIDED ON AN *AS IS* BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, EITHER EXPRESS OR IMPLIED,
+INCLUDING WITHOUT LIMITATION ANY IMPLIED WARRANTIES OR CONDITIONS OF TITLE, FITNESS FOR A PARTICULAR PURPOSE,
+MERCHANTABLITY OR NON-INFRINGEMENT.
+
+See the Apache 2 License for the specific language governing permissions and limitations under the License.
+*/
+package com.msopentech.thali.java.toronionproxy;
+
+import com.msopentech.thali.toronionproxy.Instrumentation;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Timer;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Publishes library measurements to a Micrometer registry. Micrometer is an optional dependency: add
+ * io.micrometer:micrometer-core to your application to use this class.
+ *
+ <pre>
+ Instrumentation instrumentation = new MicrometerInstrumentation(registry);
+ onionProxyManager.setInstrumentation(instrumentation);
+ Utilities.setInstrumentation(instrumentation);
+ </pre>
+ */
+public class MicrometerInstrumentation implements Instrumentation {
+    private final MeterRegistry registry;
+    private final AtomicInteger bootstrapProgress;
+    private final Timer socksSuccess;
+    private final Timer socksFailure;
+
+    public MicrometerInstrumentation(MeterRegistry registry) {
+        if (registry == null) {
+            throw new IllegalArgumentException("registry is null");
+        }
+        this.registry = registry;
+        this.bootstrapProgress = registry.gauge("tor.bootstrap.progress", new AtomicInteger());
+        this.socksSuccess = registry.timer("tor.socks.handshake", "outcome", "success");
+        this.socksFailure = registry.timer("tor.socks.handshake", "outcome", "failure");
+    }
+
+    @Override
+    public boolean isEnabled() {
+        return true;
+    }
+
+    @Override
+    public void recordStartStage(String stage, long millis) {
+        registry.timer("tor.start.stage", "stage", stage).record(millis, TimeUnit.MILLISECONDS);
+    }
+
+    @Override
+    public void recordBootstrapProgress(int progress) {
+        bootstrapProgress.set(progress);
+    }
+
+    @Override
+    public void recordControlCommand(String verb, long nanos, boolean success) {
+        registry.timer("tor.control.command", "verb", verb, "outcome", success ? "success" : "failure")
+                .record(nanos, TimeUnit.NANOSECONDS);
+    }
+
+    @Override
+    public void recordEvent(String type) {
+        registry.counter("tor.events", "type", type).increment();
+    }
+
+    @Override
+    public void recordCircuitBuild(boolean success) {
+        registry.counter("tor.circuits", "outcome", success ? "built" : "failed").increment();
+    }
+
+    @Override
+    public void recordSocksHandshake(long nanos, boolean success) {
+        (success ? socksSuccess : socksFailure).record(nanos, TimeUnit.NANOSECONDS);
+    }
+
+    @Override
+    public void recordInstallerIo(String operation, long nanos) {
+        registry.timer("tor.installer", "operation", operation).record(nanos, TimeUnit.NANOSECONDS);
+    }
+
+    @Override
+    public void recordRestart(String cause, long downtimeMillis, boolean success) {
+        registry.timer("tor.restart", "cause", cause, "outcome", success ? "success" : "failure")
+                .record(downtimeMillis, TimeUnit.MILLISECONDS);
+    }
+}
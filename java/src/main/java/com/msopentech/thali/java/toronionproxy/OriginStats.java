@@ -0,0 +1,80 @@
+/*
+Copyright (c) Microsoft Open Technologies, Inc.
+All Rights Reserved
+Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except in compliance with the
+License. You may obtain a copy of the License at http://www.apache.org/licenses/LICENSE-2.0
+
+THIS CODE IS PROVIDED ON AN *AS IS* BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, EITHER EXPRESS OR IMPLIED,
+INCLUDING WITHOUT LIMITATION ANY IMPLIED WARRANTIES OR CONDITIONS OF TITLE, FITNESS FOR A PARTICULAR PURPOSE,
+MERCHANTABLITY OR NON-INFRINGEMENT.
+
+See the Apache 2 License for the specific language governing permissions and limitations under the License.
+*/
+package com.msopentech.thali.java.toronionproxy;
+
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Connection reuse counters of a single origin, in the form host:port, served by an HttpProxyServer
+ */
+public class OriginStats {
+    final LongAdder requests = new LongAdder();
+    final LongAdder connectionsOpened = new LongAdder();
+    final LongAdder connectionsReused = new LongAdder();
+    final LongAdder tunnels = new LongAdder();
+    final LongAdder failures = new LongAdder();
+
+    /**
+     * @return number of plain HTTP requests forwarded
+     */
+    public long getRequests() {
+        return requests.sum();
+    }
+
+    /**
+     * @return number of new connections opened through tor for plain HTTP requests
+     */
+    public long getConnectionsOpened() {
+        return connectionsOpened.sum();
+    }
+
+    /**
+     * @return number of plain HTTP requests sent on a pooled connection
+     */
+    public long getConnectionsReused() {
+        return connectionsReused.sum();
+    }
+
+    /**
+     * @return fraction of plain HTTP requests that were sent on a pooled connection
+     */
+    public double getReuseRatio() {
+        long requests = getRequests();
+        return requests == 0 ? 0 : (double) getConnectionsReused() / requests;
+    }
+
+    /**
+     * @return number of CONNECT tunnels opened
+     */
+    public long getTunnels() {
+        return tunnels.sum();
+    }
+
+    /**
+     * @return number of requests or tunnels that failed to reach the origin
+     */
+    public long getFailures() {
+        return failures.sum();
+    }
+
+    @Override
+    public String toString() {
+        return "OriginStats{" +
+                "requests=" + getRequests() +
+                ", opened=" + getConnectionsOpened() +
+                ", reused=" + getConnectionsReused() +
+                ", tunnels=" + getTunnels() +
+                ", failures=" + getFailures() +
+                '}';
+    }
+}
@@ -0,0 +1,427 @@
+/*
+Copyright (c) Microsoft Open Technologies, Inc.
+All Rights Reserved
+Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except in compliance with the
+License. You may obtain a copy of the License at http://www.apache.org/licenses/LICENSE-2.0
+
+THIS CODE IS PROVIDED ON AN *AS IS* BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, EITHER EXPRESS OR IMPLIED,
+INCLUDING WITHOUT LIMITATION ANY IMPLIED WARRANTIES OR CONDITIONS OF TITLE, FITNESS FOR A PARTICULAR PURPOSE,
+MERCHANTABLITY OR NON-INFRINGEMENT.
+
+See the Apache 2 License for the specific language governing permissions and limitations under the License.
+*/
+
+package com.msopentech.thali.java.toronionproxy;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.*;
+
+public class HttpProxyServerTest {
+    private Origin origin;
+    private StubSocks socks;
+    private HttpProxyServer proxy;
+
+    @Before
+    public void setUp() throws Exception {
+        origin = new Origin();
+        socks = new StubSocks(origin.server.getLocalPort());
+        proxy = new HttpProxyServer(0, "127.0.0.1", socks.server.getLocalPort());
+        proxy.start();
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        proxy.stop();
+        socks.close();
+        origin.close();
+    }
+
+    @Test
+    public void reusesOriginConnectionsAcrossClients() throws Exception {
+        for (String path : new String[]{"/a", "/b"}) {
+            try (Socket client = connectToProxy()) {
+                send(client, "GET http://origin.test" + path + " HTTP/1.1\r\nHost: origin.test\r\n\r\n");
+                Response response = Response.read(client.getInputStream());
+                assertEquals("200", response.status);
+                assertEquals("connection=1 path=" + path + " body=", response.body);
+            }
+            awaitIdleConnections(1);
+        }
+        assertEquals(1, socks.connections.get());
+        assertEquals("origin.test:80", socks.targets.get(0));
+        OriginStats stats = proxy.getOriginStats().get("origin.test:80");
+        assertEquals(2, stats.getRequests());
+        assertEquals(1, stats.getConnectionsOpened());
+        assertEquals(1, stats.getConnectionsReused());
+    }
+
+    @Test
+    public void keepsClientConnectionAlive() throws Exception {
+        try (Socket client = connectToProxy()) {
+            for (int i = 0; i < 3; i++) {
+                send(client, "GET http://origin.test/" + i + " HTTP/1.1\r\n\r\n");
+                Response response = Response.read(client.getInputStream());
+                assertEquals("connection=1 path=/" + i + " body=", response.body);
+                assertEquals("keep-alive", response.headers.get("connection"));
+            }
+        }
+        assertEquals(1, socks.connections.get());
+    }
+
+    @Test
+    public void forwardsChunkedBodiesWithoutContentLength() throws Exception {
+        try (Socket client = connectToProxy()) {
+            send(client, "POST http://origin.test/chunked HTTP/1.1\r\nTransfer-Encoding: chunked\r\n"
+                    + "Content-Length: 100\r\n\r\n3\r\nabc\r\n2\r\nde\r\n0\r\n\r\n");
+            Response response = Response.read(client.getInputStream());
+            assertEquals("200", response.status);
+            assertEquals("chunked", response.headers.get("transfer-encoding"));
+            assertEquals("connection=1 path=/chunked body=abcde", response.body);
+        }
+        Map<String, String> received = origin.requests.get(0);
+        assertNull(received.get("content-length"));
+        assertEquals("chunked", received.get("transfer-encoding"));
+    }
+
+    @Test
+    public void rejectsUndelimitedTransferEncoding() throws Exception {
+        try (Socket client = connectToProxy()) {
+            send(client, "POST http://origin.test/ HTTP/1.1\r\nTransfer-Encoding: gzip\r\nContent-Length: 3\r\n"
+                    + "\r\nabc");
+            assertEquals("400", Response.read(client.getInputStream()).status);
+        }
+        assertEquals(0, socks.connections.get());
+    }
+
+    @Test
+    public void rejectsInvalidRequestContentLength() throws Exception {
+        for (String lengths : new String[]{"Content-Length: 3\r\nContent-Length: 5\r\n", "Content-Length: 3, 5\r\n",
+                "Content-Length: -1\r\n", "Content-Length: +3\r\n"}) {
+            try (Socket client = connectToProxy()) {
+                send(client, "POST http://origin.test/ HTTP/1.1\r\n" + lengths + "\r\nabc");
+                assertEquals(lengths, "400", Response.read(client.getInputStream()).status);
+            }
+        }
+        assertEquals(0, socks.connections.get());
+    }
+
+    @Test
+    public void rejectsConflictingResponseContentLength() throws Exception {
+        try (Socket client = connectToProxy()) {
+            send(client, "GET http://origin.test/conflicting HTTP/1.1\r\n\r\n");
+            assertEquals("502", Response.read(client.getInputStream()).status);
+        }
+        assertEquals(1, proxy.getOriginStats().get("origin.test:80").getFailures());
+        assertEquals(0, proxy.getIdleConnectionCount());
+    }
+
+    @Test
+    public void retriesWhenPooledConnectionWasClosed() throws Exception {
+        try (Socket client = connectToProxy()) {
+            send(client, "GET http://origin.test/close HTTP/1.1\r\n\r\n");
+            assertEquals("200", Response.read(client.getInputStream()).status);
+        }
+        // The upstream goes back to the pool after the response reaches the client
+        awaitIdleConnections(1);
+        origin.awaitClosed(1);
+
+        try (Socket client = connectToProxy()) {
+            send(client, "GET http://origin.test/after HTTP/1.1\r\n\r\n");
+            Response response = Response.read(client.getInputStream());
+            assertEquals("200", response.status);
+            assertEquals("connection=2 path=/after body=", response.body);
+        }
+        assertEquals(2, socks.connections.get());
+        assertEquals(0, proxy.getOriginStats().get("origin.test:80").getFailures());
+    }
+
+    @Test
+    public void tunnelsConnect() throws Exception {
+        try (Socket client = connectToProxy()) {
+            send(client, "CONNECT origin.test:443 HTTP/1.1\r\nHost: origin.test:443\r\n\r\n");
+            InputStream in = client.getInputStream();
+            assertEquals("200", Response.readHead(in).status);
+            send(client, "GET /inside HTTP/1.1\r\nHost: origin.test\r\n\r\n");
+            assertEquals("connection=1 path=/inside body=", Response.read(in).body);
+        }
+        assertEquals("origin.test:443", socks.targets.get(0));
+        assertEquals(1, proxy.getOriginStats().get("origin.test:443").getTunnels());
+    }
+
+    private void awaitIdleConnections(int count) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + 5000;
+        while (proxy.getIdleConnectionCount() != count && System.currentTimeMillis() < deadline) {
+            Thread.sleep(10);
+        }
+        assertEquals(count, proxy.getIdleConnectionCount());
+    }
+
+    private Socket connectToProxy() throws IOException {
+        Socket socket = new Socket(InetAddress.getLoopbackAddress(), proxy.getPort());
+        socket.setSoTimeout(5000);
+        return socket;
+    }
+
+    private static void send(Socket socket, String data) throws IOException {
+        OutputStream out = socket.getOutputStream();
+        out.write(data.getBytes(StandardCharsets.ISO_8859_1));
+        out.flush();
+    }
+
+    private static String readLine(InputStream in) throws IOException {
+        ByteArrayOutputStream line = new ByteArrayOutputStream();
+        int b;
+        while ((b = in.read()) >= 0 && b != '\n') {
+            if (b != '\r') {
+                line.write(b);
+            }
+        }
+        if (b < 0 && line.size() == 0) {
+            return null;
+        }
+        return new String(line.toByteArray(), StandardCharsets.ISO_8859_1);
+    }
+
+    /**
+     * @return start line followed by headers, with lower case names
+     */
+    private static Map<String, String> readHead(InputStream in, String[] startLine) throws IOException {
+        startLine[0] = readLine(in);
+        if (startLine[0] == null) {
+            return null;
+        }
+        Map<String, String> headers = new HashMap<>();
+        String line;
+        while ((line = readLine(in)) != null && !line.isEmpty()) {
+            int colon = line.indexOf(':');
+            headers.put(line.substring(0, colon).trim().toLowerCase(Locale.US), line.substring(colon + 1).trim());
+        }
+        return headers;
+    }
+
+    private static String readBody(InputStream in, Map<String, String> headers) throws IOException {
+        ByteArrayOutputStream body = new ByteArrayOutputStream();
+        if ("chunked".equals(headers.get("transfer-encoding"))) {
+            int size;
+            while ((size = Integer.parseInt(readLine(in), 16)) > 0) {
+                byte[] chunk = new byte[size];
+                new DataInputStream(in).readFully(chunk);
+                body.write(chunk);
+                readLine(in);
+            }
+            readLine(in);
+        } else if (headers.containsKey("content-length")) {
+            byte[] bytes = new byte[Integer.parseInt(headers.get("content-length"))];
+            new DataInputStream(in).readFully(bytes);
+            body.write(bytes);
+        }
+        return new String(body.toByteArray(), StandardCharsets.ISO_8859_1);
+    }
+
+    private static void closeQuietly(Closeable closeable) {
+        try {
+            closeable.close();
+        } catch (IOException e) {
+            // ignore
+        }
+    }
+
+    private static final class Response {
+        String status;
+        Map<String, String> headers;
+        String body;
+
+        static Response readHead(InputStream in) throws IOException {
+            String[] startLine = new String[1];
+            Response response = new Response();
+            response.headers = HttpProxyServerTest.readHead(in, startLine);
+            assertNotNull("no response", response.headers);
+            response.status = startLine[0].split(" ")[1];
+            return response;
+        }
+
+        static Response read(InputStream in) throws IOException {
+            Response response = readHead(in);
+            response.body = readBody(in, response.headers);
+            return response;
+        }
+    }
+
+    /**
+     * HTTP/1.1 origin that keeps connections alive and answers with the connection number, path and request body.
+     * /chunked answers with a chunked body; /close answers and then closes the connection without saying so;
+     * /conflicting answers with two different Content-Length headers.
+     */
+    private static final class Origin implements Closeable {
+        final ServerSocket server = new ServerSocket(0, 50, InetAddress.getLoopbackAddress());
+        final List<Map<String, String>> requests = new CopyOnWriteArrayList<>();
+        final AtomicInteger connections = new AtomicInteger();
+        final AtomicInteger closed = new AtomicInteger();
+
+        Origin() throws IOException {
+            daemon(() -> {
+                while (!server.isClosed()) {
+                    try {
+                        Socket socket = server.accept();
+                        int connection = connections.incrementAndGet();
+                        daemon(() -> serve(socket, connection));
+                    } catch (IOException e) {
+                        return;
+                    }
+                }
+            });
+        }
+
+        private void serve(Socket socket, int connection) {
+            try {
+                InputStream in = socket.getInputStream();
+                OutputStream out = socket.getOutputStream();
+                String[] startLine = new String[1];
+                Map<String, String> headers;
+                while ((headers = HttpProxyServerTest.readHead(in, startLine)) != null) {
+                    requests.add(headers);
+                    String path = startLine[0].split(" ")[1];
+                    String body = "connection=" + connection + " path=" + path + " body=" + readBody(in, headers);
+                    String response;
+                    if (path.equals("/conflicting")) {
+                        response = "HTTP/1.1 200 OK\r\nContent-Length: " + body.length() + "\r\nContent-Length: "
+                                + (body.length() + 1) + "\r\n\r\n" + body;
+                    } else if (path.equals("/chunked")) {
+                        response = "HTTP/1.1 200 OK\r\nTransfer-Encoding: chunked\r\n\r\n"
+                                + Integer.toHexString(body.length()) + "\r\n" + body + "\r\n0\r\n\r\n";
+                    } else {
+                        response = "HTTP/1.1 200 OK\r\nContent-Length: " + body.length() + "\r\n\r\n" + body;
+                    }
+                    out.write(response.getBytes(StandardCharsets.ISO_8859_1));
+                    out.flush();
+                    if (path.equals("/close")) {
+                        break;
+                    }
+                }
+            } catch (IOException e) {
+                // connection dropped
+            } finally {
+                closeQuietly(socket);
+                synchronized (closed) {
+                    closed.incrementAndGet();
+                    closed.notifyAll();
+                }
+            }
+        }
+
+        void awaitClosed(int count) throws InterruptedException {
+            long deadline = System.currentTimeMillis() + 5000;
+            synchronized (closed) {
+                while (closed.get() < count && System.currentTimeMillis() < deadline) {
+                    closed.wait(100);
+                }
+            }
+            assertEquals(count, closed.get());
+        }
+
+        @Override
+        public void close() throws IOException {
+            server.close();
+        }
+    }
+
+    /**
+     * SOCKS4a server that connects every request to the origin, whatever host was asked for
+     */
+    private static final class StubSocks implements Closeable {
+        final ServerSocket server = new ServerSocket(0, 50, InetAddress.getLoopbackAddress());
+        final List<String> targets = new CopyOnWriteArrayList<>();
+        final AtomicInteger connections = new AtomicInteger();
+
+        StubSocks(int originPort) throws IOException {
+            daemon(() -> {
+                while (!server.isClosed()) {
+                    try {
+                        Socket socket = server.accept();
+                        daemon(() -> relay(socket, originPort));
+                    } catch (IOException e) {
+                        return;
+                    }
+                }
+            });
+        }
+
+        private void relay(Socket client, int originPort) {
+            try {
+                DataInputStream in = new DataInputStream(client.getInputStream());
+                in.readByte();
+                in.readByte();
+                int port = in.readUnsignedShort();
+                in.readInt();
+                readString(in);
+                String host = readString(in);
+                targets.add(host + ":" + port);
+                connections.incrementAndGet();
+                Socket origin = new Socket(InetAddress.getLoopbackAddress(), originPort);
+                client.getOutputStream().write(new byte[]{0, 0x5a, 0, 0, 0, 0, 0, 0});
+                daemon(() -> pipe(client, origin));
+                pipe(origin, client);
+            } catch (IOException e) {
+                closeQuietly(client);
+            }
+        }
+
+        private static String readString(DataInputStream in) throws IOException {
+            StringBuilder sb = new StringBuilder();
+            byte b;
+            while ((b = in.readByte()) != 0) {
+                sb.append((char) b);
+            }
+            return sb.toString();
+        }
+
+        private static void pipe(Socket from, Socket to) {
+            try {
+                InputStream in = from.getInputStream();
+                OutputStream out = to.getOutputStream();
+                byte[] buffer = new byte[8192];
+                int read;
+                while ((read = in.read(buffer)) >= 0) {
+                    out.write(buffer, 0, read);
+                    out.flush();
+                }
+            } catch (IOException e) {
+                // either side closed
+            } finally {
+                closeQuietly(from);
+                closeQuietly(to);
+            }
+        }
+
+        @Override
+        public void close() throws IOException {
+            server.close();
+        }
+    }
+
+    private static void daemon(Runnable runnable) {
+        Thread thread = new Thread(runnable);
+        thread.setDaemon(true);
+        thread.start();
+    }
+}
@@ -0,0 +1,376 @@
+/*
+Copyright (c) Microsoft Open Technologies, Inc.
+All Rights Reserved
+Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except in compliance with the
+License. You may obtain a copy of the License at http://www.apache.org/licenses/LICENSE-2.0
+
+THIS CODE IS PROVIDED ON AN *AS IS* BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, EITHER EXPRESS OR IMPLIED,
+INCLUDING WITHOUT LIMITATION ANY IMPLIED WARRANTIES OR CONDITIONS OF TITLE, FITNESS FOR A PARTICULAR PURPOSE,
+MERCHANTABLITY OR NON-INFRINGEMENT.
+
+See the Apache 2 License for the specific language governing permissions and limitations under the License.
+*/
+package com.msopentech.thali.toronionproxy;
+
+import net.freehaven.tor.control.EventHandler;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Decouples the jtorctl reader thread from event handlers. jtorctl calls handlers on the same thread that reads
+ * command replies, so a slow handler would otherwise delay every control port command.
+ * <p>
+ * Events are written into a bounded ring of preallocated slots, without locks, and delivered to the delegate on
+ * a dedicated thread. When the ring is full the {@link OverflowPolicy} decides whether the reader thread drops
+ * the event, folds bandwidth events into one, or waits for room. Lines of tor process output are queued the same
+ * way and delivered to delegates that take them.
+ */
+public final class AsyncEventHandler implements EventHandler, ProcessOutputHandler {
+    private static final Logger LOG = LoggerFactory.getLogger(AsyncEventHandler.class);
+
+    /**
+     * What to do with an event when the ring is full
+     */
+    public enum OverflowPolicy {
+        /**
+         * Discard the event
+         */
+        DROP,
+        /**
+         * Sum BW events into a single event delivered once there is room; other events are discarded
+         */
+        COALESCE,
+        /**
+         * Make the reader thread wait for room. No event is lost but command replies are delayed.
+         */
+        BLOCK
+    }
+
+    private static final int CIRCUIT = 1;
+    private static final int STREAM = 2;
+    private static final int OR_CONN = 3;
+    private static final int BANDWIDTH = 4;
+    private static final int DESCRIPTORS = 5;
+    private static final int MESSAGE = 6;
+    private static final int UNRECOGNIZED = 7;
+    private static final int PROCESS_OUTPUT = 8;
+
+    private final EventHandler delegate;
+    private final OverflowPolicy overflowPolicy;
+    private final Slot[] slots;
+    private final int mask;
+
+    // Next sequence to be claimed by a producer
+    private final AtomicLong claimed = new AtomicLong();
+    // Number of sequences delivered by the consumer
+    private final AtomicLong consumed = new AtomicLong();
+    private final AtomicLong dropped = new AtomicLong();
+    private final AtomicLong coalesced = new AtomicLong();
+    private final AtomicLong pendingRead = new AtomicLong();
+    private final AtomicLong pendingWritten = new AtomicLong();
+
+    private volatile boolean running;
+    private volatile boolean consumerWaiting;
+    private volatile Thread consumer;
+
+    /**
+     * @param delegate       handler to deliver events to
+     * @param capacity       number of events the ring holds, rounded up to a power of two
+     * @param overflowPolicy what to do when the ring is full
+     */
+    public AsyncEventHandler(EventHandler delegate, int capacity, OverflowPolicy overflowPolicy) {
+        if (delegate == null) {
+            throw new IllegalArgumentException("delegate is null");
+        }
+        if (capacity <= 0) {
+            throw new IllegalArgumentException("capacity must be > 0");
+        }
+        this.delegate = delegate;
+        this.overflowPolicy = overflowPolicy == null ? OverflowPolicy.DROP : overflowPolicy;
+        int size = Integer.highestOneBit(capacity);
+        if (size < capacity) {
+            size <<= 1;
+        }
+        this.slots = new Slot[size];
+        for (int i = 0; i < size; i++) {
+            slots[i] = new Slot();
+        }
+        this.mask = size - 1;
+    }
+
+    /**
+     * Starts the delivery thread
+     */
+    public synchronized void start() {
+        if (running) {
+            return;
+        }
+        running = true;
+        consumer = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                consume();
+            }
+        }, "AsyncEventHandler");
+        consumer.setDaemon(true);
+        consumer.start();
+    }
+
+    /**
+     * Stops the delivery thread after delivering the events already in the ring
+     */
+    public synchronized void stop() {
+        if (!running) {
+            return;
+        }
+        running = false;
+        Thread thread = consumer;
+        LockSupport.unpark(thread);
+        if (thread != Thread.currentThread()) {
+            try {
+                thread.join(1000);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+
+    /**
+     * @return number of events discarded because the ring was full
+     */
+    public long getDroppedCount() {
+        return dropped.get();
+    }
+
+    /**
+     * @return number of BW events folded into another event because the ring was full
+     */
+    public long getCoalescedCount() {
+        return coalesced.get();
+    }
+
+    /**
+     * @return number of events waiting to be delivered
+     */
+    public int getBacklog() {
+        return (int) (claimed.get() - consumed.get());
+    }
+
+    public int getCapacity() {
+        return slots.length;
+    }
+
+    @Override
+    public void circuitStatus(String status, String id, String path) {
+        Slot slot = claim(false);
+        if (slot != null) {
+            slot.type = CIRCUIT;
+            slot.a = status;
+            slot.b = id;
+            slot.c = path;
+            publish(slot);
+        }
+    }
+
+    @Override
+    public void streamStatus(String status, String id, String target) {
+        Slot slot = claim(false);
+        if (slot != null) {
+            slot.type = STREAM;
+            slot.a = status;
+            slot.b = id;
+            slot.c = target;
+            publish(slot);
+        }
+    }
+
+    @Override
+    public void orConnStatus(String status, String orName) {
+        Slot slot = claim(false);
+        if (slot != null) {
+            slot.type = OR_CONN;
+            slot.a = status;
+            slot.b = orName;
+            publish(slot);
+        }
+    }
+
+    @Override
+    public void bandwidthUsed(long read, long written) {
+        Slot slot = claim(true);
+        if (slot == null) {
+            if (overflowPolicy == OverflowPolicy.COALESCE) {
+                pendingRead.addAndGet(read);
+                pendingWritten.addAndGet(written);
+                coalesced.incrementAndGet();
+            }
+            return;
+        }
+        slot.type = BANDWIDTH;
+        slot.x = read + pendingRead.getAndSet(0);
+        slot.y = written + pendingWritten.getAndSet(0);
+        publish(slot);
+    }
+
+    @Override
+    public void newDescriptors(List<String> orList) {
+        Slot slot = claim(false);
+        if (slot != null) {
+            slot.type = DESCRIPTORS;
+            slot.list = orList;
+            publish(slot);
+        }
+    }
+
+    @Override
+    public void message(String severity, String msg) {
+        Slot slot = claim(false);
+        if (slot != null) {
+            slot.type = MESSAGE;
+            slot.a = severity;
+            slot.b = msg;
+            publish(slot);
+        }
+    }
+
+    @Override
+    public void unrecognized(String type, String msg) {
+        Slot slot = claim(false);
+        if (slot != null) {
+            slot.type = UNRECOGNIZED;
+            slot.a = type;
+            slot.b = msg;
+            publish(slot);
+        }
+    }
+
+    @Override
+    public void processOutput(LogEvent.Source source, String line) {
+        Slot slot = claim(false);
+        if (slot != null) {
+            slot.type = PROCESS_OUTPUT;
+            slot.source = source;
+            slot.a = line;
+            publish(slot);
+        }
+    }
+
+    /**
+     * Claims the next free slot
+     *
+     * @param coalescible true if the caller can fold the event into a later one when the ring is full
+     * @return the slot or null if the event should not be published
+     */
+    private Slot claim(boolean coalescible) {
+        while (true) {
+            long sequence = claimed.get();
+            if (sequence - consumed.get() >= slots.length) {
+                if (overflowPolicy == OverflowPolicy.BLOCK && running) {
+                    LockSupport.parkNanos(10000);
+                    continue;
+                }
+                if (!coalescible || overflowPolicy != OverflowPolicy.COALESCE) {
+                    dropped.incrementAndGet();
+                }
+                return null;
+            }
+            if (claimed.compareAndSet(sequence, sequence + 1)) {
+                Slot slot = slots[(int) (sequence & mask)];
+                slot.sequence = sequence;
+                return slot;
+            }
+        }
+    }
+
+    private void publish(Slot slot) {
+        slot.published = slot.sequence;
+        if (consumerWaiting) {
+            LockSupport.unpark(consumer);
+        }
+    }
+
+    private void consume() {
+        long next = consumed.get();
+        while (true) {
+            Slot slot = slots[(int) (next & mask)];
+            if (slot.published != next) {
+                if (!running) {
+                    return;
+                }
+                consumerWaiting = true;
+                if (slot.published != next) {
+                    LockSupport.parkNanos(1000000);
+                }
+                consumerWaiting = false;
+                continue;
+            }
+            try {
+                deliver(slot);
+            } catch (RuntimeException e) {
+                LOG.warn("Event handler failed", e);
+            }
+            slot.clear();
+            consumed.lazySet(++next);
+        }
+    }
+
+    private void deliver(Slot slot) {
+        switch (slot.type) {
+            case CIRCUIT:
+                delegate.circuitStatus(slot.a, slot.b, slot.c);
+                break;
+            case STREAM:
+                delegate.streamStatus(slot.a, slot.b, slot.c);
+                break;
+            case OR_CONN:
+                delegate.orConnStatus(slot.a, slot.b);
+                break;
+            case BANDWIDTH:
+                delegate.bandwidthUsed(slot.x, slot.y);
+                break;
+            case DESCRIPTORS:
+                delegate.newDescriptors(slot.list);
+                break;
+            case MESSAGE:
+                delegate.message(slot.a, slot.b);
+                break;
+            case UNRECOGNIZED:
+                delegate.unrecognized(slot.a, slot.b);
+                break;
+            case PROCESS_OUTPUT:
+                if (delegate instanceof ProcessOutputHandler) {
+                    ((ProcessOutputHandler) delegate).processOutput(slot.source, slot.a);
+                }
+                break;
+            default:
+                break;
+        }
+    }
+
+    /**
+     * Preallocated ring entry. Fields are written by the producer that claimed the slot and only read by the
+     * consumer after the volatile write of <code>published</code>.
+     */
+    private static final class Slot {
+        volatile long published = -1;
+        long sequence;
+        int type;
+        String a;
+        String b;
+        String c;
+        long x;
+        long y;
+        List<String> list;
+        LogEvent.Source source;
+
+        void clear() {
+            a = b = c = null;
+            list = null;
+            source = null;
+        }
+    }
+}
@@ -0,0 +1,256 @@
+/*
+Copyright (c) Microsoft Open Technologies, Inc.
+All Rights Reserved
+Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except in compliance with the
+License. You may obtain a copy of the License at http://www.apache.org/licenses/LICENSE-2.0
+
+THIS CODE IS PROVIDED ON AN *AS IS* BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, EITHER EXPRESS OR IMPLIED,
+INCLUDING WITHOUT LIMITATION ANY IMPLIED WARRANTIES OR CONDITIONS OF TITLE, FITNESS FOR A PARTICULAR PURPOSE,
+MERCHANTABLITY OR NON-INFRINGEMENT.
+
+See the Apache 2 License for the specific language governing permissions and limitations under the License.
+*/
+package com.msopentech.thali.toronionproxy;
+
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Aggregates bandwidth from BW, STREAM_BW and CIRC_BW events into totals, exponentially weighted per second rates
+ * and per minute totals for the last hour.
+ * <p>
+ * BW events arrive once a second, so each event is one rate sample. Updates happen on the event thread; all
+ * getters may be called from any thread.
+ */
+public final class BandwidthMeter extends BaseEventHandler implements EventSubscriber {
+    public static final String STREAM_BW = "STREAM_BW";
+    public static final String CIRC_BW = "CIRC_BW";
+
+    private static final int MINUTES = 60;
+    private static final long MINUTE_MILLIS = 60000;
+
+    private final double alpha;
+    private final EventTokenizer tokenizer = new EventTokenizer();
+
+    private final AtomicLong totalRead = new AtomicLong();
+    private final AtomicLong totalWritten = new AtomicLong();
+    private final AtomicLong streamRead = new AtomicLong();
+    private final AtomicLong streamWritten = new AtomicLong();
+    private final AtomicLong circuitRead = new AtomicLong();
+    private final AtomicLong circuitWritten = new AtomicLong();
+    private volatile double readRate;
+    private volatile double writeRate;
+    private volatile boolean hasSample;
+
+    private final long[] minuteRead = new long[MINUTES];
+    private final long[] minuteWritten = new long[MINUTES];
+    private long currentMinute = -1;
+
+    public BandwidthMeter() {
+        this(0.2);
+    }
+
+    /**
+     * @param alpha weight of the newest sample in the rates, between 0 exclusive and 1 inclusive. Higher values
+     *              follow changes faster.
+     */
+    public BandwidthMeter(double alpha) {
+        if (alpha <= 0 || alpha > 1) {
+            throw new IllegalArgumentException("0 < alpha <= 1");
+        }
+        this.alpha = alpha;
+    }
+
+    @Override
+    public Collection<String> getEventTypes() {
+        return Arrays.asList("BW", STREAM_BW, CIRC_BW);
+    }
+
+    @Override
+    public void bandwidthUsed(long read, long written) {
+        bandwidthUsed(read, written, System.currentTimeMillis());
+    }
+
+    void bandwidthUsed(long read, long written, long now) {
+        totalRead.addAndGet(read);
+        totalWritten.addAndGet(written);
+        if (hasSample) {
+            readRate = readRate + alpha * (read - readRate);
+            writeRate = writeRate + alpha * (written - writeRate);
+        } else {
+            readRate = read;
+            writeRate = written;
+            hasSample = true;
+        }
+        synchronized (minuteRead) {
+            int slot = advanceTo(now / MINUTE_MILLIS);
+            minuteRead[slot] += read;
+            minuteWritten[slot] += written;
+        }
+    }
+
+    /**
+     * Handles <code>STREAM_BW StreamID BytesWritten BytesRead [Time]</code> and
+     * <code>CIRC_BW ID=CircuitID READ=BytesRead WRITTEN=BytesWritten ...</code>
+     */
+    @Override
+    public void unrecognized(String type, String msg) {
+        if (STREAM_BW.equals(type)) {
+            tokenizer.reset(msg);
+            if (tokenizer.next() && tokenizer.next()) {
+                long written = tokenizer.longValue(0);
+                long read = tokenizer.next() ? tokenizer.longValue(0) : 0;
+                streamWritten.addAndGet(written);
+                streamRead.addAndGet(read);
+            }
+        } else if (CIRC_BW.equals(type)) {
+            tokenizer.reset(msg);
+            while (tokenizer.next()) {
+                if (tokenizer.isKey("READ")) {
+                    circuitRead.addAndGet(parseValue());
+                } else if (tokenizer.isKey("WRITTEN")) {
+                    circuitWritten.addAndGet(parseValue());
+                }
+            }
+        }
+    }
+
+    private long parseValue() {
+        String value = tokenizer.value();
+        return value == null ? 0 : EventTokenizer.parseLong(value, 0, value.length(), 0);
+    }
+
+    /**
+     * Moves the per minute ring forward, clearing minutes without traffic. Must hold the minuteRead lock.
+     */
+    private int advanceTo(long minute) {
+        if (currentMinute < 0 || minute - currentMinute >= MINUTES) {
+            for (int i = 0; i < MINUTES; i++) {
+                minuteRead[i] = 0;
+                minuteWritten[i] = 0;
+            }
+        } else {
+            for (long m = currentMinute + 1; m <= minute; m++) {
+                int slot = (int) (m % MINUTES);
+                minuteRead[slot] = 0;
+                minuteWritten[slot] = 0;
+            }
+        }
+        if (minute > currentMinute) {
+            currentMinute = minute;
+        }
+        return (int) (currentMinute % MINUTES);
+    }
+
+    public long getTotalRead() {
+        return totalRead.get();
+    }
+
+    public long getTotalWritten() {
+        return totalWritten.get();
+    }
+
+    /**
+     * @return bytes read per second, exponentially weighted
+     */
+    public double getReadRate() {
+        return readRate;
+    }
+
+    /**
+     * @return bytes written per second, exponentially weighted
+     */
+    public double getWriteRate() {
+        return writeRate;
+    }
+
+    /**
+     * @return bytes read by application streams, from STREAM_BW events
+     */
+    public long getStreamBytesRead() {
+        return streamRead.get();
+    }
+
+    /**
+     * @return bytes written by application streams, from STREAM_BW events
+     */
+    public long getStreamBytesWritten() {
+        return streamWritten.get();
+    }
+
+    /**
+     * @return bytes read on circuits, from CIRC_BW events
+     */
+    public long getCircuitBytesRead() {
+        return circuitRead.get();
+    }
+
+    /**
+     * @return bytes written on circuits, from CIRC_BW events
+     */
+    public long getCircuitBytesWritten() {
+        return circuitWritten.get();
+    }
+
+    /**
+     * @return bytes read in each of the last 60 minutes, oldest first. The last entry is the current minute.
+     */
+    public long[] getReadPerMinute() {
+        return snapshot(minuteRead, System.currentTimeMillis());
+    }
+
+    long[] getReadPerMinute(long now) {
+        return snapshot(minuteRead, now);
+    }
+
+    /**
+     * @return bytes written in each of the last 60 minutes, oldest first. The last entry is the current minute.
+     */
+    public long[] getWrittenPerMinute() {
+        return snapshot(minuteWritten, System.currentTimeMillis());
+    }
+
+    long[] getWrittenPerMinute(long now) {
+        return snapshot(minuteWritten, now);
+    }
+
+    private long[] snapshot(long[] minutes, long now) {
+        long[] result = new long[MINUTES];
+        synchronized (minuteRead) {
+            if (currentMinute < 0) {
+                return result;
+            }
+            advanceTo(now / MINUTE_MILLIS);
+            for (int i = 0; i < MINUTES; i++) {
+                result[i] = minutes[(int) ((currentMinute + 1 + i) % MINUTES)];
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Sends the current rates and totals to the broadcaster
+     */
+    public void broadcast(EventBroadcaster broadcaster) {
+        broadcaster.broadcastBandwidth((long) writeRate, (long) readRate, totalWritten.get(), totalRead.get());
+    }
+
+    /**
+     * Clears all totals, rates and history
+     */
+    public void reset() {
+        totalRead.set(0);
+        totalWritten.set(0);
+        streamRead.set(0);
+        streamWritten.set(0);
+        circuitRead.set(0);
+        circuitWritten.set(0);
+        readRate = 0;
+        writeRate = 0;
+        hasSample = false;
+        synchronized (minuteRead) {
+            currentMinute = -1;
+        }
+    }
+}
@@ -19,22 +19,41 @@ import org.slf4j.LoggerFactory;
 import java.io.PrintWriter;
 import java.io.StringWriter;
 
+/**
+ * Base EventBroadcaster that filters debug output by settings. If {@link TorSettings#getLogRateLimit()} is set,
+ * messages are rate limited and coalesced per severity before they reach broadcastLogMessage, so a chatty tor
+ * cannot flood the receiver.
+ */
 public abstract class BaseEventBroadcaster implements EventBroadcaster {
 
     protected static final Logger LOG = LoggerFactory.getLogger(BaseEventBroadcaster.class);
     protected final TorSettings mSettings;
     protected final Status mStatus;
+    private final LogThrottle debugThrottle;
+    private final LogThrottle noticeThrottle;
+    private final LogThrottle errorThrottle;
 
     public BaseEventBroadcaster(TorSettings settings) {
         mSettings = settings == null ? new DefaultSettings() : settings;
         mStatus = new Status(this);
+        int rateLimit = mSettings.getLogRateLimit();
+        if (rateLimit > 0) {
+            debugThrottle = new LogThrottle(rateLimit);
+            noticeThrottle = new LogThrottle(rateLimit);
+            errorThrottle = new LogThrottle(rateLimit);
+        } else {
+            debugThrottle = noticeThrottle = errorThrottle = null;
+        }
     }
 
     @Override
     public void broadcastDebug(String msg) {
         if (mSettings.hasDebugLogs()) {
             LOG.debug(msg);
-            broadcastLogMessage(msg);
+            String admitted = admit(debugThrottle, msg);
+            if (admitted != null) {
+                broadcastLogMessage(admitted);
+            }
         }
     }
 
@@ -42,11 +61,28 @@ public abstract class BaseEventBroadcaster implements EventBroadcaster {
     public void broadcastException(String msg, Exception e) {
         if (mSettings.hasDebugLogs()) {
             LOG.error(msg, e);
+        }
+        String admitted = admit(errorThrottle, msg);
+        if (admitted == null) {
+            return;
+        }
+        if (mSettings.hasDebugLogs() && e != null) {
             StringWriter sw = new StringWriter();
             e.printStackTrace(new PrintWriter(sw));
-            broadcastLogMessage(msg + '\n' + sw.toString());
+            broadcastLogMessage(admitted + '\n' + sw.toString());
         } else {
-            broadcastLogMessage(msg);
+            broadcastLogMessage(admitted);
+        }
+    }
+
+    /**
+     * Broadcasts a line the tor process wrote to stderr. Unlike broadcastException there is no stack trace to
+     * capture or render.
+     */
+    public void broadcastProcessError(String line) {
+        String admitted = admit(errorThrottle, line);
+        if (admitted != null) {
+            broadcastLogMessage(admitted);
         }
     }
 
@@ -56,8 +92,18 @@ public abstract class BaseEventBroadcaster implements EventBroadcaster {
             if (mSettings.hasDebugLogs()) {
                 LOG.debug(msg);
             }
-            broadcastLogMessage(msg);
+            String admitted = admit(noticeThrottle, msg);
+            if (admitted != null) {
+                broadcastLogMessage(admitted);
+            }
+        }
+    }
+
+    private static String admit(LogThrottle throttle, String msg) {
+        if (throttle == null || msg == null) {
+            return msg;
         }
+        return throttle.admit(msg, System.currentTimeMillis());
     }
 
     @Override
@@ -0,0 +1,59 @@
+/*
+Copyright (c) Microsoft Open Technologies, Inc.
+All Rights Reserved
+Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except in compliance with the
+License. You may obtain a copy of the License at http://www.apache.org/licenses/LICENSE-2.0
+
+THIS CODE IS PROVIDED ON AN *AS IS* BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, EITHER EXPRESS OR IMPLIED,
+INCLUDING WITHOUT LIMITATION ANY IMPLIED WARRANTIES OR CONDITIONS OF TITLE, FITNESS FOR A PARTICULAR PURPOSE,
+MERCHANTABLITY OR NON-INFRINGEMENT.
+
+See the Apache 2 License for the specific language governing permissions and limitations under the License.
+*/
+package com.msopentech.thali.toronionproxy;
+
+import net.freehaven.tor.control.EventHandler;
+
+import java.util.List;
+
+/**
+ * EventHandler with no operation implementations, so handlers interested in only a few events can extend this
+ * class and override just those.
+ */
+public abstract class BaseEventHandler implements EventHandler {
+
+    @Override
+    public void circuitStatus(String status, String id, String path) {
+
+    }
+
+    @Override
+    public void streamStatus(String status, String id, String target) {
+
+    }
+
+    @Override
+    public void orConnStatus(String status, String orName) {
+
+    }
+
+    @Override
+    public void bandwidthUsed(long read, long written) {
+
+    }
+
+    @Override
+    public void newDescriptors(List<String> orList) {
+
+    }
+
+    @Override
+    public void message(String severity, String msg) {
+
+    }
+
+    @Override
+    public void unrecognized(String type, String msg) {
+
+    }
+}
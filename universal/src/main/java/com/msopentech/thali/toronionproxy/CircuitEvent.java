@@ -0,0 +1,128 @@
+/*
+Copyright (c) Microsoft Open Technologies, Inc.
+All Rights Reserved
+Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except in compliance with the
+License. You may obtain a copy of the License at http://www.apache.org/licenses/LICENSE-2.0
+
+THIS CODE IS PROVIDED ON AN *AS IS* BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, EITHER EXPRESS OR IMPLIED,
+INCLUDING WITHOUT LIMITATION ANY IMPLIED WARRANTIES OR CONDITIONS OF TITLE, FITNESS FOR A PARTICULAR PURPOSE,
+MERCHANTABLITY OR NON-INFRINGEMENT.
+
+See the Apache 2 License for the specific language governing permissions and limitations under the License.
+*/
+package com.msopentech.thali.toronionproxy;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * A CIRC event: a circuit changing status. The path is kept in tor's raw "$FINGERPRINT~nickname,..." form and
+ * only split when asked for.
+ */
+public final class CircuitEvent implements TorEvent {
+    public static final String LAUNCHED = "LAUNCHED";
+    public static final String BUILT = "BUILT";
+    public static final String EXTENDED = "EXTENDED";
+    public static final String FAILED = "FAILED";
+    public static final String CLOSED = "CLOSED";
+
+    private final String status;
+    private final String circuitId;
+    private final String path;
+
+    public CircuitEvent(String status, String circuitId, String path) {
+        this.status = status;
+        this.circuitId = circuitId;
+        this.path = path == null ? "" : path;
+    }
+
+    public String getStatus() {
+        return status;
+    }
+
+    public String getCircuitId() {
+        return circuitId;
+    }
+
+    /**
+     * @return path in tor's raw form, empty if the circuit has no hops yet
+     */
+    public String getPath() {
+        return path;
+    }
+
+    public boolean isBuilt() {
+        return BUILT.equals(status);
+    }
+
+    public boolean isFailed() {
+        return FAILED.equals(status);
+    }
+
+    public boolean isClosed() {
+        return CLOSED.equals(status);
+    }
+
+    public int getHopCount() {
+        if (path.isEmpty()) {
+            return 0;
+        }
+        int count = 1;
+        for (int i = 0; i < path.length(); i++) {
+            if (path.charAt(i) == ',') count++;
+        }
+        return count;
+    }
+
+    /**
+     * @return each hop of the path as "$FINGERPRINT~nickname"
+     */
+    public List<String> getHops() {
+        if (path.isEmpty()) {
+            return Collections.emptyList();
+        }
+        List<String> hops = new ArrayList<>(getHopCount());
+        int start = 0;
+        for (int comma = path.indexOf(','); comma >= 0; comma = path.indexOf(',', start)) {
+            hops.add(path.substring(start, comma));
+            start = comma + 1;
+        }
+        hops.add(path.substring(start));
+        return hops;
+    }
+
+    /**
+     * @return the last hop of the path, which is the exit for exit circuits, or null if there are no hops
+     */
+    public String getLastHop() {
+        return path.isEmpty() ? null : path.substring(path.lastIndexOf(',') + 1);
+    }
+
+    /**
+     * @return the fingerprint of the specified hop, without the leading '$' or trailing nickname
+     */
+    public static String fingerprintOf(String hop) {
+        if (hop == null) {
+            return null;
+        }
+        int start = hop.startsWith("$") ? 1 : 0;
+        int end = hop.indexOf('~');
+        if (end < 0) end = hop.indexOf('=');
+        return hop.substring(start, end < 0 ? hop.length() : end);
+    }
+
+    @Override
+    public void deliverTo(TorEventListener listener) {
+        listener.onCircuitEvent(this);
+    }
+
+    @Override
+    public String toString() {
+        return "CircuitEvent{" +
+                "status=" + status +
+                ", id=" + circuitId +
+                ", path=" + path +
+                '}';
+    }
+}
@@ -0,0 +1,283 @@
+/*
+Copyright (c) Microsoft Open Technologies, Inc.
+All Rights Reserved
+Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except in compliance with the
+License. You may obtain a copy of the License at http://www.apache.org/licenses/LICENSE-2.0
+
+THIS CODE IS PROVIDED ON AN *AS IS* BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, EITHER EXPRESS OR IMPLIED,
+INCLUDING WITHOUT LIMITATION ANY IMPLIED WARRANTIES OR CONDITIONS OF TITLE, FITNESS FOR A PARTICULAR PURPOSE,
+MERCHANTABLITY OR NON-INFRINGEMENT.
+
+See the Apache 2 License for the specific language governing permissions and limitations under the License.
+*/
+package com.msopentech.thali.toronionproxy;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Live table of circuits built from CIRC events, with build latency statistics. A circuit is tracked from
+ * its first event until it is CLOSED or FAILED. Build time is measured from LAUNCHED to BUILT, so it is only
+ * recorded for circuits whose LAUNCHED event was seen, not for those already being built when tracking began.
+ * <p>
+ * Besides the cumulative histogram, the most recent builds are kept so that queries such as "circuits built in
+ * the last minute" or "p99 build time over the last five minutes" reflect current guard and relay performance.
+ */
+public final class CircuitRegistry extends BaseTorEventListener implements EventSubscriber {
+    private static final int RECENT_BUILDS = 1024;
+
+    private final ConcurrentMap<String, Circuit> circuits = new ConcurrentHashMap<>();
+    private final LatencyHistogram buildTimes = new LatencyHistogram();
+    private final AtomicLong built = new AtomicLong();
+    private final AtomicLong failed = new AtomicLong();
+
+    // Ring of recent builds, guarded by itself
+    private final long[] recentBuiltAt = new long[RECENT_BUILDS];
+    private final long[] recentBuildMillis = new long[RECENT_BUILDS];
+    private int recentCount;
+    private int recentNext;
+
+    @Override
+    public Collection<String> getEventTypes() {
+        return Collections.singletonList("CIRC");
+    }
+
+    @Override
+    public void onCircuitEvent(CircuitEvent event) {
+        String id = event.getCircuitId();
+        if (id == null) {
+            return;
+        }
+        long now = System.currentTimeMillis();
+        Circuit circuit = circuits.get(id);
+        if (circuit == null) {
+            if (event.isClosed() || event.isFailed()) {
+                if (event.isFailed()) failed.incrementAndGet();
+                return;
+            }
+            circuit = new Circuit(id, CircuitEvent.LAUNCHED.equals(event.getStatus()) ? now : -1);
+            Circuit existing = circuits.putIfAbsent(id, circuit);
+            if (existing != null) circuit = existing;
+        }
+        circuit.update(event.getStatus(), event.getPath(), now);
+
+        if (event.isBuilt() && !circuit.built) {
+            circuit.built = true;
+            built.incrementAndGet();
+            if (circuit.launchedAt < 0) {
+                return;
+            }
+            long buildMillis = now - circuit.launchedAt;
+            circuit.buildMillis = buildMillis;
+            buildTimes.record(buildMillis);
+            synchronized (recentBuiltAt) {
+                recentBuiltAt[recentNext] = now;
+                recentBuildMillis[recentNext] = buildMillis;
+                recentNext = (recentNext + 1) % RECENT_BUILDS;
+                if (recentCount < RECENT_BUILDS) recentCount++;
+            }
+        } else if (event.isFailed()) {
+            failed.incrementAndGet();
+            circuits.remove(id);
+        } else if (event.isClosed()) {
+            circuits.remove(id);
+        }
+    }
+
+    /**
+     * @return snapshot of the circuits that are currently open or being built
+     */
+    public List<Circuit> getCircuits() {
+        return new ArrayList<>(circuits.values());
+    }
+
+    /**
+     * @return circuit with the specified id or null if it is not open
+     */
+    public Circuit getCircuit(String id) {
+        return circuits.get(id);
+    }
+
+    /**
+     * @return number of open circuits that have finished building
+     */
+    public int getBuiltCircuitCount() {
+        int count = 0;
+        for (Circuit circuit : circuits.values()) {
+            if (circuit.isBuilt()) count++;
+        }
+        return count;
+    }
+
+    public long getTotalBuilt() {
+        return built.get();
+    }
+
+    public long getTotalFailed() {
+        return failed.get();
+    }
+
+    /**
+     * @return histogram of every build time since the registry was created or reset
+     */
+    public LatencyHistogram getBuildTimeHistogram() {
+        return buildTimes;
+    }
+
+    /**
+     * @return number of circuits built within the last windowMillis
+     */
+    public int getBuiltSince(long windowMillis) {
+        return recentBuildTimes(windowMillis).length;
+    }
+
+    /**
+     * Build time percentile over the recent builds within the window
+     *
+     * @param percentile between 0 and 100
+     * @return build time in milliseconds, or -1 if no circuit was built within the window
+     */
+    public long getBuildTimePercentile(double percentile, long windowMillis) {
+        long[] times = recentBuildTimes(windowMillis);
+        if (times.length == 0) {
+            return -1;
+        }
+        Arrays.sort(times);
+        int rank = (int) Math.ceil(times.length * Math.min(100, Math.max(0, percentile)) / 100.0);
+        return times[Math.max(0, rank - 1)];
+    }
+
+    private long[] recentBuildTimes(long windowMillis) {
+        long since = System.currentTimeMillis() - windowMillis;
+        synchronized (recentBuiltAt) {
+            long[] result = new long[recentCount];
+            int size = 0;
+            for (int i = 0; i < recentCount; i++) {
+                int index = (recentNext - 1 - i + RECENT_BUILDS) % RECENT_BUILDS;
+                if (recentBuiltAt[index] < since) {
+                    break;
+                }
+                result[size++] = recentBuildMillis[index];
+            }
+            return Arrays.copyOf(result, size);
+        }
+    }
+
+    /**
+     * Clears the circuit table and all statistics, such as when tor is restarted
+     */
+    public void reset() {
+        circuits.clear();
+        buildTimes.reset();
+        built.set(0);
+        failed.set(0);
+        synchronized (recentBuiltAt) {
+            recentCount = 0;
+            recentNext = 0;
+        }
+    }
+
+    /**
+     * A single circuit and its state transitions
+     */
+    public static final class Circuit {
+        private final String id;
+        private final long launchedAt;
+        private final List<Transition> transitions = new ArrayList<>(4);
+        private volatile String status;
+        private volatile String path = "";
+        private volatile long buildMillis = -1;
+        private volatile boolean built;
+
+        private Circuit(String id, long launchedAt) {
+            this.id = id;
+            this.launchedAt = launchedAt;
+        }
+
+        private void update(String status, String path, long at) {
+            this.status = status;
+            if (path != null && !path.isEmpty()) {
+                this.path = path;
+            }
+            synchronized (transitions) {
+                transitions.add(new Transition(status, at));
+            }
+        }
+
+        public String getId() {
+            return id;
+        }
+
+        public String getStatus() {
+            return status;
+        }
+
+        /**
+         * @return path in tor's raw "$FINGERPRINT~nickname,..." form
+         */
+        public String getPath() {
+            return path;
+        }
+
+        public boolean isBuilt() {
+            return built;
+        }
+
+        /**
+         * @return when the LAUNCHED event was seen, or -1 if the circuit was already being built when first seen
+         */
+        public long getLaunchedAt() {
+            return launchedAt;
+        }
+
+        /**
+         * @return milliseconds from LAUNCHED to BUILT, or -1 if not yet built or LAUNCHED was not seen
+         */
+        public long getBuildMillis() {
+            return buildMillis;
+        }
+
+        public List<Transition> getTransitions() {
+            synchronized (transitions) {
+                return Collections.unmodifiableList(new ArrayList<>(transitions));
+            }
+        }
+
+        @Override
+        public String toString() {
+            return "Circuit{" +
+                    "id=" + id +
+                    ", status=" + status +
+                    ", path=" + path +
+                    ", buildMillis=" + buildMillis +
+                    '}';
+        }
+    }
+
+    /**
+     * A circuit status change and when it was seen
+     */
+    public static final class Transition {
+        private final String status;
+        private final long at;
+
+        private Transition(String status, long at) {
+            this.status = status;
+            this.at = at;
+        }
+
+        public String getStatus() {
+            return status;
+        }
+
+        public long getAt() {
+            return at;
+        }
+    }
+}
@@ -0,0 +1,73 @@
+/*
+Copyright (c) Microsoft Open Technologies, Inc.
+All Rights Reserved
+Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except in compliance with the
+License. You may obtain a copy of the License at http://www.apache.org/licenses/LICENSE-2.0
+
+THIS CODE IS PROVIDED ON AN *AS IS* BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, EITHER EXPRESS OR IMPLIED,
+INCLUDING WITHOUT LIMITATION ANY IMPLIED WARRANTIES OR CONDITIONS OF TITLE, FITNESS FOR A PARTICULAR PURPOSE,
+MERCHANTABLITY OR NON-INFRINGEMENT.
+
+See the Apache 2 License for the specific language governing permissions and limitations under the License.
+*/
+package com.msopentech.thali.toronionproxy;
+
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Waits for circuits launched with EXTENDCIRCUIT to be built. Outcomes are recorded for every circuit seen while
+ * registered, so a BUILT event that arrives before the caller learns the circuit id is not missed.
+ */
+final class CircuitWarmUp extends BaseTorEventListener implements EventSubscriber {
+    // Circuit id to true if built, false if it failed or closed first. Guarded by this.
+    private final Map<String, Boolean> outcomes = new HashMap<>();
+
+    @Override
+    public Collection<String> getEventTypes() {
+        return Collections.singletonList("CIRC");
+    }
+
+    @Override
+    public void onCircuitEvent(CircuitEvent event) {
+        if (event.isBuilt()) {
+            record(event.getCircuitId(), true);
+        } else if (event.isFailed() || event.isClosed()) {
+            record(event.getCircuitId(), false);
+        }
+    }
+
+    private synchronized void record(String circuitId, boolean built) {
+        if (circuitId != null && !outcomes.containsKey(circuitId)) {
+            outcomes.put(circuitId, built);
+            notifyAll();
+        }
+    }
+
+    /**
+     * Waits until each of the circuits is built or has failed, or the timeout expires
+     *
+     * @return number of the circuits that were built
+     */
+    synchronized int await(Collection<String> circuitIds, long timeoutMillis) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + timeoutMillis;
+        while (true) {
+            int built = 0;
+            int done = 0;
+            for (String circuitId : circuitIds) {
+                Boolean outcome = outcomes.get(circuitId);
+                if (outcome != null) {
+                    done++;
+                    if (outcome) built++;
+                }
+            }
+            long remaining = deadline - System.currentTimeMillis();
+            if (done == circuitIds.size() || remaining <= 0) {
+                return built;
+            }
+            wait(remaining);
+        }
+    }
+}
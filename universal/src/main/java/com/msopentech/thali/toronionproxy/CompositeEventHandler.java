@@ -0,0 +1,135 @@
+/*
+Copyright (c) Microsoft Open Technologies, Inc.
+All Rights Reserved
+Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except in compliance with the
+License. You may obtain a copy of the License at http://www.apache.org/licenses/LICENSE-2.0
+
+THIS CODE IS PROVIDED ON AN *AS IS* BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, EITHER EXPRESS OR IMPLIED,
+INCLUDING WITHOUT LIMITATION ANY IMPLIED WARRANTIES OR CONDITIONS OF TITLE, FITNESS FOR A PARTICULAR PURPOSE,
+MERCHANTABLITY OR NON-INFRINGEMENT.
+
+See the Apache 2 License for the specific language governing permissions and limitations under the License.
+*/
+package com.msopentech.thali.toronionproxy;
+
+import net.freehaven.tor.control.EventHandler;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+/**
+ * Fans each control port event out to every registered handler. A handler that throws is logged and does not
+ * stop delivery to the others. Tor process output goes to the handlers that take it.
+ */
+public final class CompositeEventHandler implements EventHandler, ProcessOutputHandler {
+    private static final Logger LOG = LoggerFactory.getLogger(CompositeEventHandler.class);
+
+    private final List<EventHandler> handlers = new CopyOnWriteArrayList<>();
+
+    public void addHandler(EventHandler handler) {
+        if (handler == null) {
+            throw new IllegalArgumentException("handler is null");
+        }
+        handlers.add(handler);
+    }
+
+    public boolean removeHandler(EventHandler handler) {
+        return handlers.remove(handler);
+    }
+
+    public List<EventHandler> getHandlers() {
+        return handlers;
+    }
+
+    @Override
+    public void circuitStatus(String status, String id, String path) {
+        for (EventHandler handler : handlers) {
+            try {
+                handler.circuitStatus(status, id, path);
+            } catch (RuntimeException e) {
+                LOG.warn("Event handler failed on circuitStatus", e);
+            }
+        }
+    }
+
+    @Override
+    public void streamStatus(String status, String id, String target) {
+        for (EventHandler handler : handlers) {
+            try {
+                handler.streamStatus(status, id, target);
+            } catch (RuntimeException e) {
+                LOG.warn("Event handler failed on streamStatus", e);
+            }
+        }
+    }
+
+    @Override
+    public void orConnStatus(String status, String orName) {
+        for (EventHandler handler : handlers) {
+            try {
+                handler.orConnStatus(status, orName);
+            } catch (RuntimeException e) {
+                LOG.warn("Event handler failed on orConnStatus", e);
+            }
+        }
+    }
+
+    @Override
+    public void bandwidthUsed(long read, long written) {
+        for (EventHandler handler : handlers) {
+            try {
+                handler.bandwidthUsed(read, written);
+            } catch (RuntimeException e) {
+                LOG.warn("Event handler failed on bandwidthUsed", e);
+            }
+        }
+    }
+
+    @Override
+    public void newDescriptors(List<String> orList) {
+        for (EventHandler handler : handlers) {
+            try {
+                handler.newDescriptors(orList);
+            } catch (RuntimeException e) {
+                LOG.warn("Event handler failed on newDescriptors", e);
+            }
+        }
+    }
+
+    @Override
+    public void message(String severity, String msg) {
+        for (EventHandler handler : handlers) {
+            try {
+                handler.message(severity, msg);
+            } catch (RuntimeException e) {
+                LOG.warn("Event handler failed on message", e);
+            }
+        }
+    }
+
+    @Override
+    public void unrecognized(String type, String msg) {
+        for (EventHandler handler : handlers) {
+            try {
+                handler.unrecognized(type, msg);
+            } catch (RuntimeException e) {
+                LOG.warn("Event handler failed on unrecognized", e);
+            }
+        }
+    }
+
+    @Override
+    public void processOutput(LogEvent.Source source, String line) {
+        for (EventHandler handler : handlers) {
+            if (handler instanceof ProcessOutputHandler) {
+                try {
+                    ((ProcessOutputHandler) handler).processOutput(source, line);
+                } catch (RuntimeException e) {
+                    LOG.warn("Event handler failed on processOutput", e);
+                }
+            }
+        }
+    }
+}
@@ -13,6 +13,11 @@ public class DefaultSettings implements TorSettings {
         return true;
     }
 
+    @Override
+    public int getBandwidthBroadcastInterval() {
+        return 0;
+    }
+
     @Override
     public String dnsPort() {
         return "5400";
@@ -33,6 +38,16 @@ public class DefaultSettings implements TorSettings {
         return null;
     }
 
+    @Override
+    public AsyncEventHandler.OverflowPolicy getEventOverflowPolicy() {
+        return AsyncEventHandler.OverflowPolicy.DROP;
+    }
+
+    @Override
+    public int getEventQueueSize() {
+        return 0;
+    }
+
     @Override
     public String getExitNodes() {
         return null;
@@ -48,6 +63,11 @@ public class DefaultSettings implements TorSettings {
         return new ArrayList<>();
     }
 
+    @Override
+    public int getLogRateLimit() {
+        return 0;
+    }
+
     @Override
     public String getProxyHost() {
         return null;
@@ -98,11 +118,26 @@ public class DefaultSettings implements TorSettings {
         return 9001;
     }
 
+    @Override
+    public int getSaveConfDelay() {
+        return 0;
+    }
+
+    @Override
+    public List<SocksListener> getSocksListeners() {
+        return new ArrayList<>();
+    }
+
     @Override
     public String getSocksPort() {
         return "9050";
     }
 
+    @Override
+    public int getSocksTimeout() {
+        return 0;
+    }
+
     @Override
     public String getVirtualAddressNetwork() {
         return null;
@@ -118,6 +153,16 @@ public class DefaultSettings implements TorSettings {
         return false;
     }
 
+    @Override
+    public boolean hasRelayRecommendations() {
+        return false;
+    }
+
+    @Override
+    public boolean hasControlPortLogEvents() {
+        return true;
+    }
+
     @Override
     public boolean hasCookieAuthentication() {
         return true;
@@ -143,6 +188,11 @@ public class DefaultSettings implements TorSettings {
         return false;
     }
 
+    @Override
+    public boolean hasPersistentHiddenServices() {
+        return true;
+    }
+
     @Override
     public boolean hasReachableAddress() {
         return false;
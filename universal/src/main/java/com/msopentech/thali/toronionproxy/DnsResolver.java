@@ -0,0 +1,357 @@
+/*
+Copyright (c) Microsoft Open Technologies, Inc.
+All Rights Reserved
+Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except in compliance with the
+License. You may obtain a copy of the License at http://www.apache.org/licenses/LICENSE-2.0
+
+THIS CODE IS PROVIDED ON AN *AS IS* BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, EITHER EXPRESS OR IMPLIED,
+INCLUDING WITHOUT LIMITATION ANY IMPLIED WARRANTIES OR CONDITIONS OF TITLE, FITNESS FOR A PARTICULAR PURPOSE,
+MERCHANTABLITY OR NON-INFRINGEMENT.
+
+See the Apache 2 License for the specific language governing permissions and limitations under the License.
+*/
+package com.msopentech.thali.toronionproxy;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.UnknownHostException;
+import java.text.ParseException;
+import java.text.SimpleDateFormat;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Locale;
+import java.util.Map;
+import java.util.TimeZone;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Resolves host names through tor with the RESOLVE control command and caches the answers. Tor answers
+ * asynchronously with ADDRMAP events, <code>ADDRMAP Address NewAddress Expiry [error=...] [EXPIRES="..."]</code>,
+ * delivered by jtorctl through <code>unrecognized</code>.
+ * <p>
+ * Answers are cached until tor's expiry, capped at maxTtl; failures are cached for negativeTtl. Only answers to
+ * lookups made here, or to names already cached, are kept: tor also sends ADDRMAP for the streams of other
+ * clients and for MapAddress entries. The cache holds at most maxEntries names, expired ones being pruned first
+ * when it is full. Concurrent lookups of the same name share a single RESOLVE, which stays pending for as long
+ * as any of them waits. Onion addresses are never resolved: tor resolves them when a stream to them is opened,
+ * so they are passed to SOCKS as they are.
+ * <p>
+ * {@link Utilities}, {@link StreamIsolation} and the HTTP proxy send cached addresses instead of host names when
+ * given a resolver, see {@link #toSocksHost(String)}.
+ */
+public final class DnsResolver extends BaseEventHandler implements EventSubscriber {
+    public static final String EVENT_TYPE = "ADDRMAP";
+
+    /**
+     * Sends RESOLVE for a host name
+     */
+    interface Transport {
+        void resolve(String hostname) throws IOException;
+    }
+
+    private final Transport transport;
+    private final long maxTtlMillis;
+    private final long negativeTtlMillis;
+    private final int maxEntries;
+    private final ConcurrentMap<String, Entry> cache = new ConcurrentHashMap<>();
+    // Guarded by itself
+    private final Map<String, Pending> pending = new HashMap<>();
+    private final AtomicLong hits = new AtomicLong();
+    private final AtomicLong misses = new AtomicLong();
+    private final AtomicLong coalesced = new AtomicLong();
+
+    // Only used on the event thread
+    private final EventTokenizer tokenizer = new EventTokenizer();
+    private final SimpleDateFormat expiresFormat = new SimpleDateFormat("yyyy-MM-dd HH:mm:ss", Locale.US);
+
+    DnsResolver(Transport transport, long maxTtlMillis, long negativeTtlMillis, int maxEntries) {
+        if (maxEntries <= 0) {
+            throw new IllegalArgumentException("maxEntries must be > 0");
+        }
+        this.transport = transport;
+        this.maxTtlMillis = maxTtlMillis;
+        this.negativeTtlMillis = negativeTtlMillis;
+        this.maxEntries = maxEntries;
+        expiresFormat.setTimeZone(TimeZone.getTimeZone("UTC"));
+    }
+
+    @Override
+    public Collection<String> getEventTypes() {
+        return Collections.singletonList(EVENT_TYPE);
+    }
+
+    /**
+     * Resolves the host name through tor, from the cache if possible
+     *
+     * @throws UnknownHostException if tor could not resolve the name, or it is an onion address
+     * @throws IOException          if the RESOLVE command failed or no answer came within the timeout
+     */
+    public InetAddress resolve(String hostname, long timeout, TimeUnit unit)
+            throws IOException, InterruptedException {
+        if (isIpLiteral(hostname)) {
+            return InetAddress.getByName(hostname);
+        }
+        if (isOnion(hostname)) {
+            throw new UnknownHostException(hostname + ": onion addresses are resolved by tor when connecting");
+        }
+        if (!isValidHostname(hostname)) {
+            throw new UnknownHostException(hostname + ": invalid host name");
+        }
+        String key = hostname.toLowerCase(Locale.US);
+        Entry entry = cache.get(key);
+        if (entry != null && entry.isFresh()) {
+            hits.incrementAndGet();
+            return entry.get(hostname);
+        }
+        misses.incrementAndGet();
+
+        Pending lookup;
+        boolean first;
+        synchronized (pending) {
+            lookup = pending.get(key);
+            first = lookup == null;
+            if (first) {
+                lookup = new Pending();
+                pending.put(key, lookup);
+            } else {
+                coalesced.incrementAndGet();
+            }
+            lookup.waiters++;
+        }
+        try {
+            if (first) {
+                try {
+                    transport.resolve(hostname);
+                } catch (IOException e) {
+                    removePending(key, lookup);
+                    lookup.latch.countDown();
+                    throw e;
+                }
+            }
+            if (!lookup.latch.await(timeout, unit)) {
+                throw new IOException("Timed out resolving " + hostname);
+            }
+        } finally {
+            leave(key, lookup);
+        }
+        if (lookup.entry == null) {
+            throw new IOException("RESOLVE failed for " + hostname);
+        }
+        return lookup.entry.get(hostname);
+    }
+
+    /**
+     * Stops waiting for the lookup, dropping it once no one waits for it any more, so that a late answer is only
+     * discarded when nobody needs it
+     */
+    private void leave(String key, Pending lookup) {
+        synchronized (pending) {
+            if (--lookup.waiters == 0) {
+                removePending(key, lookup);
+            }
+        }
+    }
+
+    private void removePending(String key, Pending lookup) {
+        synchronized (pending) {
+            if (pending.get(key) == lookup) {
+                pending.remove(key);
+            }
+        }
+    }
+
+    /**
+     * Returns the host to put in a SOCKS request: the cached address if there is a fresh one, so that the exit
+     * does not have to resolve the name again, otherwise the name itself for tor to resolve
+     */
+    public String toSocksHost(String hostname) {
+        if (hostname == null || isOnion(hostname)) {
+            return hostname;
+        }
+        Entry entry = cache.get(hostname.toLowerCase(Locale.US));
+        if (entry != null && entry.address != null && entry.isFresh()) {
+            hits.incrementAndGet();
+            return entry.address.getHostAddress();
+        }
+        return hostname;
+    }
+
+    @Override
+    public void unrecognized(String type, String msg) {
+        if (!EVENT_TYPE.equals(type)) {
+            return;
+        }
+        tokenizer.reset(msg);
+        if (!tokenizer.next()) {
+            return;
+        }
+        String hostname = tokenizer.token();
+        if (!tokenizer.next()) {
+            return;
+        }
+        String newAddress = tokenizer.token();
+        String key = hostname.toLowerCase(Locale.US);
+        Pending lookup;
+        synchronized (pending) {
+            lookup = pending.remove(key);
+        }
+        if (lookup == null && !cache.containsKey(key)) {
+            return;
+        }
+        String error = tokenizer.find("error");
+        String expires = tokenizer.reset(msg).find("EXPIRES");
+
+        long now = System.currentTimeMillis();
+        Entry entry;
+        if (error != null || !isIpLiteral(newAddress)) {
+            entry = new Entry(null, now + negativeTtlMillis);
+        } else {
+            try {
+                entry = new Entry(InetAddress.getByName(newAddress), now + ttl(expires, now));
+            } catch (UnknownHostException e) {
+                entry = new Entry(null, now + negativeTtlMillis);
+            }
+        }
+        if (!cache.containsKey(key) && cache.size() >= maxEntries) {
+            prune(now);
+        }
+        cache.put(key, entry);
+        if (lookup != null) {
+            lookup.entry = entry;
+            lookup.latch.countDown();
+        }
+    }
+
+    /**
+     * Drops expired entries and, if the cache is still full, as many others as needed to make room for one more
+     */
+    private void prune(long now) {
+        Iterator<Entry> entries = cache.values().iterator();
+        while (entries.hasNext()) {
+            if (entries.next().expiresAt <= now) {
+                entries.remove();
+            }
+        }
+        entries = cache.values().iterator();
+        while (cache.size() >= maxEntries && entries.hasNext()) {
+            entries.next();
+            entries.remove();
+        }
+    }
+
+    private long ttl(String expires, long now) {
+        if (expires == null || "NEVER".equals(expires)) {
+            return maxTtlMillis;
+        }
+        try {
+            long ttl = expiresFormat.parse(expires).getTime() - now;
+            return Math.max(0, Math.min(ttl, maxTtlMillis));
+        } catch (ParseException e) {
+            return maxTtlMillis;
+        }
+    }
+
+    public int getCacheSize() {
+        return cache.size();
+    }
+
+    public long getHitCount() {
+        return hits.get();
+    }
+
+    public long getMissCount() {
+        return misses.get();
+    }
+
+    /**
+     * @return number of lookups that waited on a RESOLVE already sent for the same name
+     */
+    public long getCoalescedCount() {
+        return coalesced.get();
+    }
+
+    public void clear() {
+        cache.clear();
+    }
+
+    static boolean isOnion(String hostname) {
+        return hostname.regionMatches(true, hostname.length() - 6, ".onion", 0, 6);
+    }
+
+    /**
+     * Only letters, digits, '-', '_' and '.' are accepted, which also keeps the name from breaking the command
+     */
+    static boolean isValidHostname(String hostname) {
+        if (hostname.isEmpty() || hostname.length() > 253) {
+            return false;
+        }
+        for (int i = 0; i < hostname.length(); i++) {
+            char c = hostname.charAt(i);
+            if (!(c >= 'a' && c <= 'z' || c >= 'A' && c <= 'Z' || c >= '0' && c <= '9' || c == '-' || c == '_'
+                    || c == '.')) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * @return true for IPv4 dotted quads and IPv6 literals, which InetAddress parses without a lookup
+     */
+    static boolean isIpLiteral(String address) {
+        if (address.indexOf(':') >= 0) {
+            for (int i = 0; i < address.length(); i++) {
+                char c = address.charAt(i);
+                if (!(c >= '0' && c <= '9' || c >= 'a' && c <= 'f' || c >= 'A' && c <= 'F' || c == ':' || c == '.'
+                        || c == '[' || c == ']')) {
+                    return false;
+                }
+            }
+            return true;
+        }
+        int dots = 0;
+        for (int i = 0; i < address.length(); i++) {
+            char c = address.charAt(i);
+            if (c == '.') {
+                dots++;
+            } else if (c < '0' || c > '9') {
+                return false;
+            }
+        }
+        return dots == 3;
+    }
+
+    private static final class Entry {
+        final InetAddress address;
+        final long expiresAt;
+
+        Entry(InetAddress address, long expiresAt) {
+            this.address = address;
+            this.expiresAt = expiresAt;
+        }
+
+        boolean isFresh() {
+            return System.currentTimeMillis() < expiresAt;
+        }
+
+        InetAddress get(String hostname) throws UnknownHostException {
+            if (address == null) {
+                throw new UnknownHostException(hostname);
+            }
+            return address;
+        }
+    }
+
+    private static final class Pending {
+        final CountDownLatch latch = new CountDownLatch(1);
+        volatile Entry entry;
+        // Guarded by pending
+        int waiters;
+    }
+}
@@ -0,0 +1,63 @@
+/*
+Copyright (c) Microsoft Open Technologies, Inc.
+All Rights Reserved
+Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except in compliance with the
+License. You may obtain a copy of the License at http://www.apache.org/licenses/LICENSE-2.0
+
+THIS CODE IS PROVIDED ON AN *AS IS* BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, EITHER EXPRESS OR IMPLIED,
+INCLUDING WITHOUT LIMITATION ANY IMPLIED WARRANTIES OR CONDITIONS OF TITLE, FITNESS FOR A PARTICULAR PURPOSE,
+MERCHANTABLITY OR NON-INFRINGEMENT.
+
+See the Apache 2 License for the specific language governing permissions and limitations under the License.
+*/
+package com.msopentech.thali.toronionproxy;
+
+/**
+ * An onion service created through ADD_ONION. It only exists in the memory of the running tor process and is
+ * removed when the control connection closes or <code>OnionProxyManager.removeEphemeralHiddenService</code> is
+ * called.
+ */
+public final class EphemeralHiddenService {
+
+    private final String serviceId;
+    private final String privateKey;
+
+    public EphemeralHiddenService(String serviceId, String privateKey) {
+        if (serviceId == null || serviceId.isEmpty()) {
+            throw new IllegalArgumentException("serviceId is empty");
+        }
+        this.serviceId = serviceId;
+        this.privateKey = privateKey;
+    }
+
+    /**
+     * @return service id, the onion address without the ".onion" suffix
+     */
+    public String getServiceId() {
+        return serviceId;
+    }
+
+    /**
+     * @return onion address in the form X.onion
+     */
+    public String getOnionAddress() {
+        return serviceId + ".onion";
+    }
+
+    /**
+     * Private key in the form "ED25519-V3:base64". Store this and pass it back in to republish the service under
+     * the same address.
+     *
+     * @return private key of the service
+     */
+    public String getPrivateKey() {
+        return privateKey;
+    }
+
+    @Override
+    public String toString() {
+        return "EphemeralHiddenService{" +
+                "serviceId=" + serviceId +
+                '}';
+    }
+}
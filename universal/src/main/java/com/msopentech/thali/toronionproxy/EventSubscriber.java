@@ -0,0 +1,27 @@
+/*
+Copyright (c) Microsoft Open Technologies, Inc.
+All Rights Reserved
+Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except in compliance with the
+License. You may obtain a copy of the License at http://www.apache.org/licenses/LICENSE-2.0
+
+THIS CODE IS PROVIDED ON AN *AS IS* BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, EITHER EXPRESS OR IMPLIED,
+INCLUDING WITHOUT LIMITATION ANY IMPLIED WARRANTIES OR CONDITIONS OF TITLE, FITNESS FOR A PARTICULAR PURPOSE,
+MERCHANTABLITY OR NON-INFRINGEMENT.
+
+See the Apache 2 License for the specific language governing permissions and limitations under the License.
+*/
+package com.msopentech.thali.toronionproxy;
+
+import java.util.Collection;
+
+/**
+ * Implemented by event handlers and listeners that only need some control port event types. The manager
+ * subscribes to the union of the types its consumers need and updates the subscription with SETEVENTS as they
+ * are added or removed. Event handlers that do not implement this interface receive every default event type.
+ */
+public interface EventSubscriber {
+    /**
+     * @return control port event types, such as CIRC or BW, this consumer needs
+     */
+    Collection<String> getEventTypes();
+}
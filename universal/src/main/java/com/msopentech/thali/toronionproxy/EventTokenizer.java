@@ -0,0 +1,155 @@
+/*
+Copyright (c) Microsoft Open Technologies, Inc.
+All Rights Reserved
+Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except in compliance with the
+License. You may obtain a copy of the License at http://www.apache.org/licenses/LICENSE-2.0
+
+THIS CODE IS PROVIDED ON AN *AS IS* BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, EITHER EXPRESS OR IMPLIED,
+INCLUDING WITHOUT LIMITATION ANY IMPLIED WARRANTIES OR CONDITIONS OF TITLE, FITNESS FOR A PARTICULAR PURPOSE,
+MERCHANTABLITY OR NON-INFRINGEMENT.
+
+See the Apache 2 License for the specific language governing permissions and limitations under the License.
+*/
+package com.msopentech.thali.toronionproxy;
+
+/**
+ * Splits a control port event line into space separated tokens without copying it. The tokenizer only tracks the
+ * bounds of the current token; a String is only allocated when the caller asks for one. Double quoted values, as
+ * used in KEY="some value" arguments, are kept as a single token.
+ * <p>
+ * Instances are reusable through {@link #reset(String)} but are not thread safe.
+ */
+public final class EventTokenizer {
+    private String line;
+    private int position;
+    private int start;
+    private int end;
+
+    public EventTokenizer reset(String line) {
+        this.line = line == null ? "" : line;
+        this.position = 0;
+        this.start = 0;
+        this.end = 0;
+        return this;
+    }
+
+    /**
+     * Advances to the next token
+     *
+     * @return true if there is a token, false at the end of the line
+     */
+    public boolean next() {
+        int length = line.length();
+        while (position < length && line.charAt(position) == ' ') {
+            position++;
+        }
+        if (position >= length) {
+            start = end = length;
+            return false;
+        }
+        start = position;
+        boolean quoted = false;
+        while (position < length) {
+            char c = line.charAt(position);
+            if (c == '"' && (position == start || line.charAt(position - 1) != '\\')) {
+                quoted = !quoted;
+            } else if (c == ' ' && !quoted) {
+                break;
+            }
+            position++;
+        }
+        end = position;
+        return true;
+    }
+
+    /**
+     * @return the current token, allocating a new String
+     */
+    public String token() {
+        return line.substring(start, end);
+    }
+
+    public int length() {
+        return end - start;
+    }
+
+    public boolean tokenEquals(String value) {
+        return value.length() == end - start && line.regionMatches(start, value, 0, value.length());
+    }
+
+    /**
+     * @return true if the current token is a KEY=value argument with the specified key
+     */
+    public boolean isKey(String key) {
+        int keyLength = key.length();
+        return end - start > keyLength && line.charAt(start + keyLength) == '='
+                && line.regionMatches(start, key, 0, keyLength);
+    }
+
+    /**
+     * Returns the value of the current KEY=value token, without surrounding quotes
+     */
+    public String value() {
+        int equals = line.indexOf('=', start);
+        if (equals < 0 || equals >= end) {
+            return null;
+        }
+        int valueStart = equals + 1;
+        int valueEnd = end;
+        if (valueEnd - valueStart >= 2 && line.charAt(valueStart) == '"' && line.charAt(valueEnd - 1) == '"') {
+            valueStart++;
+            valueEnd--;
+        }
+        return line.substring(valueStart, valueEnd);
+    }
+
+    /**
+     * Parses the current token as a decimal number without allocating
+     *
+     * @return the number or the default value if the token is not a number
+     */
+    public long longValue(long defaultValue) {
+        return parseLong(line, start, end, defaultValue);
+    }
+
+    /**
+     * @return the rest of the line after the current token, without leading spaces
+     */
+    public String rest() {
+        int length = line.length();
+        int restStart = end;
+        while (restStart < length && line.charAt(restStart) == ' ') {
+            restStart++;
+        }
+        return line.substring(restStart);
+    }
+
+    /**
+     * Scans the remainder of the line for KEY=value and returns the value
+     *
+     * @return the value or null if the key is not present
+     */
+    public String find(String key) {
+        while (next()) {
+            if (isKey(key)) {
+                return value();
+            }
+        }
+        return null;
+    }
+
+    static long parseLong(CharSequence s, int start, int end, long defaultValue) {
+        if (start >= end) {
+            return defaultValue;
+        }
+        long result = 0;
+        for (int i = start; i < end; i++) {
+            char c = s.charAt(i);
+            if (c < '0' || c > '9') {
+                return defaultValue;
+            }
+            result = result * 10 + (c - '0');
+        }
+        return result;
+    }
+}
@@ -0,0 +1,152 @@
+/*
+Copyright (c) Microsoft Open Technologies, Inc.
+All Rights Reserved
+Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except in compliance with the
+License. You may obtain a copy of the License at http://www.apache.org/licenses/LICENSE-2.0
+
+THIS CODE IS PROVIDED ON AN *AS IS* BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, EITHER EXPRESS OR IMPLIED,
+INCLUDING WITHOUT LIMITATION ANY IMPLIED WARRANTIES OR CONDITIONS OF TITLE, FITNESS FOR A PARTICULAR PURPOSE,
+MERCHANTABLITY OR NON-INFRINGEMENT.
+
+See the Apache 2 License for the specific language governing permissions and limitations under the License.
+*/
+package com.msopentech.thali.toronionproxy;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+
+/**
+ * Parsed value of the ExitNodes option: a comma separated list of fingerprints, nicknames, country codes in braces
+ * and IPv4 addresses or ranges. Used to find circuits whose exit no longer satisfies a new ExitNodes value.
+ */
+final class ExitNodeSpec {
+    private final List<String> fingerprints = new ArrayList<>();
+    private final List<String> nicknames = new ArrayList<>();
+    private final List<String> countries = new ArrayList<>();
+    private final List<long[]> ranges = new ArrayList<>();
+
+    ExitNodeSpec(String exitNodes) {
+        for (String entry : exitNodes.split(",")) {
+            String item = entry.trim();
+            if (item.isEmpty()) {
+                continue;
+            }
+            if (item.startsWith("{") && item.endsWith("}")) {
+                countries.add(item.substring(1, item.length() - 1).toLowerCase(Locale.US));
+            } else if (item.startsWith("$")) {
+                fingerprints.add(CircuitEvent.fingerprintOf(item).toUpperCase(Locale.US));
+            } else if (item.length() == 40 && isHex(item)) {
+                fingerprints.add(item.toUpperCase(Locale.US));
+            } else if (Character.isDigit(item.charAt(0))) {
+                long[] range = parseRange(item);
+                if (range != null) {
+                    ranges.add(range);
+                }
+            } else {
+                nicknames.add(item.toLowerCase(Locale.US));
+            }
+        }
+    }
+
+    /**
+     * @return true if matching needs the country of the exit
+     */
+    boolean needsCountry() {
+        return !countries.isEmpty();
+    }
+
+    /**
+     * @return true if matching needs the address of the exit
+     */
+    boolean needsAddress() {
+        return !countries.isEmpty() || !ranges.isEmpty();
+    }
+
+    /**
+     * @param fingerprint fingerprint of the exit, without '$'
+     * @param nickname    nickname of the exit or null if unknown
+     * @param address     IPv4 address of the exit or null if unknown
+     * @param country     two letter country code of the exit or null if unknown
+     * @return true if the exit is allowed. Entries that aren't understood, such as IPv6 ranges, match nothing, and
+     * exits whose needed details are unknown are not allowed, so doubtful circuits are closed rather than kept.
+     */
+    boolean matches(String fingerprint, String nickname, String address, String country) {
+        if (fingerprint != null && fingerprints.contains(fingerprint.toUpperCase(Locale.US))) {
+            return true;
+        }
+        if (nickname != null && nicknames.contains(nickname.toLowerCase(Locale.US))) {
+            return true;
+        }
+        if (country != null && countries.contains(country.toLowerCase(Locale.US))) {
+            return true;
+        }
+        if (address != null && !ranges.isEmpty()) {
+            long ip = parseIpv4(address);
+            if (ip >= 0) {
+                for (long[] range : ranges) {
+                    if ((ip & range[1]) == range[0]) {
+                        return true;
+                    }
+                }
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Parses a.b.c.d, a.b.c.d/bits or a.b.c.d/mask into {network, mask}
+     */
+    private static long[] parseRange(String item) {
+        int slash = item.indexOf('/');
+        long ip = parseIpv4(slash < 0 ? item : item.substring(0, slash));
+        if (ip < 0) {
+            return null;
+        }
+        long mask = 0xFFFFFFFFL;
+        if (slash >= 0) {
+            String suffix = item.substring(slash + 1);
+            if (suffix.indexOf('.') >= 0) {
+                mask = parseIpv4(suffix);
+                if (mask < 0) {
+                    return null;
+                }
+            } else {
+                long bits = EventTokenizer.parseLong(suffix, 0, suffix.length(), -1);
+                if (bits < 0 || bits > 32) {
+                    return null;
+                }
+                mask = bits == 0 ? 0 : (0xFFFFFFFFL << (32 - bits)) & 0xFFFFFFFFL;
+            }
+        }
+        return new long[]{ip & mask, mask};
+    }
+
+    /**
+     * @return the address as an unsigned 32 bit value or -1 if it is not a dotted quad
+     */
+    static long parseIpv4(String address) {
+        String[] parts = address.split("\\.");
+        if (parts.length != 4) {
+            return -1;
+        }
+        long ip = 0;
+        for (String part : parts) {
+            long octet = EventTokenizer.parseLong(part, 0, part.length(), -1);
+            if (octet < 0 || octet > 255) {
+                return -1;
+            }
+            ip = (ip << 8) | octet;
+        }
+        return ip;
+    }
+
+    private static boolean isHex(String s) {
+        for (int i = 0; i < s.length(); i++) {
+            if (Character.digit(s.charAt(i), 16) < 0) {
+                return false;
+            }
+        }
+        return true;
+    }
+}
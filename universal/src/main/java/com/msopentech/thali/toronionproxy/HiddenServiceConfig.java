@@ -0,0 +1,137 @@
+/*
+Copyright (c) Microsoft Open Technologies, Inc.
+All Rights Reserved
+Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except in compliance with the
+License. You may obtain a copy of the License at http://www.apache.org/licenses/LICENSE-2.0
+
+THIS CODE IS PROVIDED ON AN *AS IS* BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, EITHER EXPRESS OR IMPLIED,
+INCLUDING WITHOUT LIMITATION ANY IMPLIED WARRANTIES OR CONDITIONS OF TITLE, FITNESS FOR A PARTICULAR PURPOSE,
+MERCHANTABLITY OR NON-INFRINGEMENT.
+
+See the Apache 2 License for the specific language governing permissions and limitations under the License.
+*/
+package com.msopentech.thali.toronionproxy;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Describes a single hidden service: the directory tor keeps its keys and hostname file in, and the port
+ * mappings it should relay. Used with <code>OnionProxyManager.publishHiddenServices</code> to publish many
+ * services in one round trip.
+ */
+public final class HiddenServiceConfig {
+
+    private static final String HOSTNAME_FILE_NAME = "hostname";
+
+    private final File hiddenServiceDir;
+    private final List<String> portLines;
+
+    private HiddenServiceConfig(File hiddenServiceDir, List<String> portLines) {
+        this.hiddenServiceDir = hiddenServiceDir;
+        this.portLines = Collections.unmodifiableList(portLines);
+    }
+
+    /**
+     * Directory that holds the keys and hostname file for this service. Every hidden service must have a
+     * separate directory.
+     */
+    public File getHiddenServiceDir() {
+        return hiddenServiceDir;
+    }
+
+    /**
+     * The file that tor writes the onion address of this service to
+     */
+    public File getHostnameFile() {
+        return new File(hiddenServiceDir, HOSTNAME_FILE_NAME);
+    }
+
+    /**
+     * Port mappings in the form "VIRTPORT TARGET", as used by the HiddenServicePort option
+     */
+    public List<String> getPortLines() {
+        return portLines;
+    }
+
+    /**
+     * Returns the config lines for this service in the order tor expects them: the HiddenServiceDir
+     * followed by each of its HiddenServicePort lines.
+     */
+    List<String> toConfigLines() {
+        List<String> lines = new ArrayList<>(portLines.size() + 1);
+        lines.add("HiddenServiceDir " + hiddenServiceDir.getAbsolutePath());
+        for (String portLine : portLines) {
+            lines.add("HiddenServicePort " + portLine);
+        }
+        return lines;
+    }
+
+    @Override
+    public String toString() {
+        return "HiddenServiceConfig{" +
+                "hiddenServiceDir=" + hiddenServiceDir +
+                ", portLines=" + portLines +
+                '}';
+    }
+
+    /**
+     * Builder for HiddenServiceConfig.
+     */
+    public static class Builder {
+
+        private final File hiddenServiceDir;
+        private final List<String> portLines = new ArrayList<>();
+
+        /**
+         * @param hiddenServiceDir directory for the keys and hostname file of this service
+         * @throws IllegalArgumentException if hiddenServiceDir is null
+         */
+        public Builder(File hiddenServiceDir) {
+            if (hiddenServiceDir == null) {
+                throw new IllegalArgumentException("hiddenServiceDir is null");
+            }
+            this.hiddenServiceDir = hiddenServiceDir;
+        }
+
+        /**
+         * Relays connections on the hidden service port to the local port on 127.0.0.1
+         *
+         * @param hiddenServicePort The port that the hidden service will accept connections on
+         * @param localPort         The local port that the hidden service will relay connections to
+         * @return builder
+         */
+        public Builder port(int hiddenServicePort, int localPort) {
+            return port(hiddenServicePort, "127.0.0.1:" + localPort);
+        }
+
+        /**
+         * Relays connections on the hidden service port to the specified target, which may be an addr:port
+         * or a unix socket as described for the HiddenServicePort option.
+         *
+         * @param hiddenServicePort The port that the hidden service will accept connections on
+         * @param target            where to relay connections to
+         * @return builder
+         */
+        public Builder port(int hiddenServicePort, String target) {
+            if (target == null || target.isEmpty()) {
+                throw new IllegalArgumentException("target is empty");
+            }
+            portLines.add(hiddenServicePort + " " + target);
+            return this;
+        }
+
+        /**
+         * @return hidden service config
+         * @throws IllegalStateException if no ports have been added
+         */
+        public HiddenServiceConfig build() {
+            if (portLines.isEmpty()) {
+                throw new IllegalStateException("At least one port is required for a hidden service");
+            }
+            return new HiddenServiceConfig(hiddenServiceDir, new ArrayList<>(portLines));
+        }
+    }
+}
@@ -0,0 +1,238 @@
+/*
+Copyright (c) Microsoft Open Technologies, Inc.
+All Rights Reserved
+Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except in compliance with the
+License. You may obtain a copy of the License at http://www.apache.org/licenses/LICENSE-2.0
+
+THIS CODE IS PROVIDED ON AN *AS IS* BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, EITHER EXPRESS OR IMPLIED,
+INCLUDING WITHOUT LIMITATION ANY IMPLIED WARRANTIES OR CONDITIONS OF TITLE, FITNESS FOR A PARTICULAR PURPOSE,
+MERCHANTABLITY OR NON-INFRINGEMENT.
+
+See the Apache 2 License for the specific language governing permissions and limitations under the License.
+*/
+package com.msopentech.thali.toronionproxy;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Tracks hidden service descriptor uploads from HS_DESC events. A service is only reachable by clients once its
+ * descriptor has been uploaded to at least one HSDir, which can be well after tor has written the hostname file
+ * or replied to ADD_ONION.
+ * <p>
+ * HS_DESC events have the form
+ * <code>HS_DESC Action HSAddress AuthType HsDir [DescriptorID] [REASON=...]</code>
+ * and are delivered by jtorctl through <code>unrecognized</code>.
+ */
+public final class HiddenServiceDescriptorTracker extends BaseEventHandler implements EventSubscriber {
+    private static final Logger LOG = LoggerFactory.getLogger(HiddenServiceDescriptorTracker.class);
+
+    public static final String EVENT_TYPE = "HS_DESC";
+
+    private final ConcurrentMap<String, DescriptorUpload> uploads = new ConcurrentHashMap<>();
+
+    @Override
+    public Collection<String> getEventTypes() {
+        return Collections.singletonList(EVENT_TYPE);
+    }
+
+    /**
+     * Starts tracking the specified service, so that upload timings are measured from now
+     *
+     * @param onionAddress service id with or without the ".onion" suffix
+     * @return upload state of the service
+     */
+    public DescriptorUpload track(String onionAddress) {
+        String serviceId = toServiceId(onionAddress);
+        DescriptorUpload upload = new DescriptorUpload(serviceId);
+        DescriptorUpload existing = uploads.putIfAbsent(serviceId, upload);
+        return existing == null ? upload : existing;
+    }
+
+    /**
+     * Starts tracking the specified service afresh, replacing any earlier state. Call when the service is
+     * (re)published, so that an upload from an earlier run is not taken as the new descriptor being reachable.
+     *
+     * @param onionAddress service id with or without the ".onion" suffix
+     * @return upload state of the service
+     */
+    public DescriptorUpload published(String onionAddress) {
+        String serviceId = toServiceId(onionAddress);
+        DescriptorUpload upload = new DescriptorUpload(serviceId);
+        DescriptorUpload replaced = uploads.put(serviceId, upload);
+        if (replaced != null) {
+            // Waiters move on to the new upload
+            replaced.end();
+        }
+        return upload;
+    }
+
+    /**
+     * Stops tracking the specified service. Threads waiting for it to become reachable return false.
+     */
+    public void untrack(String onionAddress) {
+        DescriptorUpload upload = uploads.remove(toServiceId(onionAddress));
+        if (upload != null) {
+            upload.end();
+        }
+    }
+
+    /**
+     * Stops tracking all services, for when tor stops and every descriptor goes with it. Threads waiting for a
+     * service to become reachable return false.
+     */
+    public void clear() {
+        Iterator<DescriptorUpload> iterator = uploads.values().iterator();
+        while (iterator.hasNext()) {
+            DescriptorUpload upload = iterator.next();
+            iterator.remove();
+            upload.end();
+        }
+    }
+
+    /**
+     * @return upload state of the service or null if it is not tracked
+     */
+    public DescriptorUpload getUpload(String onionAddress) {
+        return uploads.get(toServiceId(onionAddress));
+    }
+
+    /**
+     * Waits until the descriptor of the service has been uploaded to at least one HSDir. If the service is
+     * published again meanwhile, waits for the new descriptor instead.
+     *
+     * @param onionAddress service id with or without the ".onion" suffix
+     * @return true if the service is reachable, false if the timeout expired first or the service is not, or no
+     * longer, tracked
+     */
+    public boolean awaitReachable(String onionAddress, long timeout, TimeUnit unit) throws InterruptedException {
+        String serviceId = toServiceId(onionAddress);
+        long deadline = System.nanoTime() + unit.toNanos(timeout);
+        while (true) {
+            DescriptorUpload upload = uploads.get(serviceId);
+            if (upload == null) {
+                return false;
+            }
+            if (!upload.latch.await(deadline - System.nanoTime(), TimeUnit.NANOSECONDS)) {
+                return false;
+            }
+            if (upload.isReachable()) {
+                return true;
+            }
+            // Replaced or untracked: look again
+        }
+    }
+
+    @Override
+    public void unrecognized(String type, String msg) {
+        if (!EVENT_TYPE.equals(type) || msg == null) {
+            return;
+        }
+        String[] tokens = msg.split(" ");
+        if (tokens.length < 2) {
+            return;
+        }
+        String action = tokens[0];
+        String serviceId = tokens[1];
+        // Only services that were published or waited on are tracked, so events for other services, such as
+        // the throwaway ones used to generate keys, can't grow the map
+        DescriptorUpload upload = uploads.get(serviceId);
+        if (upload == null) {
+            return;
+        }
+        if ("UPLOADED".equals(action)) {
+            upload.uploaded();
+            if (upload.getUploadCount() == 1) {
+                LOG.info("Hidden service descriptor uploaded: " + serviceId + ", time = "
+                        + upload.getTimeToFirstUpload() + "ms");
+            }
+        } else if ("FAILED".equals(action)) {
+            upload.failures.incrementAndGet();
+        }
+    }
+
+    private static String toServiceId(String onionAddress) {
+        return onionAddress.endsWith(".onion") ?
+                onionAddress.substring(0, onionAddress.length() - ".onion".length()) : onionAddress;
+    }
+
+    /**
+     * Upload state of a single hidden service descriptor
+     */
+    public static final class DescriptorUpload {
+        private final String serviceId;
+        private final long trackedAt = System.currentTimeMillis();
+        // Released on the first upload or when the upload stops being tracked
+        private final CountDownLatch latch = new CountDownLatch(1);
+        private final AtomicInteger uploadCount = new AtomicInteger();
+        private final AtomicInteger failures = new AtomicInteger();
+        private volatile long firstUploadedAt = -1;
+
+        private DescriptorUpload(String serviceId) {
+            this.serviceId = serviceId;
+        }
+
+        private void uploaded() {
+            if (uploadCount.incrementAndGet() == 1) {
+                firstUploadedAt = System.currentTimeMillis();
+                latch.countDown();
+            }
+        }
+
+        private void end() {
+            latch.countDown();
+        }
+
+        public String getServiceId() {
+            return serviceId;
+        }
+
+        /**
+         * @return true once the descriptor has been uploaded to at least one HSDir
+         */
+        public boolean isReachable() {
+            return uploadCount.get() > 0;
+        }
+
+        /**
+         * @return number of HSDirs the descriptor has been uploaded to
+         */
+        public int getUploadCount() {
+            return uploadCount.get();
+        }
+
+        /**
+         * @return number of failed uploads
+         */
+        public int getFailureCount() {
+            return failures.get();
+        }
+
+        /**
+         * @return milliseconds from when tracking started to the first successful upload, or -1 if not yet uploaded
+         */
+        public long getTimeToFirstUpload() {
+            long uploadedAt = firstUploadedAt;
+            return uploadedAt < 0 ? -1 : uploadedAt - trackedAt;
+        }
+
+        @Override
+        public String toString() {
+            return "DescriptorUpload{" +
+                    "serviceId=" + serviceId +
+                    ", uploads=" + uploadCount +
+                    ", failures=" + failures +
+                    ", timeToFirstUpload=" + getTimeToFirstUpload() +
+                    '}';
+        }
+    }
+}
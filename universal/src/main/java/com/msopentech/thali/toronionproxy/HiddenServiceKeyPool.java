@@ -0,0 +1,275 @@
+/*
+Copyright (c) Microsoft Open Technologies, Inc.
+All Rights Reserved
+Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except in compliance with the
+License. You may obtain a copy of the License at http://www.apache.org/licenses/LICENSE-2.0
+
+THIS CODE IS PROVIDED ON AN *AS IS* BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, EITHER EXPRESS OR IMPLIED,
+INCLUDING WITHOUT LIMITATION ANY IMPLIED WARRANTIES OR CONDITIONS OF TITLE, FITNESS FOR A PARTICULAR PURPOSE,
+MERCHANTABLITY OR NON-INFRINGEMENT.
+
+See the Apache 2 License for the specific language governing permissions and limitations under the License.
+*/
+package com.msopentech.thali.toronionproxy;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.crypto.Cipher;
+import javax.crypto.Mac;
+import javax.crypto.spec.IvParameterSpec;
+import javax.crypto.spec.SecretKeySpec;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.charset.Charset;
+import java.security.GeneralSecurityException;
+import java.security.MessageDigest;
+import java.security.SecureRandom;
+import java.util.Arrays;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Pool of pre-generated v3 onion service keys. Keys are generated in the background by the running tor (through
+ * ADD_ONION NEW followed by DEL_ONION) whenever the pool drops below its low watermark, and are stored
+ * encrypted under <code>TorConfig.getHiddenServiceDir()</code> so they survive restarts. Stored keys are encrypted
+ * with AES-CBC and authenticated with HMAC-SHA256 over the IV and ciphertext, under separate keys derived from the
+ * secret; AES-GCM would need Android API 19.
+ * <p>
+ * Use {@link #take()} with <code>OnionProxyManager.publishEphemeralHiddenService</code> to provision a service
+ * without waiting on key generation:
+ * <pre>
+ * HiddenServiceKeyPool pool = new HiddenServiceKeyPool(onionProxyManager, secret, 4, 16);
+ * pool.start();
+ * EphemeralHiddenService service = onionProxyManager.publishEphemeralHiddenService(80, 9343, pool.take());
+ * </pre>
+ */
+public final class HiddenServiceKeyPool {
+
+    private static final Logger LOG = LoggerFactory.getLogger(HiddenServiceKeyPool.class);
+    private static final String POOL_DIR_NAME = "keypool";
+    private static final String KEY_FILE_SUFFIX = ".key";
+    private static final String CIPHER = "AES/CBC/PKCS5Padding";
+    private static final String MAC = "HmacSHA256";
+    private static final int IV_LENGTH = 16;
+    private static final int TAG_LENGTH = 32;
+
+    /**
+     * Generates a new private key
+     */
+    interface KeyGenerator {
+        String generate() throws IOException;
+    }
+
+    private final KeyGenerator keyGenerator;
+    private final File poolDir;
+    private final SecretKeySpec encryptionKey;
+    private final SecretKeySpec macKey;
+    private final int lowWatermark;
+    private final int highWatermark;
+    private final SecureRandom random = new SecureRandom();
+    private final ConcurrentLinkedQueue<File> keyFiles = new ConcurrentLinkedQueue<>();
+    private final AtomicBoolean refillScheduled = new AtomicBoolean();
+    private final ExecutorService executor = Executors.newSingleThreadExecutor(new ThreadFactory() {
+        @Override
+        public Thread newThread(Runnable r) {
+            Thread thread = new Thread(r, "HiddenServiceKeyPool");
+            thread.setDaemon(true);
+            return thread;
+        }
+    });
+
+    /**
+     * @param onionProxyManager manager used to generate keys. Tor must be running for the pool to refill
+     * @param secret            16 or 32 byte AES key used to encrypt the stored keys
+     * @param lowWatermark      refill is started when the number of pooled keys drops below this
+     * @param highWatermark     number of keys a refill generates up to
+     */
+    public HiddenServiceKeyPool(final OnionProxyManager onionProxyManager, byte[] secret, int lowWatermark,
+                                int highWatermark) {
+        this(new KeyGenerator() {
+            @Override
+            public String generate() throws IOException {
+                return onionProxyManager.generateOnionKey();
+            }
+        }, poolDirOf(onionProxyManager), secret, lowWatermark, highWatermark);
+    }
+
+    HiddenServiceKeyPool(KeyGenerator keyGenerator, File poolDir, byte[] secret, int lowWatermark,
+                         int highWatermark) {
+        if (secret == null || (secret.length != 16 && secret.length != 32)) {
+            throw new IllegalArgumentException("secret must be 16 or 32 bytes");
+        }
+        if (lowWatermark < 0 || highWatermark < lowWatermark || highWatermark == 0) {
+            throw new IllegalArgumentException("0 <= lowWatermark <= highWatermark & highWatermark > 0");
+        }
+        this.keyGenerator = keyGenerator;
+        this.poolDir = poolDir;
+        try {
+            this.encryptionKey = new SecretKeySpec(derive(secret, "encrypt", secret.length), "AES");
+            this.macKey = new SecretKeySpec(derive(secret, "authenticate", TAG_LENGTH), MAC);
+        } catch (GeneralSecurityException e) {
+            throw new IllegalStateException("HmacSHA256 is not available", e);
+        }
+        this.lowWatermark = lowWatermark;
+        this.highWatermark = highWatermark;
+    }
+
+    /**
+     * Derives a key for one purpose from the secret, so that encryption and authentication never share a key
+     */
+    private static byte[] derive(byte[] secret, String purpose, int length) throws GeneralSecurityException {
+        Mac mac = Mac.getInstance(MAC);
+        mac.init(new SecretKeySpec(secret, MAC));
+        return Arrays.copyOf(mac.doFinal(purpose.getBytes(Charset.forName("UTF-8"))), length);
+    }
+
+    private static File poolDirOf(OnionProxyManager onionProxyManager) {
+        if (onionProxyManager == null) {
+            throw new IllegalArgumentException("onionProxyManager is null");
+        }
+        return new File(onionProxyManager.getContext().getConfig().getHiddenServiceDir(), POOL_DIR_NAME);
+    }
+
+    /**
+     * Loads keys already stored on disk and starts a refill if the pool is below its low watermark
+     *
+     * @throws IOException if the pool directory can not be created
+     */
+    public void start() throws IOException {
+        if (!poolDir.exists() && !poolDir.mkdirs()) {
+            throw new IOException("Could not create key pool dir: " + poolDir.getAbsolutePath());
+        }
+        if (!FileUtilities.setToReadOnlyPermissions(poolDir)) {
+            throw new IOException("Could not restrict permissions of key pool dir: " + poolDir.getAbsolutePath());
+        }
+        File[] files = poolDir.listFiles();
+        if (files != null) {
+            for (File file : files) {
+                if (file.getName().endsWith(KEY_FILE_SUFFIX)) {
+                    keyFiles.add(file);
+                }
+            }
+        }
+        LOG.info("Loaded " + keyFiles.size() + " pooled onion keys");
+        refillIfNeeded();
+    }
+
+    /**
+     * Stops background key generation. Keys already in the pool stay on disk for the next start.
+     */
+    public void stop() {
+        executor.shutdownNow();
+    }
+
+    /**
+     * @return number of keys ready to be handed out
+     */
+    public int size() {
+        return keyFiles.size();
+    }
+
+    /**
+     * Hands out a key and removes it from the pool. If the pool is empty the key is generated in the calling
+     * thread.
+     *
+     * @return private key in the form "ED25519-V3:base64"
+     * @throws IOException if no stored key could be read and a new one could not be generated
+     */
+    public String take() throws IOException {
+        try {
+            File file;
+            while ((file = keyFiles.poll()) != null) {
+                try {
+                    return decrypt(FileUtilities.read(file));
+                } catch (IOException | GeneralSecurityException e) {
+                    LOG.warn("Discarding unreadable pooled key: " + file.getName(), e);
+                } finally {
+                    if (!file.delete()) {
+                        LOG.warn("Could not delete pooled key: " + file.getAbsolutePath());
+                    }
+                }
+            }
+            LOG.info("Onion key pool is empty; generating key on demand");
+            return keyGenerator.generate();
+        } finally {
+            refillIfNeeded();
+        }
+    }
+
+    private void refillIfNeeded() {
+        if (keyFiles.size() >= lowWatermark || executor.isShutdown()
+                || !refillScheduled.compareAndSet(false, true)) {
+            return;
+        }
+        executor.execute(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    while (keyFiles.size() < highWatermark && !Thread.currentThread().isInterrupted()) {
+                        keyFiles.add(store(keyGenerator.generate()));
+                    }
+                } catch (Exception e) {
+                    LOG.warn("Onion key pool refill stopped", e);
+                } finally {
+                    refillScheduled.set(false);
+                }
+            }
+        });
+    }
+
+    private File store(String privateKey) throws IOException, GeneralSecurityException {
+        byte[] iv = new byte[IV_LENGTH];
+        random.nextBytes(iv);
+        Cipher cipher = Cipher.getInstance(CIPHER);
+        cipher.init(Cipher.ENCRYPT_MODE, encryptionKey, new IvParameterSpec(iv));
+        byte[] encrypted = cipher.doFinal(privateKey.getBytes("UTF-8"));
+        byte[] tag = tag(iv, encrypted);
+
+        File file = File.createTempFile("onion", KEY_FILE_SUFFIX, poolDir);
+        FileOutputStream out = new FileOutputStream(file);
+        try {
+            out.write(iv);
+            out.write(encrypted);
+            out.write(tag);
+        } finally {
+            out.close();
+        }
+        if (!FileUtilities.setToReadOnlyPermissions(file)) {
+            if (!file.delete()) {
+                LOG.warn("Could not delete pooled key: " + file.getAbsolutePath());
+            }
+            throw new IOException("Could not restrict permissions of pooled key: " + file.getAbsolutePath());
+        }
+        return file;
+    }
+
+    private String decrypt(byte[] content) throws IOException, GeneralSecurityException {
+        int encryptedLength = content.length - IV_LENGTH - TAG_LENGTH;
+        if (encryptedLength <= 0) {
+            throw new IOException("Pooled key is truncated");
+        }
+        byte[] encrypted = Arrays.copyOfRange(content, IV_LENGTH, IV_LENGTH + encryptedLength);
+        byte[] tag = tag(content, encrypted);
+        if (!MessageDigest.isEqual(tag, Arrays.copyOfRange(content, content.length - TAG_LENGTH, content.length))) {
+            throw new IOException("Pooled key failed authentication");
+        }
+        Cipher cipher = Cipher.getInstance(CIPHER);
+        cipher.init(Cipher.DECRYPT_MODE, encryptionKey, new IvParameterSpec(content, 0, IV_LENGTH));
+        return new String(cipher.doFinal(encrypted), "UTF-8");
+    }
+
+    /**
+     * @param iv array starting with the IV
+     */
+    private byte[] tag(byte[] iv, byte[] encrypted) throws GeneralSecurityException {
+        Mac mac = Mac.getInstance(MAC);
+        mac.init(macKey);
+        mac.update(iv, 0, IV_LENGTH);
+        return mac.doFinal(encrypted);
+    }
+}
@@ -0,0 +1,311 @@
+/*
+Copyright (c) Microsoft Open Technologies, Inc.
+All Rights Reserved
+Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except in compliance with the
+License. You may obtain a copy of the License at http://www.apache.org/licenses/LICENSE-2.0
+
+THIS CODE IS PROVIDED ON AN *AS IS* BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, EITHER EXPRESS OR IMPLIED,
+INCLUDING WITHOUT LIMITATION ANY IMPLIED WARRANTIES OR CONDITIONS OF TITLE, FITNESS FOR A PARTICULAR PURPOSE,
+MERCHANTABLITY OR NON-INFRINGEMENT.
+
+See the Apache 2 License for the specific language governing permissions and limitations under the License.
+*/
+package com.msopentech.thali.toronionproxy;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static java.util.concurrent.TimeUnit.MILLISECONDS;
+
+/**
+ * Schedules NEWNYM signals. Tor only acts on one NEWNYM every 10 seconds and delays the rest, so signals are
+ * spaced at least that far apart, and every request made while a signal is waiting to be sent shares that signal.
+ * <p>
+ * A rotation is complete once a circuit launched after the signal has been built. Streams opened from then on no
+ * longer use circuits from before the rotation.
+ */
+public final class IdentityRotator extends BaseTorEventListener implements EventSubscriber {
+    private static final Logger LOG = LoggerFactory.getLogger(IdentityRotator.class);
+
+    /**
+     * Minimum time tor requires between NEWNYM signals
+     */
+    public static final long NEWNYM_INTERVAL_MILLIS = 10000;
+
+    /**
+     * Sends NEWNYM to tor
+     */
+    interface Signaller {
+        void newnym() throws IOException;
+    }
+
+    /**
+     * Receives completed rotations
+     */
+    public interface Listener {
+        void onIdentityRotated(Rotation rotation);
+    }
+
+    private final Signaller signaller;
+    private final ScheduledExecutorService scheduler;
+    private final List<Listener> listeners = new CopyOnWriteArrayList<>();
+
+    // Guarded by this
+    private Rotation pending;
+    private final List<Rotation> signalled = new ArrayList<>();
+    private final Set<String> launchedAfterSignal = new HashSet<>();
+    private long lastSignalAt;
+    private long rotationCount;
+
+    IdentityRotator(Signaller signaller, ScheduledExecutorService scheduler) {
+        this.signaller = signaller;
+        this.scheduler = scheduler;
+    }
+
+    @Override
+    public Collection<String> getEventTypes() {
+        return Collections.singletonList("CIRC");
+    }
+
+    public void addListener(Listener listener) {
+        listeners.add(listener);
+    }
+
+    public boolean removeListener(Listener listener) {
+        return listeners.remove(listener);
+    }
+
+    /**
+     * Requests a new identity. Returns immediately; the signal is sent as soon as the rate limit allows.
+     *
+     * @return the rotation, shared with every other request made before its signal is sent
+     */
+    public synchronized Rotation requestRotation() {
+        if (pending != null) {
+            pending.requests.incrementAndGet();
+            return pending;
+        }
+        final Rotation rotation = new Rotation(System.currentTimeMillis());
+        pending = rotation;
+        long delay = Math.max(0, lastSignalAt + NEWNYM_INTERVAL_MILLIS - rotation.requestedAt);
+        scheduler.schedule(new Runnable() {
+            @Override
+            public void run() {
+                signal(rotation);
+            }
+        }, delay, MILLISECONDS);
+        return rotation;
+    }
+
+    private void signal(Rotation rotation) {
+        synchronized (this) {
+            if (pending == rotation) {
+                pending = null;
+            }
+            lastSignalAt = System.currentTimeMillis();
+            rotation.signalledAt = lastSignalAt;
+            // Added before sending so that circuits launched right after the signal are not missed
+            signalled.add(rotation);
+        }
+        try {
+            signaller.newnym();
+        } catch (IOException e) {
+            LOG.warn("Couldn't send NEWNYM", e);
+            synchronized (this) {
+                signalled.remove(rotation);
+            }
+            rotation.fail();
+            return;
+        }
+        LOG.info("NEWNYM sent for {} request(s)", rotation.getRequestCount());
+    }
+
+    @Override
+    public void onCircuitEvent(CircuitEvent event) {
+        String circuitId = event.getCircuitId();
+        List<Rotation> completed;
+        synchronized (this) {
+            if (signalled.isEmpty() || circuitId == null) {
+                return;
+            }
+            if (CircuitEvent.LAUNCHED.equals(event.getStatus())) {
+                launchedAfterSignal.add(circuitId);
+                return;
+            }
+            if (event.isFailed() || event.isClosed()) {
+                launchedAfterSignal.remove(circuitId);
+                return;
+            }
+            if (!event.isBuilt() || !launchedAfterSignal.contains(circuitId)) {
+                return;
+            }
+            completed = new ArrayList<>(signalled);
+            signalled.clear();
+            launchedAfterSignal.clear();
+            rotationCount += completed.size();
+        }
+        long now = System.currentTimeMillis();
+        for (Rotation rotation : completed) {
+            rotation.complete(now);
+            for (Listener listener : listeners) {
+                try {
+                    listener.onIdentityRotated(rotation);
+                } catch (RuntimeException e) {
+                    LOG.warn("Identity rotation listener failed", e);
+                }
+            }
+        }
+    }
+
+    /**
+     * @return number of completed rotations
+     */
+    public synchronized long getRotationCount() {
+        return rotationCount;
+    }
+
+    /**
+     * @return milliseconds until a NEWNYM could be sent without waiting, 0 if it could be sent now
+     */
+    public synchronized long getDelayUntilNextSignal() {
+        return Math.max(0, lastSignalAt + NEWNYM_INTERVAL_MILLIS - System.currentTimeMillis());
+    }
+
+    /**
+     * A single NEWNYM signal and all the requests it serves
+     */
+    public static final class Rotation {
+        private final long requestedAt;
+        private final CountDownLatch latch = new CountDownLatch(1);
+        private final AtomicInteger requests = new AtomicInteger(1);
+        private volatile long signalledAt = -1;
+        private volatile long readyAt = -1;
+        private volatile boolean failed;
+
+        private Rotation(long requestedAt) {
+            this.requestedAt = requestedAt;
+        }
+
+        private void complete(long now) {
+            readyAt = now;
+            latch.countDown();
+        }
+
+        private void fail() {
+            failed = true;
+            latch.countDown();
+        }
+
+        /**
+         * Waits until a circuit has been built after the signal
+         *
+         * @return true if the rotation completed, false if it failed or the timeout expired first
+         */
+        public boolean await(long timeout, TimeUnit unit) throws InterruptedException {
+            return latch.await(timeout, unit) && !failed;
+        }
+
+        public boolean isComplete() {
+            return readyAt >= 0;
+        }
+
+        public boolean isFailed() {
+            return failed;
+        }
+
+        /**
+         * @return number of requests served by this rotation
+         */
+        public int getRequestCount() {
+            return requests.get();
+        }
+
+        /**
+         * @return milliseconds from the first request to the first circuit built after the signal, or -1 if not
+         * complete
+         */
+        public long getLatency() {
+            long ready = readyAt;
+            return ready < 0 ? -1 : ready - requestedAt;
+        }
+
+        /**
+         * @return time the signal was sent, or -1 if it has not been sent
+         */
+        public long getSignalledAt() {
+            return signalledAt;
+        }
+
+        @Override
+        public String toString() {
+            return "Rotation{" +
+                    "requests=" + getRequestCount() +
+                    ", failed=" + failed +
+                    ", latency=" + getLatency() +
+                    '}';
+        }
+    }
+
+    /**
+     * Rotates identities across several tor instances so that one is always serving traffic. Rotating moves
+     * traffic to the next instance whose last rotation has completed, and rotates the instance that was serving
+     * in the background.
+     */
+    public static final class Pool {
+        private final List<IdentityRotator> rotators;
+        private final Rotation[] rotations;
+        private int active;
+
+        /**
+         * @param rotators rotators of the pooled instances, in the order traffic moves through them
+         */
+        public Pool(List<IdentityRotator> rotators) {
+            if (rotators == null || rotators.size() < 2) {
+                throw new IllegalArgumentException("A pool needs at least two instances");
+            }
+            this.rotators = new ArrayList<>(rotators);
+            this.rotations = new Rotation[rotators.size()];
+        }
+
+        /**
+         * @return index of the instance that should carry traffic
+         */
+        public synchronized int getActive() {
+            return active;
+        }
+
+        /**
+         * Moves traffic to the next instance with a fresh identity and rotates the one that was active. If no
+         * other instance has finished rotating, the active one stays and is rotated in place.
+         *
+         * @return index of the instance that should carry traffic
+         */
+        public synchronized int rotate() {
+            int size = rotators.size();
+            for (int i = 1; i < size; i++) {
+                int candidate = (active + i) % size;
+                Rotation rotation = rotations[candidate];
+                if (rotation == null || rotation.isComplete()) {
+                    rotations[active] = rotators.get(active).requestRotation();
+                    active = candidate;
+                    return active;
+                }
+            }
+            rotations[active] = rotators.get(active).requestRotation();
+            return active;
+        }
+    }
+}
@@ -0,0 +1,117 @@
+/*
+Copyright (c) Microsoft Open Technologies, Inc.
+All Rights Reserved
+Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except in compliance with the
+License. You may obtain a copy of the License at http://www.apache.org/licenses/LICENSE-2.0
+
+THIS CODE IS PROVIDED ON AN *AS IS* BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, EITHER EXPRESS OR IMPLIED,
+INCLUDING WITHOUT LIMITATION ANY IMPLIED WARRANTIES OR CONDITIONS OF TITLE, FITNESS FOR A PARTICULAR PURPOSE,
+MERCHANTABLITY OR NON-INFRINGEMENT.
+
+See the Apache 2 License for the specific language governing permissions and limitations under the License.
+*/
+package com.msopentech.thali.toronionproxy;
+
+/**
+ * Receives measurements from the library. Set an implementation on <code>OnionProxyManager</code> and
+ * <code>Utilities</code> to publish them, for example through JMX or Micrometer in the java module. Until one is
+ * set, {@link #NONE} is used and no measurements are taken.
+ * <p>
+ * Implementations are called from many threads and must be thread safe and fast.
+ */
+public interface Instrumentation {
+
+    /**
+     * Instrumentation that does nothing
+     */
+    Instrumentation NONE = new Instrumentation() {
+        @Override
+        public boolean isEnabled() {
+            return false;
+        }
+
+        @Override
+        public void recordStartStage(String stage, long millis) {
+        }
+
+        @Override
+        public void recordBootstrapProgress(int progress) {
+        }
+
+        @Override
+        public void recordControlCommand(String verb, long nanos, boolean success) {
+        }
+
+        @Override
+        public void recordEvent(String type) {
+        }
+
+        @Override
+        public void recordCircuitBuild(boolean success) {
+        }
+
+        @Override
+        public void recordSocksHandshake(long nanos, boolean success) {
+        }
+
+        @Override
+        public void recordInstallerIo(String operation, long nanos) {
+        }
+
+        @Override
+        public void recordRestart(String cause, long downtimeMillis, boolean success) {
+        }
+    };
+
+    /**
+     * @return false if measurements are discarded, so callers can skip taking them
+     */
+    boolean isEnabled();
+
+    /**
+     * Duration of a stage of starting tor, such as spawning the process or waiting for the control port file
+     */
+    void recordStartStage(String stage, long millis);
+
+    /**
+     * Bootstrap progress from 0 to 100
+     */
+    void recordBootstrapProgress(int progress);
+
+    /**
+     * Round trip of a control port command
+     *
+     * @param verb command name, such as GETINFO or SETCONF
+     */
+    void recordControlCommand(String verb, long nanos, boolean success);
+
+    /**
+     * A control port event was received
+     *
+     * @param type event type, such as CIRC or BW
+     */
+    void recordEvent(String type);
+
+    /**
+     * A circuit was built or failed to build
+     */
+    void recordCircuitBuild(boolean success);
+
+    /**
+     * Duration of a SOCKS handshake with the local tor
+     */
+    void recordSocksHandshake(long nanos, boolean success);
+
+    /**
+     * Duration of an installer operation, such as extracting the tor executable
+     */
+    void recordInstallerIo(String operation, long nanos);
+
+    /**
+     * Restart of tor by the process supervisor after a crash
+     *
+     * @param cause          what was detected, such as the process exiting or the control connection closing
+     * @param downtimeMillis time from detecting the crash to the end of this attempt
+     */
+    void recordRestart(String cause, long downtimeMillis, boolean success);
+}
@@ -0,0 +1,83 @@
+/*
+Copyright (c) Microsoft Open Technologies, Inc.
+All Rights Reserved
+Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except in compliance with the
+License. You may obtain a copy of the License at http://www.apache.org/licenses/LICENSE-2.0
+
+THIS CODE IS PROVIDED ON AN *AS IS* BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, EITHER EXPRESS OR IMPLIED,
+INCLUDING WITHOUT LIMITATION ANY IMPLIED WARRANTIES OR CONDITIONS OF TITLE, FITNESS FOR A PARTICULAR PURPOSE,
+MERCHANTABLITY OR NON-INFRINGEMENT.
+
+See the Apache 2 License for the specific language governing permissions and limitations under the License.
+*/
+package com.msopentech.thali.toronionproxy;
+
+import java.util.Arrays;
+import java.util.Collection;
+
+/**
+ * Feeds event rates, circuit build outcomes and bootstrap progress into an Instrumentation. Only registered by
+ * the manager while instrumentation is enabled.
+ */
+final class InstrumentedEventHandler extends BaseEventHandler implements EventSubscriber {
+    private final Instrumentation instrumentation;
+    private final EventTokenizer tokenizer = new EventTokenizer();
+
+    InstrumentedEventHandler(Instrumentation instrumentation) {
+        this.instrumentation = instrumentation;
+    }
+
+    /**
+     * Circuit builds and bootstrap progress are measured; other event types are counted only if another consumer
+     * subscribes to them.
+     */
+    @Override
+    public Collection<String> getEventTypes() {
+        return Arrays.asList("CIRC", "STATUS_CLIENT");
+    }
+
+    @Override
+    public void circuitStatus(String status, String id, String path) {
+        instrumentation.recordEvent("CIRC");
+        if (CircuitEvent.BUILT.equals(status)) {
+            instrumentation.recordCircuitBuild(true);
+        } else if (CircuitEvent.FAILED.equals(status)) {
+            instrumentation.recordCircuitBuild(false);
+        }
+    }
+
+    @Override
+    public void streamStatus(String status, String id, String target) {
+        instrumentation.recordEvent("STREAM");
+    }
+
+    @Override
+    public void orConnStatus(String status, String orName) {
+        instrumentation.recordEvent("ORCONN");
+    }
+
+    @Override
+    public void bandwidthUsed(long read, long written) {
+        instrumentation.recordEvent("BW");
+    }
+
+    @Override
+    public void message(String severity, String msg) {
+        instrumentation.recordEvent(severity);
+    }
+
+    @Override
+    public void unrecognized(String type, String msg) {
+        instrumentation.recordEvent(type);
+        if ("STATUS_CLIENT".equals(type)) {
+            tokenizer.reset(msg);
+            if (tokenizer.next() && tokenizer.next() && tokenizer.tokenEquals("BOOTSTRAP")) {
+                String progress = tokenizer.find("PROGRESS");
+                if (progress != null) {
+                    instrumentation.recordBootstrapProgress(
+                            (int) EventTokenizer.parseLong(progress, 0, progress.length(), 0));
+                }
+            }
+        }
+    }
+}
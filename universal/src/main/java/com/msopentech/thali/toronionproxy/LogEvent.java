@@ -0,0 +1,112 @@
+/*
+Copyright (c) Microsoft Open Technologies, Inc.
+All Rights Reserved
+Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except in compliance with the
+License. You may obtain a copy of the License at http://www.apache.org/licenses/LICENSE-2.0
+
+THIS CODE IS PROVIDED ON AN *AS IS* BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, EITHER EXPRESS OR IMPLIED,
+INCLUDING WITHOUT LIMITATION ANY IMPLIED WARRANTIES OR CONDITIONS OF TITLE, FITNESS FOR A PARTICULAR PURPOSE,
+MERCHANTABLITY OR NON-INFRINGEMENT.
+
+See the Apache 2 License for the specific language governing permissions and limitations under the License.
+*/
+package com.msopentech.thali.toronionproxy;
+
+import java.util.Locale;
+
+/**
+ * A tor log message, either from a NOTICE, WARN or ERR control port event or from a line the tor process wrote to
+ * stdout or stderr, such as <code>Oct 19 12:00:00.000 [notice] Bootstrapped 5% (conn): Connecting to a relay</code>.
+ * Severities are upper case, as on the control port: DEBUG, INFO, NOTICE, WARN or ERR.
+ */
+public final class LogEvent implements TorEvent {
+    public enum Source {
+        CONTROL_PORT, STDOUT, STDERR
+    }
+
+    private static final String BOOTSTRAPPED = "Bootstrapped ";
+    private static final String[] SEVERITIES = {"debug", "info", "notice", "warn", "err"};
+
+    private final Source source;
+    private final String severity;
+    private final String message;
+
+    public LogEvent(Source source, String severity, String message) {
+        this.source = source;
+        this.severity = severity;
+        this.message = message == null ? "" : message;
+    }
+
+    /**
+     * Parses a line of tor process output. Lines without a recognised <code>[severity]</code> prefix are kept
+     * whole, with NOTICE severity for stdout and ERR for stderr.
+     */
+    static LogEvent parse(String line, Source source) {
+        int open = line.indexOf('[');
+        if (open >= 0) {
+            int close = line.indexOf(']', open + 1);
+            if (close > open + 1 && close - open <= 7) {
+                String severity = toSeverity(line, open + 1, close);
+                if (severity != null) {
+                    int start = close + 1;
+                    if (start < line.length() && line.charAt(start) == ' ') {
+                        start++;
+                    }
+                    return new LogEvent(source, severity, line.substring(start));
+                }
+            }
+        }
+        return new LogEvent(source, source == Source.STDERR ? "ERR" : "NOTICE", line);
+    }
+
+    private static String toSeverity(String line, int start, int end) {
+        for (String severity : SEVERITIES) {
+            if (severity.length() == end - start && line.regionMatches(start, severity, 0, severity.length())) {
+                return severity.toUpperCase(Locale.US);
+            }
+        }
+        return null;
+    }
+
+    public Source getSource() {
+        return source;
+    }
+
+    public String getSeverity() {
+        return severity;
+    }
+
+    public String getMessage() {
+        return message;
+    }
+
+    public boolean isWarning() {
+        return "WARN".equals(severity) || "ERR".equals(severity);
+    }
+
+    /**
+     * @return bootstrap progress from 0 to 100 for "Bootstrapped N%" messages, otherwise -1
+     */
+    public int getBootstrapProgress() {
+        if (!message.startsWith(BOOTSTRAPPED)) {
+            return -1;
+        }
+        int start = BOOTSTRAPPED.length();
+        int end = message.indexOf('%', start);
+        return end < 0 ? -1 : (int) EventTokenizer.parseLong(message, start, end, -1);
+    }
+
+    @Override
+    public void deliverTo(TorEventListener listener) {
+        listener.onLogEvent(this);
+    }
+
+    @Override
+    public String toString() {
+        return "LogEvent{" +
+                "source=" + source +
+                ", severity=" + severity +
+                ", message=" + message +
+                '}';
+    }
+}
@@ -0,0 +1,82 @@
+/*
+Copyright (c) Microsoft Open Technologies, Inc.
+All Rights Reserved
+Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except in compliance with the
+License. You may obtain a copy of the License at http://www.apache.org/licenses/LICENSE-2.0
+
+THIS CODE IS PROVIDED ON AN *AS IS* BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, EITHER EXPRESS OR IMPLIED,
+INCLUDING WITHOUT LIMITATION ANY IMPLIED WARRANTIES OR CONDITIONS OF TITLE, FITNESS FOR A PARTICULAR PURPOSE,
+MERCHANTABLITY OR NON-INFRINGEMENT.
+
+See the Apache 2 License for the specific language governing permissions and limitations under the License.
+*/
+package com.msopentech.thali.toronionproxy;
+
+/**
+ * Rate limits and coalesces the log messages of a single severity. A message identical to the previous one within
+ * the coalescing window is only counted; once a different message arrives the count is reported with it. Beyond
+ * the rate limit, messages are dropped and the number dropped is reported with the next message let through.
+ */
+final class LogThrottle {
+    static final long COALESCE_MILLIS = 5000;
+
+    private final int permitsPerSecond;
+
+    private String lastMessage;
+    private long lastAt;
+    private int repeated;
+    private int suppressed;
+    private double permits;
+    private long refilledAt;
+
+    /**
+     * @param permitsPerSecond number of messages let through per second, with bursts of up to the same number
+     */
+    LogThrottle(int permitsPerSecond) {
+        if (permitsPerSecond <= 0) {
+            throw new IllegalArgumentException("permitsPerSecond must be > 0");
+        }
+        this.permitsPerSecond = permitsPerSecond;
+        this.permits = permitsPerSecond;
+    }
+
+    /**
+     * @return the message to broadcast, prefixed with a summary of repeated or suppressed messages if any, or null
+     * if the message should not be broadcast
+     */
+    synchronized String admit(String msg, long now) {
+        if (msg.equals(lastMessage) && now - lastAt < COALESCE_MILLIS) {
+            repeated++;
+            return null;
+        }
+        lastMessage = msg;
+        lastAt = now;
+
+        if (refilledAt == 0) {
+            refilledAt = now;
+        } else if (now > refilledAt) {
+            permits = Math.min(permitsPerSecond, permits + (now - refilledAt) * permitsPerSecond / 1000.0);
+            refilledAt = now;
+        }
+        if (permits < 1) {
+            suppressed += repeated + 1;
+            repeated = 0;
+            return null;
+        }
+        permits--;
+
+        if (repeated == 0 && suppressed == 0) {
+            return msg;
+        }
+        StringBuilder sb = new StringBuilder();
+        if (repeated > 0) {
+            sb.append("Last message repeated ").append(repeated).append(" times\n");
+        }
+        if (suppressed > 0) {
+            sb.append(suppressed).append(" messages suppressed\n");
+        }
+        repeated = 0;
+        suppressed = 0;
+        return sb.append(msg).toString();
+    }
+}
@@ -48,6 +48,8 @@ abstract public class OnionProxyContext {
 
     private final TorInstaller torInstaller;
 
+    private final RelayScoreboard relayScoreboard = new RelayScoreboard();
+
     /**
      * Constructs instance of <code>OnionProxyContext</code> with specified configDir. Use this constructor when
      * all tor files (including the executable) are under a single directory. Currently, this is used with installers
@@ -206,6 +208,13 @@ abstract public class OnionProxyContext {
         return settings;
     }
 
+    /**
+     * @return relay scores, kept here so that they outlive a tor process and feed the config of the next one
+     */
+    public final RelayScoreboard getRelayScoreboard() {
+        return relayScoreboard;
+    }
+
     public final TorConfigBuilder newConfigBuilder() {
         return new TorConfigBuilder(this);
     }
@@ -34,14 +34,19 @@ import net.freehaven.tor.control.EventHandler;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import java.io.BufferedReader;
 import java.io.File;
 import java.io.IOException;
 import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.net.InetSocketAddress;
 import java.net.Socket;
 import java.util.*;
+import java.util.concurrent.*;
 
 import static com.msopentech.thali.toronionproxy.FileUtilities.setToReadOnlyPermissions;
-import static java.lang.String.format;
+import static java.util.concurrent.TimeUnit.MILLISECONDS;
+import static java.util.concurrent.TimeUnit.NANOSECONDS;
 import static java.util.concurrent.TimeUnit.SECONDS;
 
 /**
@@ -56,16 +61,31 @@ import static java.util.concurrent.TimeUnit.SECONDS;
  */
 public class OnionProxyManager {
     private static final String[] EVENTS = {
-            "CIRC", "ORCONN", "NOTICE", "WARN", "ERR", "BW", "STATUS_CLIENT"
+            "CIRC", "ORCONN", "NOTICE", "WARN", "ERR", "BW", "STATUS_CLIENT", HiddenServiceDescriptorTracker.EVENT_TYPE
     };
+    private static final int STREAM_BUFFER_SIZE = 64 * 1024;
 
     private static final String OWNER = "__OwningControllerProcess";
     private static final int HOSTNAME_TIMEOUT = 30;
+    private static final int MAX_HOSTNAME_WATCHERS = 16;
+    /**
+     * Time tor gets to exit at each step of killTorProcess before the next, harsher one
+     */
+    public static final long KILL_GRACE_MILLIS = 1000;
+    private static final long DNS_MAX_TTL_MILLIS = 30 * 60 * 1000;
+    private static final long DNS_NEGATIVE_TTL_MILLIS = 60 * 1000;
+    private static final int DNS_MAX_ENTRIES = 1024;
+    private static final int EXIT_FLAG_CHECK_INTERVAL = 60;
     private static final Logger LOG = LoggerFactory.getLogger(OnionProxyManager.class);
 
     private final OnionProxyContext onionProxyContext;
     private final EventBroadcaster eventBroadcaster;
     private final EventHandler eventHandler;
+    private final CompositeEventHandler eventHandlers = new CompositeEventHandler();
+    private final HiddenServiceDescriptorTracker descriptorTracker = new HiddenServiceDescriptorTracker();
+    private final TorEventDispatcher eventDispatcher = new TorEventDispatcher();
+    private final BandwidthMeter bandwidthMeter = new BandwidthMeter();
+    private final CircuitRegistry circuitRegistry = new CircuitRegistry();
     private final TorConfig config;
     private final TorInstaller torInstaller;
 
@@ -76,6 +96,24 @@ public class OnionProxyManager {
     private volatile TorControlConnection controlConnection = null;
     private volatile int control_port;
 
+    private volatile AsyncEventHandler asyncEventHandler;
+    private volatile Instrumentation instrumentation = Instrumentation.NONE;
+    private InstrumentedEventHandler instrumentedEventHandler;
+    private ScheduledExecutorService scheduler;
+    private ScheduledFuture<?> pendingSaveConf;
+    private ScheduledFuture<?> bandwidthBroadcast;
+    private ScheduledFuture<?> exitFlagCheck;
+    private final Object subscriptionLock = new Object();
+    private Set<String> subscribedEvents;
+    private boolean bandwidthMeterActive;
+    private boolean circuitRegistryActive;
+    private boolean relayScoreboardActive;
+    private DnsResolver dnsResolver;
+    private IdentityRotator identityRotator;
+    private final ProcessSupervisor supervisor = new ProcessSupervisor(this);
+    // Tor process spawned by the last start, null if tor was already running. Guarded by this.
+    private Process torProcess;
+
     public OnionProxyManager(OnionProxyContext onionProxyContext) {
         this(onionProxyContext, null, null);
     }
@@ -101,6 +139,13 @@ public class OnionProxyManager {
         }
         this.eventHandler = (eventHandler == null) ? new OnionProxyManagerEventHandler() :
                 eventHandler;
+        // The default handler only logs events, so it is not worth subscribing to every event for it unless
+        // debug logs were asked for
+        if (eventHandler != null || onionProxyContext.getSettings().hasDebugLogs()) {
+            eventHandlers.addHandler(this.eventHandler);
+        }
+        eventHandlers.addHandler(descriptorTracker);
+        eventHandlers.addHandler(eventDispatcher);
     }
 
     public final OnionProxyContext getContext() {
@@ -186,6 +231,155 @@ public class OnionProxyManager {
         throw new RuntimeException("We don't have an Ipv4 localhost binding for socks!");
     }
 
+    /**
+     * Maps the SOCKS listeners tor has bound to their names: "default" for the one from
+     * TorSettings.getSocksPort, followed by the names of TorSettings.getSocksListeners. Each listener is matched to
+     * a bound address by its configured port, and host if one was given. Listeners on "auto", or whose port was
+     * replaced by "auto" because it was taken, get the remaining addresses in config order. Unix socket listeners
+     * are left out.
+     *
+     * @return SOCKS endpoints by name, in config order
+     * @throws java.io.IOException - control connection errors
+     * @throws IllegalStateException if control service is not running
+     */
+    public synchronized Map<String, InetSocketAddress> getSocksEndpoints() throws IOException {
+        if (controlConnection == null) {
+            throw new IllegalStateException("Service is not running.");
+        }
+        TorSettings settings = onionProxyContext.getSettings();
+        Map<String, String> ports = new LinkedHashMap<>();
+        // TorConfigBuilder writes only the port of the main SOCKS port
+        String socksPort = settings.getSocksPort();
+        ports.put("default", socksPort.substring(socksPort.indexOf(':') + 1));
+        List<SocksListener> listeners = settings.getSocksListeners();
+        if (listeners != null) {
+            for (SocksListener listener : listeners) {
+                ports.put(listener.getName(), listener.getPort());
+            }
+        }
+        return matchSocksEndpoints(ports, controlConnection.getInfo("net/listeners/socks"));
+    }
+
+    /**
+     * Matches configured SOCKS ports to the space separated, quoted addresses of GETINFO net/listeners/socks
+     *
+     * @param ports configured port, address:port or "auto" by name, in config order
+     */
+    static Map<String, InetSocketAddress> matchSocksEndpoints(Map<String, String> ports, String listenersInfo) {
+        List<InetSocketAddress> bound = new ArrayList<>();
+        if (listenersInfo != null) {
+            for (String token : listenersInfo.split(" ")) {
+                InetSocketAddress address = parseListenerAddress(token.replace("\"", ""));
+                if (address != null) {
+                    bound.add(address);
+                }
+            }
+        }
+        Map<String, InetSocketAddress> matched = new HashMap<>();
+        List<String> unmatched = new ArrayList<>();
+        for (Map.Entry<String, String> entry : ports.entrySet()) {
+            String port = entry.getValue();
+            if (port == null || port.startsWith("unix:")) {
+                continue;
+            }
+            InetSocketAddress configured = parseListenerAddress(port);
+            InetSocketAddress address = null;
+            if (configured != null || port.matches("\\d+")) {
+                int number = configured != null ? configured.getPort() : Integer.parseInt(port);
+                for (InetSocketAddress candidate : bound) {
+                    if (candidate.getPort() == number && (configured == null
+                            || configured.getHostString().equals(candidate.getHostString()))) {
+                        address = candidate;
+                        break;
+                    }
+                }
+            }
+            if (address == null) {
+                unmatched.add(entry.getKey());
+            } else {
+                bound.remove(address);
+                matched.put(entry.getKey(), address);
+            }
+        }
+        for (int i = 0; i < unmatched.size() && i < bound.size(); i++) {
+            matched.put(unmatched.get(i), bound.get(i));
+        }
+
+        Map<String, InetSocketAddress> endpoints = new LinkedHashMap<>();
+        for (String name : ports.keySet()) {
+            InetSocketAddress address = matched.get(name);
+            if (address != null) {
+                endpoints.put(name, new InetSocketAddress(address.getHostString(), address.getPort()));
+            }
+        }
+        return endpoints;
+    }
+
+    /**
+     * @return address of an "address:port" listener, or null for unix sockets and anything else
+     */
+    private static InetSocketAddress parseListenerAddress(String address) {
+        int colon = address.lastIndexOf(':');
+        if (address.startsWith("unix:") || colon <= 0) {
+            return null;
+        }
+        String host = address.substring(0, colon);
+        if (host.startsWith("[") && host.endsWith("]")) {
+            host = host.substring(1, host.length() - 1);
+        }
+        try {
+            return InetSocketAddress.createUnresolved(host, Integer.parseInt(address.substring(colon + 1)));
+        } catch (IllegalArgumentException e) {
+            return null;
+        }
+    }
+
+    /**
+     * Returns the resolver that looks up host names through tor and caches the answers. ADDRMAP events are only
+     * requested from tor once this has been called.
+     */
+    public DnsResolver getDnsResolver() {
+        synchronized (subscriptionLock) {
+            if (dnsResolver == null) {
+                dnsResolver = new DnsResolver(new DnsResolver.Transport() {
+                    @Override
+                    public void resolve(String hostname) throws IOException {
+                        TorControlConnection connection = controlConnection;
+                        if (connection == null) {
+                            throw new IOException("Service is not running.");
+                        }
+                        connection.resolve(hostname);
+                    }
+                }, DNS_MAX_TTL_MILLIS, DNS_NEGATIVE_TTL_MILLIS, DNS_MAX_ENTRIES);
+                eventHandlers.addHandler(dnsResolver);
+                refreshEventSubscription();
+            }
+            return dnsResolver;
+        }
+    }
+
+    /**
+     * Creates a StreamIsolation that connects through the IPv4 localhost SOCKS listener
+     *
+     * @param maxGroups maximum number of tenants holding their own circuits at once
+     * @throws java.io.IOException - control connection errors
+     */
+    public StreamIsolation createStreamIsolation(int maxGroups) throws IOException {
+        return new StreamIsolation("127.0.0.1", getIPv4LocalHostSocksPort(), maxGroups);
+    }
+
+    /**
+     * @return number of open circuits of each tenant of the specified isolation
+     * @throws java.io.IOException - control connection errors
+     * @throws IllegalStateException if control service is not running
+     */
+    public synchronized Map<String, Integer> getIsolatedCircuitCounts(StreamIsolation isolation) throws IOException {
+        if (controlConnection == null) {
+            throw new IllegalStateException("Service is not running.");
+        }
+        return isolation.countCircuits(controlConnection.getInfo("circuit-status"));
+    }
+
     /**
      * Publishes a hidden service
      *
@@ -219,7 +413,7 @@ public class OnionProxyManager {
                 "HiddenServiceDir " + hostnameDir.getAbsolutePath(),
                 "HiddenServicePort " + hiddenServicePort + " 127.0.0.1:" + localPort);
         controlConnection.setConf(config);
-        controlConnection.saveConf();
+        saveConf();
         // Wait for the hostname file to be created/updated
         if (!hostNameFileObserver.poll(HOSTNAME_TIMEOUT, SECONDS)) {
             FileUtilities.listFilesToLog(hostnameFile.getParentFile());
@@ -228,11 +422,362 @@ public class OnionProxyManager {
 
         // Publish the hidden service's onion hostname in transport properties
         String hostname = new String(FileUtilities.read(hostnameFile), "UTF-8").trim();
+        descriptorTracker.published(hostname);
         LOG.info("Hidden service config has completed.");
 
         return hostname;
     }
 
+    /**
+     * Publishes a batch of hidden services with a single SETCONF. Each service has its own directory, so the
+     * hostname files are watched concurrently and the whole batch completes within one hostname timeout rather
+     * than one per service.
+     * <p>
+     * As with <code>publishHiddenService</code>, the set of published services replaces any hidden services
+     * previously configured through the control connection.
+     *
+     * @param hiddenServices the services to publish
+     * @return map of each service config to its onion address in the form X.onion
+     * @throws java.io.IOException - File errors or if any hostname file is not written in time
+     * @throws IllegalStateException if control service is not running
+     */
+    public synchronized Map<HiddenServiceConfig, String> publishHiddenServices(
+            Collection<HiddenServiceConfig> hiddenServices) throws IOException {
+        if (controlConnection == null) {
+            throw new IllegalStateException("Service is not running.");
+        }
+        if (hiddenServices == null || hiddenServices.isEmpty()) {
+            return Collections.emptyMap();
+        }
+
+        LOG.info("Creating " + hiddenServices.size() + " hidden services");
+        List<String> config = new ArrayList<>();
+        final Map<HiddenServiceConfig, WriteObserver> observers = new LinkedHashMap<>();
+        for (HiddenServiceConfig hiddenService : hiddenServices) {
+            File hostnameFile = hiddenService.getHostnameFile();
+            File hostnameDir = hostnameFile.getParentFile();
+            if (!hostnameDir.exists() && !hostnameDir.mkdirs()) {
+                throw new IOException("Could not create hidden service dir: " + hostnameDir.getAbsolutePath());
+            }
+            if (!hostnameFile.exists() && !hostnameFile.createNewFile()) {
+                throw new IOException("Could not create hostnameFile: " + hostnameFile.getAbsolutePath());
+            }
+            if (!setToReadOnlyPermissions(hostnameDir)) {
+                throw new RuntimeException("Unable to set permissions on hostName dir");
+            }
+            // Watch for the hostname file being created/updated before tor is told about the service
+            observers.put(hiddenService, onionProxyContext.generateWriteObserver(hostnameFile));
+            config.addAll(hiddenService.toConfigLines());
+        }
+
+        controlConnection.setConf(config);
+        saveConf();
+
+        ExecutorService executor = Executors.newFixedThreadPool(Math.min(observers.size(),
+                MAX_HOSTNAME_WATCHERS));
+        try {
+            Map<HiddenServiceConfig, Future<Boolean>> pending = new LinkedHashMap<>();
+            for (final Map.Entry<HiddenServiceConfig, WriteObserver> entry : observers.entrySet()) {
+                pending.put(entry.getKey(), executor.submit(new Callable<Boolean>() {
+                    @Override
+                    public Boolean call() {
+                        return entry.getKey().getHostnameFile().length() > 0
+                                || entry.getValue().poll(HOSTNAME_TIMEOUT, SECONDS);
+                    }
+                }));
+            }
+
+            long deadline = System.nanoTime() + SECONDS.toNanos(HOSTNAME_TIMEOUT);
+            Map<HiddenServiceConfig, String> hostnames = new LinkedHashMap<>();
+            for (Map.Entry<HiddenServiceConfig, Future<Boolean>> entry : pending.entrySet()) {
+                File hostnameFile = entry.getKey().getHostnameFile();
+                if (!awaitHostname(entry.getValue(), deadline)) {
+                    FileUtilities.listFilesToLog(hostnameFile.getParentFile());
+                    throw new IOException("Wait for hidden service hostname file to be created expired: "
+                            + hostnameFile.getAbsolutePath());
+                }
+                String hostname = new String(FileUtilities.read(hostnameFile), "UTF-8").trim();
+                descriptorTracker.published(hostname);
+                hostnames.put(entry.getKey(), hostname);
+            }
+            LOG.info("Hidden service batch config has completed.");
+            return hostnames;
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    /**
+     * Publishes an ephemeral hidden service with a newly generated key. Unlike <code>publishHiddenService</code>
+     * nothing is written to disk: the onion address comes straight from the ADD_ONION reply.
+     *
+     * @param hiddenServicePort The port that the hidden service will accept connections on
+     * @param localPort         The local port that the hidden service will relay connections to
+     * @return the service, including the generated private key
+     * @throws java.io.IOException - control connection errors
+     * @throws IllegalStateException if control service is not running
+     */
+    public EphemeralHiddenService publishEphemeralHiddenService(int hiddenServicePort, int localPort)
+            throws IOException {
+        return publishEphemeralHiddenService(hiddenServicePort, localPort, null);
+    }
+
+    /**
+     * Publishes an ephemeral hidden service, reusing a stored private key if one is given so that the service
+     * keeps its onion address.
+     *
+     * @param hiddenServicePort The port that the hidden service will accept connections on
+     * @param localPort         The local port that the hidden service will relay connections to
+     * @param privateKey        key in the form "ED25519-V3:base64" or null to generate a new key
+     * @return the service
+     * @throws java.io.IOException - control connection errors
+     * @throws IllegalStateException if control service is not running
+     */
+    public synchronized EphemeralHiddenService publishEphemeralHiddenService(int hiddenServicePort, int localPort,
+                                                                             String privateKey) throws IOException {
+        if (controlConnection == null) {
+            throw new IllegalStateException("Service is not running.");
+        }
+        String key = (privateKey == null || privateKey.isEmpty()) ? "NEW:ED25519-V3" : privateKey;
+        Map<String, String> reply = controlConnection.addOnion(key,
+                Collections.singletonMap(hiddenServicePort, "127.0.0.1:" + localPort), null);
+        String serviceId = reply.get("ServiceID");
+        if (serviceId == null) {
+            throw new IOException("ADD_ONION reply did not contain a ServiceID");
+        }
+        descriptorTracker.published(serviceId);
+        LOG.info("Ephemeral hidden service has been created: " + serviceId);
+        return new EphemeralHiddenService(serviceId, reply.containsKey("PrivateKey") ?
+                reply.get("PrivateKey") : privateKey);
+    }
+
+    /**
+     * Removes an ephemeral hidden service
+     *
+     * @param serviceId service id, with or without the ".onion" suffix
+     * @return true if removed, otherwise false
+     */
+    public synchronized boolean removeEphemeralHiddenService(String serviceId) {
+        if (!hasControlConnection()) {
+            return false;
+        }
+        try {
+            controlConnection.delOnion(serviceId.endsWith(".onion") ?
+                    serviceId.substring(0, serviceId.length() - ".onion".length()) : serviceId);
+            descriptorTracker.untrack(serviceId);
+            return true;
+        } catch (IOException e) {
+            eventBroadcaster.broadcastDebug("error removing onion service: " + e.getLocalizedMessage());
+            return false;
+        }
+    }
+
+    /**
+     * Waits until the descriptor of a published hidden service has been uploaded to at least one HSDir. Only then
+     * can clients reach the service, so this is the earliest point to route traffic to it.
+     *
+     * @param onionAddress onion address returned when the service was published
+     * @return true if the service is reachable, false if the timeout expired first or the service was not
+     * published through this manager since tor started
+     */
+    public boolean awaitHiddenServiceReachable(String onionAddress, long timeout, TimeUnit unit)
+            throws InterruptedException {
+        return descriptorTracker.awaitReachable(onionAddress, timeout, unit);
+    }
+
+    /**
+     * @return tracker of hidden service descriptor uploads, with per service upload timings
+     */
+    public HiddenServiceDescriptorTracker getHiddenServiceDescriptorTracker() {
+        return descriptorTracker;
+    }
+
+    /**
+     * Builds general purpose circuits ahead of the first requests, so that those don't pay circuit construction
+     * latency. Tor keeps the circuits open and attaches new streams to them. Call once bootstrap is complete, and
+     * only report the instance as ready once this returns.
+     *
+     * @param count number of circuits to build
+     * @return number of circuits built before the timeout expired
+     * @throws java.io.IOException - control connection errors
+     * @throws IllegalStateException if control service is not running or tor has not finished bootstrapping
+     */
+    public int warmUpCircuits(int count, long timeout, TimeUnit unit) throws IOException, InterruptedException {
+        if (count <= 0) {
+            throw new IllegalArgumentException("count must be > 0");
+        }
+        TorControlConnection connection = controlConnection;
+        if (connection == null) {
+            throw new IllegalStateException("Service is not running.");
+        }
+        if (!isBootstrapped()) {
+            throw new IllegalStateException("Tor has not finished bootstrapping");
+        }
+        long start = System.currentTimeMillis();
+        CircuitWarmUp warmUp = new CircuitWarmUp();
+        addEventListener(warmUp);
+        try {
+            List<String> circuitIds = new ArrayList<>(count);
+            for (int i = 0; i < count; i++) {
+                circuitIds.add(connection.buildCircuit());
+            }
+            int built = warmUp.await(circuitIds, unit.toMillis(timeout));
+            LOG.info("Warm up built {} of {} circuits: time = {}ms", built, count,
+                    System.currentTimeMillis() - start);
+            eventBroadcaster.broadcastNotice("Circuits ready: " + built + " of " + count);
+            return built;
+        } finally {
+            removeEventListener(warmUp);
+        }
+    }
+
+    /**
+     * Adds a handler that receives control port events alongside the handler given at construction. Unless it
+     * implements EventSubscriber, tor is asked for every default event type while it is registered.
+     */
+    public void addEventHandler(EventHandler handler) {
+        eventHandlers.addHandler(handler);
+        refreshEventSubscription();
+    }
+
+    public boolean removeEventHandler(EventHandler handler) {
+        boolean removed = eventHandlers.removeHandler(handler);
+        refreshEventSubscription();
+        return removed;
+    }
+
+    /**
+     * Adds a listener that receives typed circuit, stream, OR connection, bandwidth and status events
+     */
+    public void addEventListener(TorEventListener listener) {
+        eventDispatcher.addListener(listener);
+        refreshEventSubscription();
+    }
+
+    public boolean removeEventListener(TorEventListener listener) {
+        boolean removed = eventDispatcher.removeListener(listener);
+        refreshEventSubscription();
+        return removed;
+    }
+
+    /**
+     * Has tor generate a new v3 onion key by creating and immediately removing a throwaway ephemeral service.
+     *
+     * @return private key in the form "ED25519-V3:base64"
+     * @throws java.io.IOException - control connection errors
+     * @throws IllegalStateException if control service is not running
+     */
+    synchronized String generateOnionKey() throws IOException {
+        if (controlConnection == null) {
+            throw new IllegalStateException("Service is not running.");
+        }
+        // ADD_ONION has no flag to generate a key without publishing, so the throwaway service is removed right
+        // away. It is never tracked, so the descriptor tracker ignores its HS_DESC events.
+        Map<String, String> reply = controlConnection.addOnion("NEW:ED25519-V3",
+                Collections.singletonMap(1, (String) null), null);
+        String serviceId = reply.get("ServiceID");
+        if (serviceId != null) {
+            controlConnection.delOnion(serviceId);
+        }
+        String privateKey = reply.get("PrivateKey");
+        if (privateKey == null) {
+            throw new IOException("ADD_ONION reply did not contain a PrivateKey");
+        }
+        return privateKey;
+    }
+
+    private static boolean awaitHostname(Future<Boolean> hostnameWritten, long deadline) throws IOException {
+        try {
+            return hostnameWritten.get(Math.max(0, deadline - System.nanoTime()), NANOSECONDS);
+        } catch (TimeoutException e) {
+            return false;
+        } catch (ExecutionException e) {
+            throw new IOException(e.getCause());
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted while waiting for hidden service hostname", e);
+        }
+    }
+
+    /**
+     * Persists the current config to torrc according to the settings. If hidden services are not persistent then
+     * nothing is written. If a save conf delay is set then saves within that window are coalesced into a single
+     * SAVECONF, so bursts of publish operations pay for only one torrc rewrite.
+     */
+    private synchronized void saveConf() throws IOException {
+        TorSettings settings = onionProxyContext.getSettings();
+        if (!settings.hasPersistentHiddenServices()) {
+            return;
+        }
+        int delay = settings.getSaveConfDelay();
+        if (delay <= 0) {
+            controlConnection.saveConf();
+            return;
+        }
+        if (pendingSaveConf != null && !pendingSaveConf.isDone()) {
+            return;
+        }
+        pendingSaveConf = getScheduler().schedule(new Runnable() {
+            @Override
+            public void run() {
+                synchronized (OnionProxyManager.this) {
+                    pendingSaveConf = null;
+                    if (controlConnection == null) {
+                        LOG.warn("Deferred SAVECONF dropped: no control connection");
+                        return;
+                    }
+                    try {
+                        controlConnection.saveConf();
+                    } catch (IOException e) {
+                        LOG.warn("Deferred SAVECONF failed", e);
+                    }
+                }
+            }
+        }, delay, MILLISECONDS);
+    }
+
+    /**
+     * Runs any deferred SAVECONF now rather than waiting for its delay to expire
+     */
+    private synchronized void flushSaveConf() throws IOException {
+        if (pendingSaveConf != null && pendingSaveConf.cancel(false)) {
+            pendingSaveConf = null;
+            if (controlConnection == null) {
+                throw new IOException("No control connection for deferred SAVECONF");
+            }
+            controlConnection.saveConf();
+        }
+    }
+
+    /**
+     * Flushes any deferred SAVECONF before the control connection goes away, logging instead of throwing if it
+     * can't be written, so the lost config change is at least visible
+     */
+    private synchronized void flushSaveConfOrWarn() {
+        try {
+            flushSaveConf();
+        } catch (IOException e) {
+            LOG.warn("Deferred SAVECONF could not be written; config changes since the last save are lost", e);
+        }
+    }
+
+    /**
+     * Single daemon thread shared by the manager for deferred and periodic work
+     */
+    synchronized ScheduledExecutorService getScheduler() {
+        if (scheduler == null) {
+            scheduler = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+                @Override
+                public Thread newThread(Runnable r) {
+                    Thread thread = new Thread(r, "OnionProxyManager");
+                    thread.setDaemon(true);
+                    return thread;
+                }
+            });
+        }
+        return scheduler;
+    }
+
     /**
      * Kills the Tor OP Process. Once you have called this method nothing is going to work until you either call
      * startWithRepeat or start
@@ -240,27 +785,121 @@ public class OnionProxyManager {
      * @throws java.io.IOException - File errors
      */
     public synchronized void stop() throws IOException {
+        supervisor.unwatch();
         try {
             if (controlConnection == null) {
                 return;
             }
             LOG.info("Stopping Tor");
+            flushSaveConf();
             eventBroadcaster.broadcastNotice("Using control port to shutdown Tor");
             controlConnection.setConf("DisableNetwork", "1");
             controlConnection.shutdownTor("HALT");
             eventBroadcaster.broadcastNotice("sending HALT signal to Tor process");
         } finally {
-            controlConnection = null;
-            if (controlSocket != null) {
-                try {
-                    controlSocket.close();
-                } finally {
-                    controlSocket = null;
-                }
+            torProcess = null;
+            releaseControlConnection();
+        }
+    }
+
+    private void releaseControlConnection() throws IOException {
+        flushSaveConfOrWarn();
+        controlConnection = null;
+        descriptorTracker.clear();
+        circuitRegistry.reset();
+        if (bandwidthBroadcast != null) {
+            bandwidthBroadcast.cancel(false);
+            bandwidthBroadcast = null;
+        }
+        if (exitFlagCheck != null) {
+            exitFlagCheck.cancel(false);
+            exitFlagCheck = null;
+        }
+        stopEventQueue();
+        if (controlSocket != null) {
+            try {
+                controlSocket.close();
+            } finally {
+                controlSocket = null;
             }
         }
     }
 
+    /**
+     * Restarts tor after it died: drops the dead control connection and process, then starts again with the same
+     * data directory. Called by the process supervisor.
+     */
+    synchronized void recover() throws IOException {
+        LOG.info("Recovering Tor");
+        try {
+            releaseControlConnection();
+        } catch (IOException e) {
+            LOG.debug("Couldn't close dead control socket", e);
+        }
+        if (torProcess != null) {
+            try {
+                ProcessTerminator.terminate(torProcess, -1, KILL_GRACE_MILLIS, KILL_GRACE_MILLIS);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new IOException("Interrupted while stopping Tor");
+            }
+            torProcess = null;
+        }
+        eventBroadcaster.broadcastNotice("Restarting Tor");
+        start();
+    }
+
+    /**
+     * Returns the supervisor that restarts tor when its process exits or the control connection closes. It is
+     * disabled until {@link ProcessSupervisor#setEnabled(boolean)} is called.
+     */
+    public ProcessSupervisor getProcessSupervisor() {
+        return supervisor;
+    }
+
+    /**
+     * Stops tor gracefully: closes the SOCKS listeners so that no new streams are accepted, waits for the streams
+     * that are open to finish, then calls {@link #stop()}. Tor keeps streams on a closed listener open, so they
+     * finish normally. Streams still open at the deadline are cut off by the stop.
+     *
+     * @param listener receives the number of open streams as they finish, may be null
+     * @return number of streams still open when tor was stopped
+     * @throws java.io.IOException - control connection errors
+     */
+    public int drainAndStop(long timeout, TimeUnit unit, DrainListener listener)
+            throws IOException, InterruptedException {
+        StreamDrain drain = new StreamDrain(listener);
+        synchronized (this) {
+            if (controlConnection == null) {
+                return 0;
+            }
+            LOG.info("Draining streams before stopping Tor");
+            eventBroadcaster.broadcastNotice("Closing SOCKS listeners to drain streams");
+            eventDispatcher.addListener(drain);
+            try {
+                // Without STREAM events the drain would only ever end at its deadline
+                updateEventSubscription();
+                controlConnection.setConf("SocksPort", "0");
+                drain.seed(controlConnection.getInfo("stream-status"));
+            } catch (IOException e) {
+                removeEventListener(drain);
+                throw e;
+            }
+        }
+        int remaining;
+        try {
+            remaining = drain.await(unit.toMillis(timeout));
+        } finally {
+            removeEventListener(drain);
+        }
+        if (remaining > 0) {
+            LOG.warn("Drain deadline passed with {} streams open", remaining);
+        }
+        eventBroadcaster.broadcastNotice("Streams drained, " + remaining + " still open");
+        stop();
+        return remaining;
+    }
+
     /**
      * Checks to see if the Tor OP is running (e.g. fully bootstrapped) and open to network connections.
      *
@@ -362,12 +1001,17 @@ public class OnionProxyManager {
             cookieAuthFile.delete();
             if (!cookieAuthFile.getParentFile().exists()) cookieAuthFile.getParentFile().mkdirs();
 
+            long stageStart = System.currentTimeMillis();
             torProcess = spawnTorProcess();
+            stageStart = recordStartStage("spawn", stageStart);
             try {
                 waitForControlPortFileCreation(controlPortFile);
+                stageStart = recordStartStage("controlPortFile", stageStart);
                 controlConnection = connectToTorControlSocket(controlPortFile);
+                recordStartStage("connect", stageStart);
             } catch (IOException e) {
                 if(torProcess != null) torProcess.destroy();
+                stopEventQueue();
                 throw new IOException(e.getMessage());            }
         } else {
             LOG.info("Using existing Tor Process");
@@ -375,10 +1019,16 @@ public class OnionProxyManager {
 
         try {
             this.controlConnection = controlConnection;
+            controlConnection.setInstrumentation(instrumentation);
+            // Launched here, before any command, so the supervisor can watch for the socket closing
+            Thread controlReader = controlConnection.launchThread(true);
 
+            long stageStart = System.currentTimeMillis();
             File cookieAuthFile = getContext().getConfig().getCookieAuthFile();
             waitForCookieAuthFileCreation(cookieAuthFile);
+            stageStart = recordStartStage("cookieAuthFile", stageStart);
             controlConnection.authenticate(FileUtilities.read(cookieAuthFile));
+            stageStart = recordStartStage("authenticate", stageStart);
             eventBroadcaster.broadcastNotice("SUCCESS - authenticated tor control port.");
 
             if(hasExistingTorConnection) {
@@ -391,20 +1041,271 @@ public class OnionProxyManager {
             eventBroadcaster.broadcastNotice("Took ownership of tor control port.");
 
             eventBroadcaster.broadcastNotice("adding control port event handler");
-            controlConnection.setEventHandler(eventHandler);
-            controlConnection.setEvents(Arrays.asList(EVENTS));
+            controlConnection.setEventHandler(createControlEventHandler());
+            synchronized (subscriptionLock) {
+                subscribedEvents = null;
+                updateEventSubscription();
+            }
             eventBroadcaster.broadcastNotice("SUCCESS added control port event handler");
 
             enableNetwork(true);
+            recordStartStage("configure", stageStart);
+            startBandwidthBroadcast();
+            if (onionProxyContext.getSettings().hasRelayRecommendations()) {
+                getRelayScoreboard();
+            }
+            startExitFlagCheck();
+            this.torProcess = torProcess;
+            supervisor.watch(torProcess, controlReader);
         } catch (IOException e) {
             if(torProcess != null) torProcess.destroy();
             this.controlConnection = null;
+            stopEventQueue();
             throw new IOException(e.getMessage());
         }
 
         LOG.info("Completed starting of tor");
     }
 
+    /**
+     * Returns the handler to register with the control connection. If an event queue size is set, events are
+     * handed off through a ring buffer so handlers never run on the control connection's reader thread.
+     */
+    private EventHandler createControlEventHandler() {
+        AsyncEventHandler handler = startEventQueue();
+        return handler == null ? eventHandlers : handler;
+    }
+
+    /**
+     * Starts the event queue if an event queue size is set. The queue is started before tor is spawned, so that
+     * process output goes through the same queue as the control port events that follow it.
+     *
+     * @return the running queue, or null if events are delivered directly
+     */
+    private synchronized AsyncEventHandler startEventQueue() {
+        TorSettings settings = onionProxyContext.getSettings();
+        if (settings.getEventQueueSize() <= 0) {
+            return null;
+        }
+        if (asyncEventHandler == null) {
+            AsyncEventHandler handler = new AsyncEventHandler(eventHandlers, settings.getEventQueueSize(),
+                    settings.getEventOverflowPolicy());
+            handler.start();
+            asyncEventHandler = handler;
+        }
+        return asyncEventHandler;
+    }
+
+    private synchronized void stopEventQueue() {
+        if (asyncEventHandler != null) {
+            asyncEventHandler.stop();
+            asyncEventHandler = null;
+        }
+    }
+
+    /**
+     * Sets where measurements of this manager are recorded: start stage durations, bootstrap progress, control
+     * command latency, event rates and circuit build outcomes. Pass null or Instrumentation.NONE to stop
+     * measuring.
+     */
+    public synchronized void setInstrumentation(Instrumentation instrumentation) {
+        this.instrumentation = instrumentation == null ? Instrumentation.NONE : instrumentation;
+        if (instrumentedEventHandler != null) {
+            eventHandlers.removeHandler(instrumentedEventHandler);
+            instrumentedEventHandler = null;
+        }
+        if (this.instrumentation.isEnabled()) {
+            instrumentedEventHandler = new InstrumentedEventHandler(this.instrumentation);
+            eventHandlers.addHandler(instrumentedEventHandler);
+        }
+        if (controlConnection != null) {
+            controlConnection.setInstrumentation(this.instrumentation);
+        }
+        refreshEventSubscription();
+    }
+
+    public Instrumentation getInstrumentation() {
+        return instrumentation;
+    }
+
+    private long recordStartStage(String stage, long stageStart) {
+        long now = System.currentTimeMillis();
+        instrumentation.recordStartStage(stage, now - stageStart);
+        return now;
+    }
+
+    /**
+     * @return union of the event types needed by the registered handlers
+     */
+    private Set<String> getEventTypes() {
+        Set<String> events = new LinkedHashSet<>();
+        for (EventHandler handler : eventHandlers.getHandlers()) {
+            if (handler instanceof EventSubscriber) {
+                events.addAll(((EventSubscriber) handler).getEventTypes());
+            } else {
+                events.addAll(Arrays.asList(EVENTS));
+            }
+        }
+        if (!onionProxyContext.getSettings().hasControlPortLogEvents()) {
+            events.remove("NOTICE");
+            events.remove("WARN");
+        }
+        return events;
+    }
+
+    /**
+     * Sends SETEVENTS if the event types needed by the registered handlers have changed since the last time
+     */
+    private void updateEventSubscription() throws IOException {
+        synchronized (subscriptionLock) {
+            TorControlConnection connection = controlConnection;
+            if (connection == null) {
+                return;
+            }
+            Set<String> events = getEventTypes();
+            if (events.equals(subscribedEvents)) {
+                return;
+            }
+            connection.setEvents(new ArrayList<>(events));
+            subscribedEvents = events;
+            LOG.info("Subscribed to events: {}", events);
+        }
+    }
+
+    private void refreshEventSubscription() {
+        try {
+            updateEventSubscription();
+        } catch (IOException e) {
+            LOG.warn("Couldn't update event subscription", e);
+        }
+    }
+
+    /**
+     * Periodically sends the bandwidth rates and totals to the event broadcaster
+     */
+    private void startBandwidthBroadcast() {
+        int interval = onionProxyContext.getSettings().getBandwidthBroadcastInterval();
+        if (interval <= 0 || bandwidthBroadcast != null) {
+            return;
+        }
+        final BandwidthMeter meter = getBandwidthMeter();
+        bandwidthBroadcast = getScheduler().scheduleAtFixedRate(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    meter.broadcast(eventBroadcaster);
+                } catch (RuntimeException e) {
+                    LOG.warn("Bandwidth broadcast failed", e);
+                }
+            }
+        }, interval, interval, SECONDS);
+    }
+
+    /**
+     * @return totals, rates and per minute history of the bandwidth used by tor. BW events are only requested from
+     * tor once this has been called or bandwidth broadcasts are enabled.
+     */
+    public BandwidthMeter getBandwidthMeter() {
+        synchronized (subscriptionLock) {
+            if (!bandwidthMeterActive) {
+                bandwidthMeterActive = true;
+                eventHandlers.addHandler(bandwidthMeter);
+                refreshEventSubscription();
+            }
+        }
+        return bandwidthMeter;
+    }
+
+    /**
+     * @return live table of circuits with build time statistics. Circuits are only tracked from the first call.
+     */
+    public CircuitRegistry getCircuitRegistry() {
+        synchronized (subscriptionLock) {
+            if (!circuitRegistryActive) {
+                circuitRegistryActive = true;
+                eventDispatcher.addListener(circuitRegistry);
+                refreshEventSubscription();
+            }
+        }
+        return circuitRegistry;
+    }
+
+    /**
+     * @return per relay latency and failure scores, shared with the context so that they carry over to the next
+     * start. Relays are only scored from the first call, or from start when relay recommendations are enabled.
+     */
+    public RelayScoreboard getRelayScoreboard() {
+        RelayScoreboard scoreboard = onionProxyContext.getRelayScoreboard();
+        boolean activated = false;
+        synchronized (subscriptionLock) {
+            if (!relayScoreboardActive) {
+                relayScoreboardActive = true;
+                activated = true;
+                eventDispatcher.addListener(scoreboard);
+                refreshEventSubscription();
+            }
+        }
+        if (activated) {
+            startExitFlagCheck();
+        }
+        return scoreboard;
+    }
+
+    /**
+     * Periodically looks up the Exit flag of relays the scoreboard has seen as last hops, so that only real exits
+     * are recommended
+     */
+    private synchronized void startExitFlagCheck() {
+        synchronized (subscriptionLock) {
+            if (!relayScoreboardActive) {
+                return;
+            }
+        }
+        if (controlConnection == null || exitFlagCheck != null) {
+            return;
+        }
+        exitFlagCheck = getScheduler().scheduleWithFixedDelay(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    checkExitFlags();
+                } catch (RuntimeException e) {
+                    LOG.warn("Exit flag check failed", e);
+                }
+            }
+        }, EXIT_FLAG_CHECK_INTERVAL, EXIT_FLAG_CHECK_INTERVAL, SECONDS);
+    }
+
+    /**
+     * Sets the Exit flag of every unverified last hop from its consensus entry. A relay that left the consensus
+     * gets no answer from tor and stays unverified, so it is never recommended as an exit.
+     */
+    void checkExitFlags() {
+        RelayScoreboard scoreboard = onionProxyContext.getRelayScoreboard();
+        for (String fingerprint : scoreboard.getUnverifiedLastHops()) {
+            TorControlConnection connection = controlConnection;
+            if (connection == null) {
+                return;
+            }
+            String status;
+            try {
+                status = connection.getInfo("ns/id/" + fingerprint);
+            } catch (IOException e) {
+                LOG.debug("No network status for {}", fingerprint, e);
+                continue;
+            }
+            scoreboard.setExitFlag(fingerprint, RelayScoreboard.hasExitFlag(status));
+        }
+    }
+
+    /**
+     * @return number of control port events dropped because the event queue was full
+     */
+    public long getDroppedEventCount() {
+        AsyncEventHandler handler = asyncEventHandler;
+        return handler == null ? 0 : handler.getDroppedCount();
+    }
+
     /**
      * Finds existing tor control connection by trying to connect. Returns null if
      */
@@ -461,10 +1362,9 @@ public class OnionProxyManager {
             LOG.warn(e.toString(), e);
             throw new IOException(e);
         }
+        startEventQueue();
         eatStream(torProcess.getErrorStream(), true);
-        if (getContext().getSettings().hasDebugLogs()) {
-            eatStream(torProcess.getInputStream(), false);
-        }
+        eatStream(torProcess.getInputStream(), false);
         return torProcess;
     }
 
@@ -507,21 +1407,43 @@ public class OnionProxyManager {
         LOG.info("Created cookie auth file: time = " + (System.currentTimeMillis() - cookieAuthStartTime) + "ms");
     }
 
-    private void eatStream(final InputStream inputStream, boolean isError) {
+    /**
+     * Reads tor process output on a dedicated thread. Each line is logged and, while event listeners are
+     * registered, handed to the event queue with the control port events, where it is subject to the same overflow
+     * policy and counters. It is parsed into a LogEvent on the delivery thread. Without an event queue it is
+     * dispatched directly.
+     */
+    private void eatStream(final InputStream inputStream, final boolean isError) {
+        final boolean debugLogs = getContext().getSettings().hasDebugLogs();
+        final LogEvent.Source source = isError ? LogEvent.Source.STDERR : LogEvent.Source.STDOUT;
         new Thread() {
             @Override
             public void run() {
-                Scanner scanner = new Scanner(inputStream);
+                BufferedReader reader = new BufferedReader(new InputStreamReader(inputStream), STREAM_BUFFER_SIZE);
                 try {
-                    while (scanner.hasNextLine()) {
-                        String line = scanner.nextLine();
+                    String line;
+                    while ((line = reader.readLine()) != null) {
                         if(isError) {
                             LOG.error(line);
-                            eventBroadcaster.broadcastException(line, new Exception());
-                        } else {
+                            if (eventBroadcaster instanceof BaseEventBroadcaster) {
+                                ((BaseEventBroadcaster) eventBroadcaster).broadcastProcessError(line);
+                            } else {
+                                eventBroadcaster.broadcastException(line, new Exception());
+                            }
+                        } else if (debugLogs) {
                             LOG.info(line);
                         }
+                        if (!eventDispatcher.getListeners().isEmpty()) {
+                            AsyncEventHandler queue = asyncEventHandler;
+                            if (queue != null) {
+                                queue.processOutput(source, line);
+                            } else {
+                                eventHandlers.processOutput(source, line);
+                            }
+                        }
                     }
+                } catch (IOException e) {
+                    LOG.debug("Tor process output closed", e);
                 } finally {
                     try {
                         inputStream.close();
@@ -609,7 +1531,9 @@ public class OnionProxyManager {
         if(torInstaller == null) {
             throw new IOException("No TorInstaller found");
         }
+        long start = System.nanoTime();
         torInstaller.setup();
+        instrumentation.recordInstallerIo("setup", System.nanoTime() - start);
     }
 
     public TorInstaller getTorInstaller() {
@@ -626,43 +1550,143 @@ public class OnionProxyManager {
     }
 
     /**
-     * Sets the exit nodes through the tor control connection
+     * Sets the exit nodes through the tor control connection, without interrupting streams whose exits are still
+     * allowed. See {@link #applyExitNodes(String)}.
      *
-     * @param exitNodes
+     * @param exitNodes ExitNodes value, or null or empty to allow any exit
      * @return true if successfully set, otherwise false
      */
     public boolean setExitNode(String exitNodes) {
-        //Based on config params from Orbot project
         if (!hasControlConnection()) {
             return false;
         }
-        if (exitNodes == null || exitNodes.isEmpty()) {
-            try {
-                ArrayList<String> resetBuffer = new ArrayList<>();
-                resetBuffer.add("ExitNodes");
-                resetBuffer.add("StrictNodes");
-                controlConnection.resetConf(resetBuffer);
-                controlConnection.setConf("DisableNetwork", "1");
-                controlConnection.setConf("DisableNetwork", "0");
-            } catch (Exception ioe) {
-                LOG.error("Connection exception occurred resetting exits", ioe);
-                return false;
+        try {
+            applyExitNodes(exitNodes);
+        } catch (IOException ioe) {
+            LOG.error("Connection exception occurred resetting exits", ioe);
+            return false;
+        }
+        return true;
+    }
+
+    /**
+     * Applies ExitNodes and StrictNodes in a single SETCONF, then closes only the built general purpose circuits
+     * whose exit is not allowed by the new value. Other circuits, and the streams on them, are left alone.
+     *
+     * @param exitNodes ExitNodes value, or null or empty to allow any exit
+     * @return number of circuits closed
+     * @throws java.io.IOException - control connection errors
+     * @throws IllegalStateException if control service is not running
+     */
+    public synchronized int applyExitNodes(String exitNodes) throws IOException {
+        if (controlConnection == null) {
+            throw new IllegalStateException("Service is not running.");
+        }
+        if (exitNodes == null || exitNodes.trim().isEmpty()) {
+            controlConnection.resetConf(Arrays.asList("ExitNodes", "StrictNodes"));
+            return 0;
+        }
+        ExitNodeSpec spec = new ExitNodeSpec(exitNodes);
+        Map<String, String> conf = new LinkedHashMap<>();
+        if (spec.needsCountry()) {
+            conf.put("GeoIPFile", config.getGeoIpFile().getCanonicalPath());
+            conf.put("GeoIPv6File", config.getGeoIpv6File().getCanonicalPath());
+        }
+        conf.put("ExitNodes", exitNodes);
+        conf.put("StrictNodes", "1");
+        controlConnection.setConf(conf);
+
+        String circuits = controlConnection.getInfo("circuit-status");
+        if (circuits == null || circuits.isEmpty()) {
+            return 0;
+        }
+        Map<String, String> addresses = new HashMap<>();
+        Map<String, String> countries = new HashMap<>();
+        EventTokenizer tokenizer = new EventTokenizer();
+        int closed = 0;
+        for (String line : circuits.split("\n")) {
+            tokenizer.reset(line.trim());
+            if (!tokenizer.next()) {
+                continue;
             }
-        } else {
-            try {
-                controlConnection.setConf("GeoIPFile", config.getGeoIpFile().getCanonicalPath());
-                controlConnection.setConf("GeoIPv6File", config.getGeoIpv6File().getCanonicalPath
-                        ());
-                controlConnection.setConf("ExitNodes", exitNodes);
-                controlConnection.setConf("StrictNodes", "1");
-                controlConnection.setConf("DisableNetwork", "1");
-                controlConnection.setConf("DisableNetwork", "0");
-            } catch (Exception ioe) {
-                LOG.error("Connection exception occurred resetting exits", ioe);
-                return false;
+            String circuitId = tokenizer.token();
+            if (!tokenizer.next() || !tokenizer.tokenEquals(CircuitEvent.BUILT) || !tokenizer.next()
+                    || tokenizer.isKey("PURPOSE") || tokenizer.isKey("BUILD_FLAGS")) {
+                continue;
+            }
+            String path = tokenizer.token();
+            String flags = null;
+            String purpose = null;
+            while (tokenizer.next()) {
+                if (tokenizer.isKey("BUILD_FLAGS")) {
+                    flags = tokenizer.value();
+                } else if (tokenizer.isKey("PURPOSE")) {
+                    purpose = tokenizer.value();
+                }
+            }
+            if (!"GENERAL".equals(purpose) || flags != null
+                    && (flags.contains("IS_INTERNAL") || flags.contains("ONEHOP_TUNNEL"))) {
+                continue;
+            }
+            String exit = path.substring(path.lastIndexOf(',') + 1);
+            String fingerprint = CircuitEvent.fingerprintOf(exit);
+            int tilde = exit.indexOf('~');
+            String nickname = tilde < 0 ? null : exit.substring(tilde + 1);
+            String address = null;
+            String country = null;
+            if (spec.needsAddress()) {
+                address = lookupRelayAddress(fingerprint, addresses);
+                if (address != null && spec.needsCountry()) {
+                    country = lookupCountry(address, countries);
+                }
+            }
+            if (!spec.matches(fingerprint, nickname, address, country)) {
+                controlConnection.closeCircuit(circuitId, false);
+                closed++;
             }
         }
-        return true;
+        LOG.info("Exit nodes set to {}, closed {} circuits", exitNodes, closed);
+        return closed;
+    }
+
+    /**
+     * @return the address from the relay's consensus entry, <code>r Nickname Identity Digest Date Time IP ...</code>
+     */
+    private String lookupRelayAddress(String fingerprint, Map<String, String> cache) {
+        if (cache.containsKey(fingerprint)) {
+            return cache.get(fingerprint);
+        }
+        String address = null;
+        try {
+            String entry = controlConnection.getInfo("ns/id/" + fingerprint);
+            if (entry != null) {
+                for (String line : entry.split("\n")) {
+                    String[] fields = line.trim().split(" ");
+                    if (fields.length > 6 && "r".equals(fields[0])) {
+                        address = fields[6];
+                        break;
+                    }
+                }
+            }
+        } catch (IOException e) {
+            LOG.debug("No consensus entry for " + fingerprint, e);
+        }
+        cache.put(fingerprint, address);
+        return address;
+    }
+
+    private String lookupCountry(String address, Map<String, String> cache) {
+        if (cache.containsKey(address)) {
+            return cache.get(address);
+        }
+        String country = null;
+        try {
+            country = controlConnection.getInfo("ip-to-country/" + address);
+        } catch (IOException e) {
+            LOG.debug("No country for " + address, e);
+        }
+        cache.put(address, country);
+        return country;
     }
 
     public boolean disableNetwork(boolean isEnabled) {
@@ -679,17 +1703,48 @@ public class OnionProxyManager {
         }
     }
 
+    /**
+     * Requests a new identity through the identity rotator. The signal is sent once tor's rate limit allows; use
+     * {@link #getIdentityRotator()} to wait for the new circuits.
+     *
+     * @return true if the request was queued, false if there is no control connection
+     */
     public boolean setNewIdentity() {
         if (!hasControlConnection()) {
             return false;
         }
-        try {
-            controlConnection.signal("NEWNYM");
-            return true;
-        } catch (IOException e) {
-            eventBroadcaster.broadcastDebug("error requesting newnym: "
-                    + e.getLocalizedMessage());
-            return false;
+        getIdentityRotator().requestRotation();
+        return true;
+    }
+
+    /**
+     * Returns the scheduler of NEWNYM signals, which batches requests and honours tor's rate limit. Circuit events
+     * are only requested from tor once this has been called.
+     */
+    public IdentityRotator getIdentityRotator() {
+        ScheduledExecutorService executor = getScheduler();
+        synchronized (subscriptionLock) {
+            if (identityRotator == null) {
+                identityRotator = new IdentityRotator(new IdentityRotator.Signaller() {
+                    @Override
+                    public void newnym() throws IOException {
+                        TorControlConnection connection = controlConnection;
+                        if (connection == null) {
+                            throw new IOException("Service is not running.");
+                        }
+                        try {
+                            connection.signal("NEWNYM");
+                        } catch (IOException e) {
+                            eventBroadcaster.broadcastDebug("error requesting newnym: "
+                                    + e.getLocalizedMessage());
+                            throw e;
+                        }
+                    }
+                }, executor);
+                eventDispatcher.addListener(identityRotator);
+                refreshEventSubscription();
+            }
+            return identityRotator;
         }
     }
 
@@ -713,59 +1768,81 @@ public class OnionProxyManager {
         }
     }
 
+    /**
+     * Asks tor to reload its config, replacing the tor process if the reload can't be sent
+     *
+     * @return true if tor reloaded or was replaced
+     */
     public boolean reloadTorConfig() {
         if (!hasControlConnection()) {
             return false;
         }
         try {
-            controlConnection.signal("HUP");
+            restartTorProcess();
             return true;
-        } catch (IOException e) {
-            e.printStackTrace();
+        } catch (Exception e) {
+            LOG.warn("Couldn't reload tor config, restarting tor", e);
         }
         try {
-            restartTorProcess();
+            killAndStartTorProcess();
             return true;
         } catch (Exception e) {
-            e.printStackTrace();
+            LOG.warn("Couldn't restart tor", e);
         }
         return false;
     }
 
-    public void restartTorProcess() throws Exception {
-        killTorProcess(-1);
+    /**
+     * Sends SIGHUP to tor over the control connection, so it reloads its config. The process keeps running; use
+     * {@link #killAndStartTorProcess()} to replace it.
+     *
+     * @throws IOException if the signal could not be sent
+     * @throws IllegalStateException if control service is not running
+     */
+    public synchronized void restartTorProcess() throws Exception {
+        if (controlConnection == null) {
+            throw new IllegalStateException("Service is not running.");
+        }
+        controlConnection.signal("HUP");
     }
 
-    public void killTorProcess() throws Exception {
-        killTorProcess(-9);
+    /**
+     * Stops the tor process and starts a new one with the same data directory
+     */
+    public synchronized void killAndStartTorProcess() throws Exception {
+        killTorProcess();
+        start();
     }
 
-    private void killTorProcess(int signal) throws Exception {
-        //Based on logic from Orbot project
-        String torFileName = config.getTorExecutableFile().getName();
-        int procId;
-        int killAttempts = 0;
-        while ((procId = getTorPid()) != -1) {
-            String pidString = String.valueOf(procId);
-            execIgnoreException(format("busybox killall %d %s", signal, torFileName));
-            execIgnoreException(format("toolbox kill %d %s", signal, pidString));
-            execIgnoreException(format("busybox kill %d %s", signal, pidString));
-            execIgnoreException(format("kill %d %s", signal, pidString));
+    /**
+     * Stops the tor process without forking any helper: HALT on the control connection, then SIGTERM and finally
+     * a forced kill if tor is still running after {@link #KILL_GRACE_MILLIS} at each step.
+     *
+     * @throws Exception if tor was still running after the forced kill
+     */
+    public synchronized void killTorProcess() throws Exception {
+        supervisor.unwatch();
+        Process process = torProcess;
+        int pid = getTorPid();
+        flushSaveConfOrWarn();
+        if (controlConnection != null) {
             try {
-                Thread.sleep(1000);
-            } catch (InterruptedException e) {
+                controlConnection.shutdownTor("HALT");
+            } catch (IOException e) {
+                LOG.debug("Couldn't send HALT", e);
             }
-            killAttempts++;
-            if (killAttempts > 4)
-                throw new Exception("Cannot kill: " + config.getTorExecutableFile()
-                        .getAbsolutePath());
         }
-    }
-
-    private static void execIgnoreException(String command) {
+        torProcess = null;
         try {
-            Runtime.getRuntime().exec(command);
+            releaseControlConnection();
         } catch (IOException e) {
+            LOG.debug("Couldn't close control socket", e);
+        }
+        if (process == null && pid == -1) {
+            return;
+        }
+        if (!ProcessTerminator.terminate(process, pid, KILL_GRACE_MILLIS, KILL_GRACE_MILLIS)) {
+            throw new Exception("Cannot kill: " + config.getTorExecutableFile().getAbsolutePath());
         }
     }
 }
@@ -37,42 +37,48 @@ import java.util.Iterator;
 import java.util.List;
 
 /**
- * Logs the data we get from notifications from the Tor OP. This is really just meant for debugging.
+ * Logs the data we get from notifications from the Tor OP. This is really just meant for debugging. Log lines are
+ * only formatted when info logging is enabled; use a TorEventListener for typed access to events.
  */
 public class OnionProxyManagerEventHandler implements EventHandler {
     private static final Logger LOG = LoggerFactory.getLogger(OnionProxyManagerEventHandler.class);
 
     public void circuitStatus(String status, String id, String path) {
-        LOG.info("circuitStatus: status:" + status + ", id: " + id + ", path: " + path);
+        LOG.info("circuitStatus: status: {}, id: {}, path: {}", status, id, path);
     }
 
     public void streamStatus(String status, String id, String target) {
-        LOG.info("streamStatus: status: " + status + ", id: " + id + ", target: " + target);
+        LOG.info("streamStatus: status: {}, id: {}, target: {}", status, id, target);
     }
 
     public void orConnStatus(String status, String orName) {
-        LOG.info("OR connection: status: " + status + ", orName: " + orName);
+        LOG.info("OR connection: status: {}, orName: {}", status, orName);
     }
 
     public void bandwidthUsed(long read, long written) {
-        LOG.info("bandwidthUsed: read: " + read + ", written: " + written);
+        if (LOG.isInfoEnabled()) {
+            LOG.info("bandwidthUsed: read: {}, written: {}", read, written);
+        }
     }
 
     public void newDescriptors(List<String> orList) {
+        if (!LOG.isInfoEnabled()) {
+            return;
+        }
         Iterator<String> iterator = orList.iterator();
         StringBuilder stringBuilder = new StringBuilder();
         while(iterator.hasNext()) {
             stringBuilder.append(iterator.next());
         }
-        LOG.info("newDescriptors: " + stringBuilder.toString());
+        LOG.info("newDescriptors: {}", stringBuilder);
     }
 
     public void message(String severity, String msg) {
-        LOG.info("message: severity: " + severity + ", msg: " + msg);
+        LOG.info("message: severity: {}, msg: {}", severity, msg);
     }
 
     public void unrecognized(String type, String msg) {
-        LOG.info("unrecognized: type: " + type + ", msg: " + msg);
+        LOG.info("unrecognized: type: {}, msg: {}", type, msg);
     }
 
     private String shortenPath(List<String> path) {
@@ -0,0 +1,50 @@
+/*
+Copyright (c) Microsoft Open Technologies, Inc.
+All Rights Reserved
+Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except in compliance with the
+License. You may obtain a copy of the License at http://www.apache.org/licenses/LICENSE-2.0
+
+THIS CODE IS PROVIDED ON AN *AS IS* BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, EITHER EXPRESS OR IMPLIED,
+INCLUDING WITHOUT LIMITATION ANY IMPLIED WARRANTIES OR CONDITIONS OF TITLE, FITNESS FOR A PARTICULAR PURPOSE,
+MERCHANTABLITY OR NON-INFRINGEMENT.
+
+See the Apache 2 License for the specific language governing permissions and limitations under the License.
+*/
+package com.msopentech.thali.toronionproxy;
+
+/**
+ * An ORCONN event: a connection to a relay changing status
+ */
+public final class OrConnEvent implements TorEvent {
+    private final String status;
+    private final String orName;
+
+    public OrConnEvent(String status, String orName) {
+        this.status = status;
+        this.orName = orName;
+    }
+
+    public String getStatus() {
+        return status;
+    }
+
+    /**
+     * @return relay as "$FINGERPRINT~nickname" or address:port
+     */
+    public String getOrName() {
+        return orName;
+    }
+
+    @Override
+    public void deliverTo(TorEventListener listener) {
+        listener.onOrConnEvent(this);
+    }
+
+    @Override
+    public String toString() {
+        return "OrConnEvent{" +
+                "status=" + status +
+                ", orName=" + orName +
+                '}';
+    }
+}
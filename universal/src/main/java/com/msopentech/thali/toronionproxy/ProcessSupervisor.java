@@ -0,0 +1,267 @@
+/*
+Copyright (c) Microsoft Open Technologies, Inc.
+All Rights Reserved
+Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except in compliance with the
+License. You may obtain a copy of the License at http://www.apache.org/licenses/LICENSE-2.0
+
+THIS CODE IS PROVIDED ON AN *AS IS* BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, EITHER EXPRESS OR IMPLIED,
+INCLUDING WITHOUT LIMITATION ANY IMPLIED WARRANTIES OR CONDITIONS OF TITLE, FITNESS FOR A PARTICULAR PURPOSE,
+MERCHANTABLITY OR NON-INFRINGEMENT.
+
+See the Apache 2 License for the specific language governing permissions and limitations under the License.
+*/
+package com.msopentech.thali.toronionproxy;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.util.Random;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static java.util.concurrent.TimeUnit.MILLISECONDS;
+
+/**
+ * Restarts tor when it dies. The tor process and the control connection's reader thread are each watched by a
+ * daemon thread, so a crash or a closed control socket is noticed as it happens rather than on the next control
+ * command. Restarts are retried with exponential backoff and jitter; the data directory is kept, so tor comes back
+ * with its state and keys.
+ * <p>
+ * Supervision is off until {@link #setEnabled(boolean)} is called. Stopping the manager is never treated as a
+ * crash.
+ */
+public final class ProcessSupervisor {
+    private static final Logger LOG = LoggerFactory.getLogger(ProcessSupervisor.class);
+
+    public static final long DEFAULT_INITIAL_BACKOFF_MILLIS = 1000;
+    public static final long DEFAULT_MAX_BACKOFF_MILLIS = 5 * 60 * 1000;
+
+    /**
+     * A run at least this long resets the backoff
+     */
+    static final long STABLE_MILLIS = 60000;
+
+    public static final String CAUSE_PROCESS_EXIT = "process-exit";
+    public static final String CAUSE_CONTROL_EOF = "control-eof";
+
+    private final OnionProxyManager manager;
+    private final Random random = new Random();
+    // Incremented by each watch and unwatch, so watchers of an earlier run are ignored
+    private final AtomicInteger generation = new AtomicInteger();
+
+    private volatile boolean enabled;
+    private volatile long initialBackoffMillis = DEFAULT_INITIAL_BACKOFF_MILLIS;
+    private volatile long maxBackoffMillis = DEFAULT_MAX_BACKOFF_MILLIS;
+
+    // Guarded by this
+    private ScheduledFuture<?> pendingRestart;
+    private int attempts;
+    private long startedAt;
+    private long restartCount;
+    private long failedRestartCount;
+    private String lastCause;
+    private int lastExitCode = -1;
+
+    ProcessSupervisor(OnionProxyManager manager) {
+        this.manager = manager;
+    }
+
+    public void setEnabled(boolean enabled) {
+        this.enabled = enabled;
+        if (!enabled) {
+            cancelRestart();
+        }
+    }
+
+    public boolean isEnabled() {
+        return enabled;
+    }
+
+    /**
+     * @param initialMillis delay before the first restart after a crash
+     * @param maxMillis     upper bound of the delay as it doubles with each failed restart
+     */
+    public void setBackoff(long initialMillis, long maxMillis) {
+        if (initialMillis <= 0 || maxMillis < initialMillis) {
+            throw new IllegalArgumentException("0 < initialMillis <= maxMillis");
+        }
+        this.initialBackoffMillis = initialMillis;
+        this.maxBackoffMillis = maxMillis;
+    }
+
+    /**
+     * Starts watching a run of tor
+     *
+     * @param process      the tor process, or null if the manager connected to a tor it did not spawn
+     * @param controlReader thread reading the control connection, which ends when the socket is closed
+     */
+    void watch(final Process process, final Thread controlReader) {
+        final int watched = generation.incrementAndGet();
+        synchronized (this) {
+            startedAt = System.currentTimeMillis();
+        }
+        if (process != null) {
+            startWatcher(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        int exitCode = process.waitFor();
+                        if (generation.get() == watched) {
+                            synchronized (ProcessSupervisor.this) {
+                                lastExitCode = exitCode;
+                            }
+                        }
+                        failed(watched, CAUSE_PROCESS_EXIT, "Tor exited with code " + exitCode);
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                    }
+                }
+            }, "TorProcessWatcher");
+        }
+        if (controlReader != null) {
+            startWatcher(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        controlReader.join();
+                        failed(watched, CAUSE_CONTROL_EOF, "Tor control connection closed");
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                    }
+                }
+            }, "TorControlWatcher");
+        }
+    }
+
+    /**
+     * Stops watching, before tor is stopped on purpose
+     */
+    void unwatch() {
+        generation.incrementAndGet();
+        cancelRestart();
+    }
+
+    private static void startWatcher(Runnable runnable, String name) {
+        Thread thread = new Thread(runnable, name);
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    private void failed(int watched, String cause, String detail) {
+        if (!enabled || !generation.compareAndSet(watched, watched + 1)) {
+            return;
+        }
+        LOG.warn(detail);
+        long now = System.currentTimeMillis();
+        synchronized (this) {
+            if (now - startedAt >= STABLE_MILLIS) {
+                attempts = 0;
+            }
+            lastCause = cause;
+        }
+        scheduleRestart(cause, now);
+    }
+
+    private void scheduleRestart(final String cause, final long downSince) {
+        long delay;
+        synchronized (this) {
+            long backoff = backoffMillis(attempts, initialBackoffMillis, maxBackoffMillis);
+            // Between half and all of the backoff, so a fleet restarted together spreads out
+            delay = backoff / 2 + (long) (random.nextDouble() * (backoff / 2));
+            attempts++;
+        }
+        LOG.info("Restarting Tor in {}ms", delay);
+        ScheduledExecutorService scheduler = manager.getScheduler();
+        synchronized (this) {
+            if (pendingRestart != null) {
+                pendingRestart.cancel(false);
+            }
+            pendingRestart = scheduler.schedule(new Runnable() {
+                @Override
+                public void run() {
+                    restart(cause, downSince);
+                }
+            }, delay, MILLISECONDS);
+        }
+    }
+
+    /**
+     * @return initialMillis doubled for each earlier attempt, capped at maxMillis
+     */
+    static long backoffMillis(int attempts, long initialMillis, long maxMillis) {
+        int shift = Math.min(attempts, 20);
+        if (initialMillis > maxMillis >> shift) {
+            return maxMillis;
+        }
+        return initialMillis << shift;
+    }
+
+    private void restart(String cause, long downSince) {
+        synchronized (this) {
+            pendingRestart = null;
+        }
+        if (!enabled) {
+            return;
+        }
+        boolean success = false;
+        try {
+            manager.recover();
+            success = true;
+        } catch (IOException e) {
+            LOG.warn("Restarting Tor failed", e);
+        } catch (RuntimeException e) {
+            LOG.warn("Restarting Tor failed", e);
+        }
+        long downtime = System.currentTimeMillis() - downSince;
+        manager.getInstrumentation().recordRestart(cause, downtime, success);
+        synchronized (this) {
+            if (success) {
+                restartCount++;
+            } else {
+                failedRestartCount++;
+            }
+        }
+        if (success) {
+            LOG.info("Tor restarted after {}ms", downtime);
+        } else if (enabled) {
+            scheduleRestart(cause, downSince);
+        }
+    }
+
+    private synchronized void cancelRestart() {
+        if (pendingRestart != null) {
+            pendingRestart.cancel(false);
+            pendingRestart = null;
+        }
+    }
+
+    /**
+     * @return number of successful restarts
+     */
+    public synchronized long getRestartCount() {
+        return restartCount;
+    }
+
+    /**
+     * @return number of restart attempts that failed
+     */
+    public synchronized long getFailedRestartCount() {
+        return failedRestartCount;
+    }
+
+    /**
+     * @return {@link #CAUSE_PROCESS_EXIT} or {@link #CAUSE_CONTROL_EOF} for the last crash, or null if none
+     */
+    public synchronized String getLastCause() {
+        return lastCause;
+    }
+
+    /**
+     * @return exit code of the last tor process that exited while watched, or -1 if none
+     */
+    public synchronized int getLastExitCode() {
+        return lastExitCode;
+    }
+}
@@ -0,0 +1,189 @@
+/*
+Copyright (c) Microsoft Open Technologies, Inc.
+All Rights Reserved
+Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except in compliance with the
+License. You may obtain a copy of the License at http://www.apache.org/licenses/LICENSE-2.0
+
+THIS CODE IS PROVIDED ON AN *AS IS* BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, EITHER EXPRESS OR IMPLIED,
+INCLUDING WITHOUT LIMITATION ANY IMPLIED WARRANTIES OR CONDITIONS OF TITLE, FITNESS FOR A PARTICULAR PURPOSE,
+MERCHANTABLITY OR NON-INFRINGEMENT.
+
+See the Apache 2 License for the specific language governing permissions and limitations under the License.
+*/
+package com.msopentech.thali.toronionproxy;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.File;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+/**
+ * Terminates a process without forking helpers such as kill or busybox. Asks first, waits, then forces.
+ * <p>
+ * The process is reached through whichever of these is available: the {@link Process} the manager spawned,
+ * <code>java.lang.ProcessHandle</code> on Java 9 and later, or <code>android.os.Process</code> on Android. They are
+ * looked up reflectively, as is <code>Process.destroyForcibly</code>: the module builds for Java 8 and also runs on
+ * Android (minSdk 16), which has neither ProcessHandle nor destroyForcibly before API 26. Liveness falls back to
+ * /proc.
+ */
+final class ProcessTerminator {
+    private static final Logger LOG = LoggerFactory.getLogger(ProcessTerminator.class);
+
+    private static final int SIGTERM = 15;
+    private static final long POLL_MILLIS = 20;
+
+    private static final Method HANDLE_OF;
+    private static final Method OPTIONAL_OR_ELSE;
+    private static final Method HANDLE_IS_ALIVE;
+    private static final Method HANDLE_DESTROY;
+    private static final Method HANDLE_DESTROY_FORCIBLY;
+    private static final Method HANDLE_ON_EXIT;
+    private static final Method ANDROID_SEND_SIGNAL;
+    private static final Method ANDROID_KILL_PROCESS;
+    private static final Method PROCESS_DESTROY_FORCIBLY;
+
+    static {
+        Method of = null, orElse = null, isAlive = null, destroy = null, destroyForcibly = null, onExit = null;
+        try {
+            Class<?> handle = Class.forName("java.lang.ProcessHandle");
+            of = handle.getMethod("of", long.class);
+            orElse = Class.forName("java.util.Optional").getMethod("orElse", Object.class);
+            isAlive = handle.getMethod("isAlive");
+            destroy = handle.getMethod("destroy");
+            destroyForcibly = handle.getMethod("destroyForcibly");
+            onExit = handle.getMethod("onExit");
+        } catch (ClassNotFoundException | NoSuchMethodException e) {
+            of = null;
+        }
+        HANDLE_OF = of;
+        OPTIONAL_OR_ELSE = orElse;
+        HANDLE_IS_ALIVE = isAlive;
+        HANDLE_DESTROY = destroy;
+        HANDLE_DESTROY_FORCIBLY = destroyForcibly;
+        HANDLE_ON_EXIT = onExit;
+
+        Method sendSignal = null, killProcess = null;
+        try {
+            Class<?> androidProcess = Class.forName("android.os.Process");
+            sendSignal = androidProcess.getMethod("sendSignal", int.class, int.class);
+            killProcess = androidProcess.getMethod("killProcess", int.class);
+        } catch (ClassNotFoundException | NoSuchMethodException e) {
+            sendSignal = null;
+        }
+        ANDROID_SEND_SIGNAL = sendSignal;
+        ANDROID_KILL_PROCESS = killProcess;
+
+        Method processDestroyForcibly;
+        try {
+            processDestroyForcibly = Process.class.getMethod("destroyForcibly");
+        } catch (NoSuchMethodException e) {
+            processDestroyForcibly = null;
+        }
+        PROCESS_DESTROY_FORCIBLY = processDestroyForcibly;
+    }
+
+    private ProcessTerminator() {
+    }
+
+    /**
+     * Waits for the process to exit, asks it to terminate if it hasn't after graceMillis, and kills it if it still
+     * hasn't after another graceMillis
+     *
+     * @param process process spawned by this JVM, or null
+     * @param pid     process id, or -1 if unknown. At least one of process and pid must be given.
+     * @return true if the process is gone
+     */
+    static boolean terminate(Process process, int pid, long graceMillis, long killMillis)
+            throws InterruptedException {
+        Object handle = handleOf(pid);
+        if (awaitExit(process, pid, handle, graceMillis)) {
+            return true;
+        }
+        LOG.info("Tor still running, sending SIGTERM");
+        if (process != null) {
+            process.destroy();
+        } else if (handle != null) {
+            invoke(HANDLE_DESTROY, handle);
+        } else if (ANDROID_SEND_SIGNAL != null && pid > 0) {
+            invoke(ANDROID_SEND_SIGNAL, null, pid, SIGTERM);
+        }
+        if (awaitExit(process, pid, handle, graceMillis)) {
+            return true;
+        }
+        LOG.warn("Tor ignored SIGTERM, killing it");
+        if (handle != null) {
+            invoke(HANDLE_DESTROY_FORCIBLY, handle);
+        } else if (process != null && PROCESS_DESTROY_FORCIBLY != null) {
+            invoke(PROCESS_DESTROY_FORCIBLY, process);
+        } else if (ANDROID_KILL_PROCESS != null && pid > 0) {
+            invoke(ANDROID_KILL_PROCESS, null, pid);
+        }
+        return awaitExit(process, pid, handle, killMillis);
+    }
+
+    private static Object handleOf(int pid) {
+        if (HANDLE_OF == null || pid <= 0) {
+            return null;
+        }
+        Object optional = invoke(HANDLE_OF, null, (long) pid);
+        return optional == null ? null : invoke(OPTIONAL_OR_ELSE, optional, (Object) null);
+    }
+
+    private static boolean awaitExit(Process process, int pid, Object handle, long timeoutMillis)
+            throws InterruptedException {
+        if (handle != null) {
+            Object onExit = invoke(HANDLE_ON_EXIT, handle);
+            if (onExit instanceof Future) {
+                try {
+                    ((Future<?>) onExit).get(timeoutMillis, TimeUnit.MILLISECONDS);
+                    return true;
+                } catch (TimeoutException e) {
+                    return false;
+                } catch (ExecutionException e) {
+                    LOG.debug("Waiting for exit failed", e);
+                }
+            }
+        }
+        long deadline = System.currentTimeMillis() + timeoutMillis;
+        while (true) {
+            if (!isAlive(process, pid, handle)) {
+                return true;
+            }
+            if (System.currentTimeMillis() >= deadline) {
+                return false;
+            }
+            Thread.sleep(POLL_MILLIS);
+        }
+    }
+
+    private static boolean isAlive(Process process, int pid, Object handle) {
+        if (process != null) {
+            try {
+                process.exitValue();
+                return false;
+            } catch (IllegalThreadStateException e) {
+                return true;
+            }
+        }
+        if (handle != null) {
+            return Boolean.TRUE.equals(invoke(HANDLE_IS_ALIVE, handle));
+        }
+        // Linux and Android; elsewhere the process is assumed gone
+        return pid > 0 && new File("/proc/" + pid).exists();
+    }
+
+    private static Object invoke(Method method, Object target, Object... args) {
+        try {
+            return method.invoke(target, args);
+        } catch (IllegalAccessException | InvocationTargetException e) {
+            LOG.debug("Couldn't call " + method.getName(), e);
+            return null;
+        }
+    }
+}
@@ -0,0 +1,370 @@
+/*
+Copyright (c) Microsoft Open Technologies, Inc.
+All Rights Reserved
+Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except in compliance with the
+License. You may obtain a copy of the License at http://www.apache.org/licenses/LICENSE-2.0
+
+THIS CODE IS PROVIDED ON AN *AS IS* BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, EITHER EXPRESS OR IMPLIED,
+INCLUDING WITHOUT LIMITATION ANY IMPLIED WARRANTIES OR CONDITIONS OF TITLE, FITNESS FOR A PARTICULAR PURPOSE,
+MERCHANTABLITY OR NON-INFRINGEMENT.
+
+See the Apache 2 License for the specific language governing permissions and limitations under the License.
+*/
+package com.msopentech.thali.toronionproxy;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * Scores relays from the circuits built through them. Circuit build times count for every hop and a failed
+ * circuit counts against its last listed hop, the one that was being extended from. Successes and failures decay
+ * with a half life, so the table follows changes in the network.
+ * <p>
+ * Relays seen as the first hop are guards. A circuit that fails on its first extend blames its guard, but guards
+ * are never recommended for exclusion: excluding a guard makes tor pick a new one, which is worse for anonymity
+ * than a slow or unreliable guard.
+ * <p>
+ * Stream outcomes are not attributed from events, because STREAM events as delivered by jtorctl don't carry the
+ * circuit id. Handshake times measured by callers who know the exit can be added with
+ * {@link #recordStream(String, long, boolean)}.
+ * <p>
+ * The last hop of a built circuit is not necessarily an exit: onion service, directory and other internal
+ * circuits end in relays without the Exit flag. Last hops are only recommended as exits once
+ * {@link #setExitFlag(String, boolean)} has confirmed the flag from the consensus, or a stream has been recorded
+ * through them.
+ */
+public final class RelayScoreboard extends BaseTorEventListener implements EventSubscriber {
+    public static final long DEFAULT_HALF_LIFE_MILLIS = 30 * 60 * 1000;
+    public static final int DEFAULT_RECOMMENDED_EXITS = 5;
+    public static final double DEFAULT_MIN_SAMPLES = 3;
+    public static final double DEFAULT_MAX_FAILURE_RATE = 0.5;
+
+    private static final double ALPHA = 0.3;
+
+    private final long halfLifeMillis;
+    private final ConcurrentMap<String, RelayScore> relays = new ConcurrentHashMap<>();
+    // Circuit id to launch time. Only used on the event thread.
+    private final Map<String, Long> launches = new HashMap<>();
+
+    public RelayScoreboard() {
+        this(DEFAULT_HALF_LIFE_MILLIS);
+    }
+
+    public RelayScoreboard(long halfLifeMillis) {
+        if (halfLifeMillis <= 0) {
+            throw new IllegalArgumentException("halfLifeMillis must be > 0");
+        }
+        this.halfLifeMillis = halfLifeMillis;
+    }
+
+    @Override
+    public Collection<String> getEventTypes() {
+        return Collections.singletonList("CIRC");
+    }
+
+    @Override
+    public void onCircuitEvent(CircuitEvent event) {
+        String circuitId = event.getCircuitId();
+        if (circuitId == null) {
+            return;
+        }
+        long now = System.currentTimeMillis();
+        List<String> hops = event.getHops();
+        if (!hops.isEmpty()) {
+            score(hops.get(0)).markGuard();
+        }
+        if (CircuitEvent.LAUNCHED.equals(event.getStatus())) {
+            launches.put(circuitId, now);
+        } else if (event.isBuilt()) {
+            Long launchedAt = launches.remove(circuitId);
+            if (launchedAt == null || hops.isEmpty()) {
+                return;
+            }
+            long buildMillis = now - launchedAt;
+            for (String hop : hops) {
+                score(hop).record(buildMillis, true, now);
+            }
+            score(hops.get(hops.size() - 1)).markLastHop();
+        } else if (event.isFailed()) {
+            launches.remove(circuitId);
+            String lastHop = event.getLastHop();
+            if (lastHop != null) {
+                score(lastHop).record(-1, false, now);
+            }
+        } else if (event.isClosed()) {
+            launches.remove(circuitId);
+        }
+    }
+
+    /**
+     * Records a stream or SOCKS handshake through the specified exit
+     *
+     * @param exit   fingerprint of the exit, with or without '$'
+     * @param millis time until the stream was connected, or a negative value if unknown
+     */
+    public void recordStream(String exit, long millis, boolean succeeded) {
+        RelayScore score = score(exit);
+        score.markExit(true);
+        score.record(millis, succeeded, System.currentTimeMillis());
+    }
+
+    /**
+     * Records whether a relay has the Exit flag in the consensus. Relays that haven't been seen are ignored.
+     *
+     * @param fingerprint fingerprint of the relay, with or without '$'
+     */
+    public void setExitFlag(String fingerprint, boolean exit) {
+        RelayScore score = relays.get(CircuitEvent.fingerprintOf(fingerprint));
+        if (score != null) {
+            score.markExit(exit);
+        }
+    }
+
+    /**
+     * @return fingerprints of relays seen as the last hop of a built circuit whose Exit flag is not known yet
+     */
+    public List<String> getUnverifiedLastHops() {
+        List<String> result = new ArrayList<>();
+        for (RelayScore score : relays.values()) {
+            if (score.needsExitFlag()) {
+                result.add(score.getFingerprint());
+            }
+        }
+        return result;
+    }
+
+    /**
+     * @param networkStatus the router status entry of a relay, as returned for GETINFO ns/id/&lt;fingerprint&gt;
+     * @return true if the "s" line lists the Exit flag and not the BadExit flag
+     */
+    static boolean hasExitFlag(String networkStatus) {
+        if (networkStatus == null) {
+            return false;
+        }
+        for (String line : networkStatus.split("\n")) {
+            if (line.startsWith("s ")) {
+                List<String> flags = Arrays.asList(line.trim().split(" "));
+                return flags.contains("Exit") && !flags.contains("BadExit");
+            }
+        }
+        return false;
+    }
+
+    private RelayScore score(String hop) {
+        String fingerprint = CircuitEvent.fingerprintOf(hop);
+        RelayScore score = relays.get(fingerprint);
+        if (score == null) {
+            RelayScore created = new RelayScore(fingerprint);
+            score = relays.putIfAbsent(fingerprint, created);
+            if (score == null) {
+                score = created;
+            }
+        }
+        return score;
+    }
+
+    /**
+     * @return the score of the relay or null if it has not been seen
+     */
+    public RelayScore getScore(String fingerprint) {
+        return relays.get(CircuitEvent.fingerprintOf(fingerprint));
+    }
+
+    /**
+     * @return scores of all relays seen, best first
+     */
+    public List<RelayScore> getScores() {
+        long now = System.currentTimeMillis();
+        List<RelayScore> scores = new ArrayList<>(relays.values());
+        // Snapshot first, as scores change while sorting
+        final Map<RelayScore, Double> values = new HashMap<>();
+        for (RelayScore score : scores) {
+            values.put(score, score.getScore(now));
+        }
+        Collections.sort(scores, new Comparator<RelayScore>() {
+            @Override
+            public int compare(RelayScore a, RelayScore b) {
+                return Double.compare(values.get(b), values.get(a));
+            }
+        });
+        return scores;
+    }
+
+    /**
+     * Recommends an ExitNodes value: the best scoring relays confirmed as exits. Tor applies ExitNodes whether or
+     * not StrictNodes is set, so relays that were only seen as the last hop of a circuit are never included.
+     *
+     * @return comma separated fingerprints, or null if no relay has enough samples
+     */
+    public String recommendExitNodes(int count, double minSamples) {
+        long now = System.currentTimeMillis();
+        StringBuilder result = new StringBuilder();
+        int added = 0;
+        for (RelayScore score : getScores()) {
+            if (added == count) {
+                break;
+            }
+            if (score.isExit() && score.getSamples(now) >= minSamples
+                    && score.getFailureRate(now) <= DEFAULT_MAX_FAILURE_RATE) {
+                append(result, score);
+                added++;
+            }
+        }
+        return added == 0 ? null : result.toString();
+    }
+
+    /**
+     * Recommends an ExcludeNodes value: relays whose decayed failure rate is above maxFailureRate, other than
+     * guards
+     *
+     * @return comma separated fingerprints, or null if no relay qualifies
+     */
+    public String recommendExcludeNodes(double maxFailureRate, double minSamples) {
+        long now = System.currentTimeMillis();
+        StringBuilder result = new StringBuilder();
+        for (RelayScore score : relays.values()) {
+            if (!score.isGuard() && score.getSamples(now) >= minSamples
+                    && score.getFailureRate(now) > maxFailureRate) {
+                append(result, score);
+            }
+        }
+        return result.length() == 0 ? null : result.toString();
+    }
+
+    private static void append(StringBuilder result, RelayScore score) {
+        if (result.length() > 0) {
+            result.append(',');
+        }
+        result.append('$').append(score.getFingerprint());
+    }
+
+    /**
+     * Forgets all relays
+     */
+    public void reset() {
+        relays.clear();
+    }
+
+    /**
+     * Decaying statistics of a single relay
+     */
+    public final class RelayScore {
+        private final String fingerprint;
+        // Guarded by this
+        private double successes;
+        private double failures;
+        private double latency = -1;
+        private long updatedAt;
+        private boolean lastHop;
+        // Null until known
+        private Boolean exit;
+        private boolean guard;
+
+        private RelayScore(String fingerprint) {
+            this.fingerprint = fingerprint;
+        }
+
+        private synchronized void record(long millis, boolean succeeded, long now) {
+            decay(now);
+            if (succeeded) {
+                successes++;
+            } else {
+                failures++;
+            }
+            if (millis >= 0) {
+                latency = latency < 0 ? millis : latency + ALPHA * (millis - latency);
+            }
+        }
+
+        private synchronized void markLastHop() {
+            lastHop = true;
+        }
+
+        private synchronized void markExit(boolean exit) {
+            this.exit = exit;
+        }
+
+        private synchronized boolean needsExitFlag() {
+            return lastHop && exit == null;
+        }
+
+        private synchronized void markGuard() {
+            guard = true;
+        }
+
+        private void decay(long now) {
+            if (updatedAt > 0 && now > updatedAt) {
+                double factor = Math.pow(0.5, (double) (now - updatedAt) / halfLifeMillis);
+                successes *= factor;
+                failures *= factor;
+            }
+            updatedAt = now;
+        }
+
+        public String getFingerprint() {
+            return fingerprint;
+        }
+
+        /**
+         * @return true if the relay has the Exit flag in the consensus, or a stream has been recorded through it
+         */
+        public synchronized boolean isExit() {
+            return Boolean.TRUE.equals(exit);
+        }
+
+        /**
+         * @return true if the relay has been the first hop of a circuit
+         */
+        public synchronized boolean isGuard() {
+            return guard;
+        }
+
+        /**
+         * @return decayed number of observations
+         */
+        public synchronized double getSamples(long now) {
+            decay(now);
+            return successes + failures;
+        }
+
+        public synchronized double getFailureRate(long now) {
+            decay(now);
+            double total = successes + failures;
+            return total == 0 ? 0 : failures / total;
+        }
+
+        /**
+         * @return exponentially weighted circuit build or handshake time in milliseconds, or -1 if not measured
+         */
+        public synchronized double getLatency() {
+            return latency;
+        }
+
+        /**
+         * @return between 0 and 1, higher is better: the success rate scaled down by latency, with one second of
+         * latency halving the score
+         */
+        public synchronized double getScore(long now) {
+            double latencyFactor = latency < 0 ? 0.5 : 1000 / (1000 + latency);
+            return (1 - getFailureRate(now)) * latencyFactor;
+        }
+
+        @Override
+        public synchronized String toString() {
+            return "RelayScore{" +
+                    "fingerprint=" + fingerprint +
+                    ", successes=" + successes +
+                    ", failures=" + failures +
+                    ", latency=" + latency +
+                    '}';
+        }
+    }
+}
@@ -0,0 +1,146 @@
+/*
+Copyright (c) Microsoft Open Technologies, Inc.
+All Rights Reserved
+Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except in compliance with the
+License. You may obtain a copy of the License at http://www.apache.org/licenses/LICENSE-2.0
+
+THIS CODE IS PROVIDED ON AN *AS IS* BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, EITHER EXPRESS OR IMPLIED,
+INCLUDING WITHOUT LIMITATION ANY IMPLIED WARRANTIES OR CONDITIONS OF TITLE, FITNESS FOR A PARTICULAR PURPOSE,
+MERCHANTABLITY OR NON-INFRINGEMENT.
+
+See the Apache 2 License for the specific language governing permissions and limitations under the License.
+*/
+package com.msopentech.thali.toronionproxy;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Describes an additional named SOCKS listener. Each listener becomes its own SOCKSPort line with its own
+ * isolation flags, so load can be spread across ports with different isolation profiles. Once tor is running,
+ * <code>OnionProxyManager.getSocksEndpoints</code> maps each name to the address tor bound.
+ */
+public final class SocksListener {
+
+    private final String name;
+    private final String port;
+    private final List<String> flags;
+
+    private SocksListener(String name, String port, List<String> flags) {
+        this.name = name;
+        this.port = port;
+        this.flags = Collections.unmodifiableList(flags);
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    /**
+     * Port or address:port to listen on, or "auto"
+     */
+    public String getPort() {
+        return port;
+    }
+
+    /**
+     * Flags of the SOCKSPort line, such as IsolateDestAddr or KeepAliveIsolateSOCKSAuth
+     */
+    public List<String> getFlags() {
+        return flags;
+    }
+
+    /**
+     * Returns the SOCKSPort option value for this listener
+     */
+    String toConfigValue() {
+        StringBuilder sb = new StringBuilder(port);
+        for (String flag : flags) {
+            sb.append(' ').append(flag);
+        }
+        return sb.toString();
+    }
+
+    @Override
+    public String toString() {
+        return "SocksListener{" +
+                "name=" + name +
+                ", port=" + port +
+                ", flags=" + flags +
+                '}';
+    }
+
+    /**
+     * Builder for SocksListener. By default a listener has the same flags as the main SOCKS port:
+     * KeepAliveIsolateSOCKSAuth, IPv6Traffic and PreferIPv6.
+     */
+    public static class Builder {
+
+        private final String name;
+        private final String port;
+        private final List<String> isolationFlags = new ArrayList<>();
+        private boolean keepAliveIsolateSOCKSAuth = true;
+        private boolean ipv6Traffic = true;
+
+        /**
+         * @param name name clients use to look up the endpoint
+         * @param port port or address:port to listen on, or "auto"
+         * @throws IllegalArgumentException if name or port is empty
+         */
+        public Builder(String name, String port) {
+            if (name == null || name.isEmpty()) {
+                throw new IllegalArgumentException("name is empty");
+            }
+            if (port == null || port.isEmpty()) {
+                throw new IllegalArgumentException("port is empty");
+            }
+            this.name = name;
+            this.port = port;
+        }
+
+        /**
+         * Adds an isolation flag such as IsolateDestAddr, IsolateDestPort, IsolateClientProtocol or
+         * NoIsolateSOCKSAuth
+         *
+         * @return builder
+         */
+        public Builder isolate(String flag) {
+            if (flag == null || flag.isEmpty()) {
+                throw new IllegalArgumentException("flag is empty");
+            }
+            isolationFlags.add(flag);
+            return this;
+        }
+
+        /**
+         * @param enable if true, SOCKS credentials also isolate keep-alive circuits
+         * @return builder
+         */
+        public Builder keepAliveIsolateSOCKSAuth(boolean enable) {
+            keepAliveIsolateSOCKSAuth = enable;
+            return this;
+        }
+
+        /**
+         * @param enable if true, the listener allows and prefers IPv6 exits
+         * @return builder
+         */
+        public Builder ipv6Traffic(boolean enable) {
+            ipv6Traffic = enable;
+            return this;
+        }
+
+        public SocksListener build() {
+            List<String> flags = new ArrayList<>(isolationFlags);
+            if (keepAliveIsolateSOCKSAuth) {
+                flags.add("KeepAliveIsolateSOCKSAuth");
+            }
+            if (ipv6Traffic) {
+                flags.add("IPv6Traffic");
+                flags.add("PreferIPv6");
+            }
+            return new SocksListener(name, port, flags);
+        }
+    }
+}
@@ -12,61 +12,180 @@ See the Apache 2 License for the specific language governing permissions and lim
 */
 package com.msopentech.thali.toronionproxy;
 
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.AtomicReference;
+
 /**
- * Current Status of Tor
+ * Current Status of Tor. All reads and transitions are lock free; each transition is a compare-and-set of an
+ * immutable snapshot holding the state and when it was entered, so readers on any thread see a consistent view.
  */
 public final class Status {
+    private static final Logger LOG = LoggerFactory.getLogger(Status.class);
 
     public static String STATUS_OFF = "OFF";
     public static String STATUS_ON = "ON";
     public static String STATUS_STARTING = "STARTING";
     public static String STATUS_STOPPING = "STOPPING";
-    private final EventBroadcaster broadcaster;
 
-    private String status;
+    public enum State {
+        OFF, STARTING, ON, STOPPING
+    }
+
+    /**
+     * Notified after each transition, on the thread that made it. Listeners should return quickly.
+     */
+    public interface Listener {
+        /**
+         * @param from           previous state
+         * @param to             new state
+         * @param durationMillis time spent in the previous state
+         */
+        void onStatusChanged(State from, State to, long durationMillis);
+    }
+
+    private final EventBroadcaster broadcaster;
+    private final AtomicReference<Snapshot> current;
+    private final AtomicLongArray lastDurations = new AtomicLongArray(State.values().length);
+    private final List<Listener> listeners = new CopyOnWriteArrayList<>();
 
     public Status(EventBroadcaster broadcaster) {
         this.broadcaster = broadcaster;
-        this.status = STATUS_OFF;
+        this.current = new AtomicReference<>(new Snapshot(State.OFF, System.currentTimeMillis()));
+        for (int i = 0; i < lastDurations.length(); i++) {
+            lastDurations.set(i, -1);
+        }
     }
 
     public String getStatus() {
-        return status;
+        return current.get().state.name();
+    }
+
+    public State getState() {
+        return current.get().state;
     }
 
     public boolean isOff() {
-        return STATUS_OFF.equals(status);
+        return getState() == State.OFF;
     }
 
     public boolean isOn() {
-        return STATUS_ON.equals(status);
+        return getState() == State.ON;
     }
 
     public boolean isStarting() {
-        return STATUS_STARTING.equals(status);
+        return getState() == State.STARTING;
     }
 
     public boolean isStopping() {
-        return STATUS_STOPPING.equals(status);
+        return getState() == State.STOPPING;
     }
 
     public void off() {
-        status = STATUS_OFF;
-        broadcaster.broadcastStatus();
+        transitionTo(State.OFF);
     }
 
     public void on() {
-        status = STATUS_ON;
-        broadcaster.broadcastStatus();
+        transitionTo(State.ON);
     }
 
     public void starting() {
-        status = STATUS_STARTING;
-        broadcaster.broadcastStatus();
+        transitionTo(State.STARTING);
     }
 
     public void stopping() {
-        status = STATUS_STOPPING;
+        transitionTo(State.STOPPING);
+    }
+
+    /**
+     * Moves to the new state only if the current state is the expected one
+     *
+     * @return true if the transition was made
+     */
+    public boolean compareAndSet(State expect, State update) {
+        Snapshot previous = current.get();
+        if (previous.state != expect) {
+            return false;
+        }
+        if (expect == update) {
+            return true;
+        }
+        Snapshot next = new Snapshot(update, System.currentTimeMillis());
+        if (!current.compareAndSet(previous, next)) {
+            return false;
+        }
+        transitioned(previous, next);
+        return true;
+    }
+
+    /**
+     * @return milliseconds since the epoch when the current state was entered
+     */
+    public long getSince() {
+        return current.get().since;
+    }
+
+    /**
+     * @return milliseconds spent in the current state so far
+     */
+    public long getTimeInState() {
+        return System.currentTimeMillis() - current.get().since;
+    }
+
+    /**
+     * @return milliseconds spent in the specified state the last time it was left, or -1 if it never was
+     */
+    public long getLastDuration(State state) {
+        return lastDurations.get(state.ordinal());
+    }
+
+    public void addListener(Listener listener) {
+        if (listener == null) {
+            throw new IllegalArgumentException("listener is null");
+        }
+        listeners.add(listener);
+    }
+
+    public boolean removeListener(Listener listener) {
+        return listeners.remove(listener);
+    }
+
+    private void transitionTo(State state) {
+        Snapshot next = new Snapshot(state, System.currentTimeMillis());
+        Snapshot previous;
+        do {
+            previous = current.get();
+            if (previous.state == state) {
+                return;
+            }
+        } while (!current.compareAndSet(previous, next));
+        transitioned(previous, next);
+    }
+
+    private void transitioned(Snapshot previous, Snapshot next) {
+        long duration = next.since - previous.since;
+        lastDurations.set(previous.state.ordinal(), duration);
+        for (Listener listener : listeners) {
+            try {
+                listener.onStatusChanged(previous.state, next.state, duration);
+            } catch (RuntimeException e) {
+                LOG.warn("Status listener failed", e);
+            }
+        }
         broadcaster.broadcastStatus();
     }
+
+    private static final class Snapshot {
+        final State state;
+        final long since;
+
+        Snapshot(State state, long since) {
+            this.state = state;
+            this.since = since;
+        }
+    }
 }
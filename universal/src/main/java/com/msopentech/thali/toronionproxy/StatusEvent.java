@@ -0,0 +1,94 @@
+/*
+Copyright (c) Microsoft Open Technologies, Inc.
+All Rights Reserved
+Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except in compliance with the
+License. You may obtain a copy of the License at http://www.apache.org/licenses/LICENSE-2.0
+
+THIS CODE IS PROVIDED ON AN *AS IS* BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, EITHER EXPRESS OR IMPLIED,
+INCLUDING WITHOUT LIMITATION ANY IMPLIED WARRANTIES OR CONDITIONS OF TITLE, FITNESS FOR A PARTICULAR PURPOSE,
+MERCHANTABLITY OR NON-INFRINGEMENT.
+
+See the Apache 2 License for the specific language governing permissions and limitations under the License.
+*/
+package com.msopentech.thali.toronionproxy;
+
+/**
+ * A STATUS_GENERAL, STATUS_CLIENT or STATUS_SERVER event, such as
+ * <code>STATUS_CLIENT NOTICE BOOTSTRAP PROGRESS=100 TAG=done SUMMARY="Done"</code>.
+ * Arguments are only parsed when asked for.
+ */
+public final class StatusEvent implements TorEvent {
+    private final String type;
+    private final String severity;
+    private final String action;
+    private final String arguments;
+
+    public StatusEvent(String type, String severity, String action, String arguments) {
+        this.type = type;
+        this.severity = severity;
+        this.action = action;
+        this.arguments = arguments == null ? "" : arguments;
+    }
+
+    /**
+     * Parses the body of a status event, as delivered by jtorctl with the event type removed
+     */
+    static StatusEvent parse(String type, String msg, EventTokenizer tokenizer) {
+        tokenizer.reset(msg);
+        String severity = tokenizer.next() ? tokenizer.token() : "";
+        String action = tokenizer.next() ? tokenizer.token() : "";
+        return new StatusEvent(type, severity, action, tokenizer.rest());
+    }
+
+    public String getType() {
+        return type;
+    }
+
+    public String getSeverity() {
+        return severity;
+    }
+
+    public String getAction() {
+        return action;
+    }
+
+    /**
+     * @return the raw KEY=value arguments
+     */
+    public String getArguments() {
+        return arguments;
+    }
+
+    /**
+     * @return the value of the specified argument or null if it is not present
+     */
+    public String getArgument(String key) {
+        return new EventTokenizer().reset(arguments).find(key);
+    }
+
+    /**
+     * @return bootstrap progress from 0 to 100, or -1 if this is not a bootstrap event
+     */
+    public int getBootstrapProgress() {
+        if (!"BOOTSTRAP".equals(action)) {
+            return -1;
+        }
+        String progress = getArgument("PROGRESS");
+        return progress == null ? -1 : (int) EventTokenizer.parseLong(progress, 0, progress.length(), -1);
+    }
+
+    @Override
+    public void deliverTo(TorEventListener listener) {
+        listener.onStatusEvent(this);
+    }
+
+    @Override
+    public String toString() {
+        return "StatusEvent{" +
+                "type=" + type +
+                ", severity=" + severity +
+                ", action=" + action +
+                ", arguments=" + arguments +
+                '}';
+    }
+}
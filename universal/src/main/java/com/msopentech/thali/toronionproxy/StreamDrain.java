@@ -0,0 +1,104 @@
+/*
+Copyright (c) Microsoft Open Technologies, Inc.
+All Rights Reserved
+Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except in compliance with the
+License. You may obtain a copy of the License at http://www.apache.org/licenses/LICENSE-2.0
+
+THIS CODE IS PROVIDED ON AN *AS IS* BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, EITHER EXPRESS OR IMPLIED,
+INCLUDING WITHOUT LIMITATION ANY IMPLIED WARRANTIES OR CONDITIONS OF TITLE, FITNESS FOR A PARTICULAR PURPOSE,
+MERCHANTABLITY OR NON-INFRINGEMENT.
+
+See the Apache 2 License for the specific language governing permissions and limitations under the License.
+*/
+package com.msopentech.thali.toronionproxy;
+
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Set;
+
+/**
+ * Counts down the streams open when a drain starts. The listener is registered before the open streams are read
+ * from stream-status, and streams that finish in between are remembered so they are not counted.
+ */
+final class StreamDrain extends BaseTorEventListener implements EventSubscriber {
+    private final DrainListener listener;
+    private final long startedAt = System.currentTimeMillis();
+    // Guarded by this
+    private final Set<String> open = new HashSet<>();
+    private final Set<String> finished = new HashSet<>();
+    private boolean seeded;
+
+    StreamDrain(DrainListener listener) {
+        this.listener = listener;
+    }
+
+    @Override
+    public Collection<String> getEventTypes() {
+        return Collections.singletonList("STREAM");
+    }
+
+    @Override
+    public void onStreamEvent(StreamEvent event) {
+        if (!event.isDone()) {
+            return;
+        }
+        int remaining;
+        synchronized (this) {
+            if (!seeded) {
+                finished.add(event.getStreamId());
+                return;
+            }
+            if (!open.remove(event.getStreamId())) {
+                return;
+            }
+            remaining = open.size();
+            notifyAll();
+        }
+        report(remaining);
+    }
+
+    /**
+     * Sets the streams to wait for from GETINFO stream-status, <code>StreamID StreamStatus CircuitID Target</code>
+     * per line
+     */
+    void seed(String streamStatus) {
+        int remaining;
+        synchronized (this) {
+            if (streamStatus != null) {
+                for (String line : streamStatus.split("\\n")) {
+                    String[] fields = line.trim().split(" ");
+                    if (fields.length < 2 || fields[0].isEmpty() || StreamEvent.CLOSED.equals(fields[1])
+                            || StreamEvent.FAILED.equals(fields[1]) || finished.contains(fields[0])) {
+                        continue;
+                    }
+                    open.add(fields[0]);
+                }
+            }
+            finished.clear();
+            seeded = true;
+            remaining = open.size();
+        }
+        report(remaining);
+    }
+
+    /**
+     * Waits until all streams have finished or the timeout expires
+     *
+     * @return number of streams still open
+     */
+    synchronized int await(long timeoutMillis) throws InterruptedException {
+        long deadline = startedAt + timeoutMillis;
+        long remaining;
+        while (!open.isEmpty() && (remaining = deadline - System.currentTimeMillis()) > 0) {
+            wait(remaining);
+        }
+        return open.size();
+    }
+
+    private void report(int remaining) {
+        if (listener != null) {
+            listener.onDrainProgress(remaining, System.currentTimeMillis() - startedAt);
+        }
+    }
+}
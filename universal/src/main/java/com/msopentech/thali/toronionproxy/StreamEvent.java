@@ -0,0 +1,69 @@
+/*
+Copyright (c) Microsoft Open Technologies, Inc.
+All Rights Reserved
+Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except in compliance with the
+License. You may obtain a copy of the License at http://www.apache.org/licenses/LICENSE-2.0
+
+THIS CODE IS PROVIDED ON AN *AS IS* BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, EITHER EXPRESS OR IMPLIED,
+INCLUDING WITHOUT LIMITATION ANY IMPLIED WARRANTIES OR CONDITIONS OF TITLE, FITNESS FOR A PARTICULAR PURPOSE,
+MERCHANTABLITY OR NON-INFRINGEMENT.
+
+See the Apache 2 License for the specific language governing permissions and limitations under the License.
+*/
+package com.msopentech.thali.toronionproxy;
+
+/**
+ * A STREAM event: an application stream changing status
+ */
+public final class StreamEvent implements TorEvent {
+    public static final String NEW = "NEW";
+    public static final String SUCCEEDED = "SUCCEEDED";
+    public static final String FAILED = "FAILED";
+    public static final String CLOSED = "CLOSED";
+
+    private final String status;
+    private final String streamId;
+    private final String target;
+
+    public StreamEvent(String status, String streamId, String target) {
+        this.status = status;
+        this.streamId = streamId;
+        this.target = target;
+    }
+
+    public String getStatus() {
+        return status;
+    }
+
+    public String getStreamId() {
+        return streamId;
+    }
+
+    /**
+     * @return target of the stream in the form address:port
+     */
+    public String getTarget() {
+        return target;
+    }
+
+    /**
+     * @return true if the stream is finished, whether it succeeded or not
+     */
+    public boolean isDone() {
+        return CLOSED.equals(status) || FAILED.equals(status);
+    }
+
+    @Override
+    public void deliverTo(TorEventListener listener) {
+        listener.onStreamEvent(this);
+    }
+
+    @Override
+    public String toString() {
+        return "StreamEvent{" +
+                "status=" + status +
+                ", id=" + streamId +
+                ", target=" + target +
+                '}';
+    }
+}
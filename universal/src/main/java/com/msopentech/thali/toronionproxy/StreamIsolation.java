@@ -0,0 +1,225 @@
+/*
+Copyright (c) Microsoft Open Technologies, Inc.
+All Rights Reserved
+Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except in compliance with the
+License. You may obtain a copy of the License at http://www.apache.org/licenses/LICENSE-2.0
+
+THIS CODE IS PROVIDED ON AN *AS IS* BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, EITHER EXPRESS OR IMPLIED,
+INCLUDING WITHOUT LIMITATION ANY IMPLIED WARRANTIES OR CONDITIONS OF TITLE, FITNESS FOR A PARTICULAR PURPOSE,
+MERCHANTABLITY OR NON-INFRINGEMENT.
+
+See the Apache 2 License for the specific language governing permissions and limitations under the License.
+*/
+package com.msopentech.thali.toronionproxy;
+
+import java.io.IOException;
+import java.net.Socket;
+import java.security.SecureRandom;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Keeps the streams of different tenants on different circuits. Each tenant is given a random SOCKS5
+ * username/password token; tor's SOCKSPort isolates on SOCKS credentials (IsolateSOCKSAuth is on by default and
+ * KeepAliveIsolateSOCKSAuth is set by TorConfigBuilder), so streams of one tenant share circuits while those of
+ * different tenants never do.
+ * <p>
+ * At most maxGroups tenants hold a token at once. Beyond that the least recently used tenant loses its token and
+ * gets a new one, and so new circuits, the next time it connects. Tokens are random so tenant names never reach
+ * tor.
+ */
+public final class StreamIsolation {
+    private static final String PASSWORD = "isolation";
+
+    private final String socksHost;
+    private final int socksPort;
+    private final int maxGroups;
+    private final SecureRandom random = new SecureRandom();
+    private volatile DnsResolver dnsResolver;
+
+    // Tenant to group in least recently used order. Guarded by this.
+    private final LinkedHashMap<String, Group> groups;
+    private long evictions;
+    private long streams;
+
+    /**
+     * @param socksHost host of tor's SOCKS listener
+     * @param socksPort port of tor's SOCKS listener
+     * @param maxGroups maximum number of tenants holding a token at once
+     */
+    public StreamIsolation(String socksHost, int socksPort, int maxGroups) {
+        if (maxGroups <= 0) {
+            throw new IllegalArgumentException("maxGroups must be > 0");
+        }
+        this.socksHost = socksHost;
+        this.socksPort = socksPort;
+        this.maxGroups = maxGroups;
+        this.groups = new LinkedHashMap<>(16, 0.75f, true);
+    }
+
+    /**
+     * Makes connections send addresses cached by the resolver instead of host names, see
+     * {@link OnionProxyManager#getDnsResolver()}
+     *
+     * @param dnsResolver resolver to use, or null to always send host names
+     */
+    public void setDnsResolver(DnsResolver dnsResolver) {
+        this.dnsResolver = dnsResolver;
+    }
+
+    /**
+     * @return SOCKS5 credentials of the tenant, creating them if it has none
+     */
+    public synchronized Credentials getCredentials(String tenant) {
+        return group(tenant).credentials;
+    }
+
+    /**
+     * Opens a connection through tor on the circuits of the tenant
+     */
+    public Socket connect(String tenant, String networkHost, int networkPort) throws IOException {
+        Credentials credentials;
+        synchronized (this) {
+            Group group = group(tenant);
+            group.streams++;
+            streams++;
+            credentials = group.credentials;
+        }
+        return Utilities.socks5SocketConnection(networkHost, networkPort, socksHost, socksPort,
+                credentials.getUsername(), credentials.getPassword(), dnsResolver);
+    }
+
+    /**
+     * Gives the tenant a new token so that its next streams use new circuits. Open streams are not affected.
+     */
+    public synchronized void rotate(String tenant) {
+        groups.remove(tenant);
+        group(tenant);
+    }
+
+    /**
+     * Forgets the tenant's token
+     */
+    public synchronized void release(String tenant) {
+        groups.remove(tenant);
+    }
+
+    private Group group(String tenant) {
+        if (tenant == null) {
+            throw new IllegalArgumentException("tenant is null");
+        }
+        Group group = groups.get(tenant);
+        if (group == null) {
+            if (groups.size() >= maxGroups) {
+                Iterator<Map.Entry<String, Group>> eldest = groups.entrySet().iterator();
+                eldest.next();
+                eldest.remove();
+                evictions++;
+            }
+            group = new Group(newToken());
+            groups.put(tenant, group);
+        }
+        return group;
+    }
+
+    private String newToken() {
+        byte[] bytes = new byte[12];
+        random.nextBytes(bytes);
+        StringBuilder sb = new StringBuilder(bytes.length * 2);
+        for (byte b : bytes) {
+            sb.append(Character.forDigit((b >> 4) & 0xf, 16)).append(Character.forDigit(b & 0xf, 16));
+        }
+        return sb.toString();
+    }
+
+    /**
+     * @return number of tenants currently holding a token
+     */
+    public synchronized int getGroupCount() {
+        return groups.size();
+    }
+
+    /**
+     * @return number of tenants that lost their token to make room for another
+     */
+    public synchronized long getEvictionCount() {
+        return evictions;
+    }
+
+    /**
+     * @return number of streams opened through {@link #connect(String, String, int)}
+     */
+    public synchronized long getStreamCount() {
+        return streams;
+    }
+
+    /**
+     * @return streams opened by each tenant with its current token
+     */
+    public synchronized Map<String, Long> getStreamCounts() {
+        Map<String, Long> counts = new HashMap<>();
+        for (Map.Entry<String, Group> entry : groups.entrySet()) {
+            counts.put(entry.getKey(), entry.getValue().streams);
+        }
+        return counts;
+    }
+
+    /**
+     * Attributes open circuits to tenants from the reply to GETINFO circuit-status, whose lines carry
+     * <code>SOCKS_USERNAME="..."</code> for isolated circuits. Together with {@link #getStreamCounts()} this shows
+     * how many streams share each circuit.
+     *
+     * @return number of circuits of each tenant that currently has any
+     */
+    public synchronized Map<String, Integer> countCircuits(String circuitStatus) {
+        Map<String, String> tenantsByToken = new HashMap<>();
+        for (Map.Entry<String, Group> entry : groups.entrySet()) {
+            tenantsByToken.put(entry.getValue().credentials.getUsername(), entry.getKey());
+        }
+        Map<String, Integer> counts = new HashMap<>();
+        if (circuitStatus == null) {
+            return counts;
+        }
+        EventTokenizer tokenizer = new EventTokenizer();
+        for (String line : circuitStatus.split("\n")) {
+            String tenant = tenantsByToken.get(tokenizer.reset(line).find("SOCKS_USERNAME"));
+            if (tenant != null) {
+                Integer count = counts.get(tenant);
+                counts.put(tenant, count == null ? 1 : count + 1);
+            }
+        }
+        return counts;
+    }
+
+    /**
+     * SOCKS5 username and password of a tenant
+     */
+    public static final class Credentials {
+        private final String username;
+        private final String password;
+
+        private Credentials(String username, String password) {
+            this.username = username;
+            this.password = password;
+        }
+
+        public String getUsername() {
+            return username;
+        }
+
+        public String getPassword() {
+            return password;
+        }
+    }
+
+    private static final class Group {
+        final Credentials credentials;
+        long streams;
+
+        Group(String token) {
+            this.credentials = new Credentials(token, PASSWORD);
+        }
+    }
+}
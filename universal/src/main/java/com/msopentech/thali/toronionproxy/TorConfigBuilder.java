@@ -267,12 +267,27 @@ public final class TorConfigBuilder {
     }
 
     /**
-     * Sets the entry/exit/exclude nodes
+     * Sets the entry/exit/exclude nodes. Relay recommendations are left out under StrictNodes, which would turn a
+     * recommended ExcludeNodes into a hard ban: tor would fail circuits rather than use a relay that only scored
+     * badly.
      */
     @SettingsConfig
     public TorConfigBuilder nodesFromSettings() {
-        entryNodes(settings.getEntryNodes()).exitNodes(settings.getExitNodes())
-                .excludeNodes(settings.getExcludeNodes());
+        String exitNodes = settings.getExitNodes();
+        String excludeNodes = settings.getExcludeNodes();
+        if (settings.hasRelayRecommendations() && !settings.hasStrictNodes()) {
+            RelayScoreboard scoreboard = context.getRelayScoreboard();
+            if (isNullOrEmpty(exitNodes)) {
+                exitNodes = scoreboard.recommendExitNodes(RelayScoreboard.DEFAULT_RECOMMENDED_EXITS,
+                        RelayScoreboard.DEFAULT_MIN_SAMPLES);
+            }
+            String excluded = scoreboard.recommendExcludeNodes(RelayScoreboard.DEFAULT_MAX_FAILURE_RATE,
+                    RelayScoreboard.DEFAULT_MIN_SAMPLES);
+            if (!isNullOrEmpty(excluded)) {
+                excludeNodes = isNullOrEmpty(excludeNodes) ? excluded : excludeNodes + "," + excluded;
+            }
+        }
+        entryNodes(settings.getEntryNodes()).exitNodes(exitNodes).excludeNodes(excludeNodes);
         return this;
     }
 
@@ -440,8 +455,32 @@ public final class TorConfigBuilder {
         if (!socksPort.equalsIgnoreCase("auto") && isLocalPortOpen(Integer.parseInt(socksPort))) {
             socksPort = "auto";
         }
-        return socksPort(socksPort, settings.hasIsolationAddressFlagForTunnel() ?
+        socksPort(socksPort, settings.hasIsolationAddressFlagForTunnel() ?
                 "IsolateDestAddr" : null);
+        // Written here rather than from their own SettingsConfig method, so that the listeners always follow the
+        // main SOCKS port and tor binds them in the same order
+        List<SocksListener> listeners = settings.getSocksListeners();
+        if (listeners != null) {
+            for (SocksListener listener : listeners) {
+                socksListener(listener);
+            }
+        }
+        return this;
+    }
+
+    public TorConfigBuilder socksListener(SocksListener listener) {
+        buffer.append("SOCKSPort ").append(listener.toConfigValue()).append('\n');
+        return this;
+    }
+
+    public TorConfigBuilder socksTimeout(int seconds) {
+        buffer.append("SocksTimeout ").append(seconds).append('\n');
+        return this;
+    }
+
+    @SettingsConfig
+    public TorConfigBuilder socksTimeoutFromSettings() {
+        return settings.getSocksTimeout() > 0 ? socksTimeout(settings.getSocksTimeout()) : this;
     }
 
     public TorConfigBuilder strictNodesDisable() {
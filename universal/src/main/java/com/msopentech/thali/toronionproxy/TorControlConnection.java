@@ -1,10 +1,14 @@
 package com.msopentech.thali.toronionproxy;
 
+import net.freehaven.tor.control.ReplyLine;
+
 import java.io.*;
 import java.net.Socket;
-import java.util.Collections;
+import java.util.*;
 
 public final class TorControlConnection extends net.freehaven.tor.control.TorControlConnection {
+    private volatile Instrumentation instrumentation = Instrumentation.NONE;
+
     public TorControlConnection(Socket socket) throws IOException {
         super(socket);
     }
@@ -17,6 +21,38 @@ public final class TorControlConnection extends net.freehaven.tor.control.TorCon
         super(reader, writer);
     }
     
+    /**
+     * Sets where command round trip times are recorded
+     */
+    public void setInstrumentation(Instrumentation instrumentation) {
+        this.instrumentation = instrumentation == null ? Instrumentation.NONE : instrumentation;
+    }
+
+    @Override
+    protected synchronized List<ReplyLine> sendAndWaitForResponse(String s, String rest) throws IOException {
+        Instrumentation instrumentation = this.instrumentation;
+        if (!instrumentation.isEnabled()) {
+            return super.sendAndWaitForResponse(s, rest);
+        }
+        long start = System.nanoTime();
+        boolean success = false;
+        try {
+            List<ReplyLine> reply = super.sendAndWaitForResponse(s, rest);
+            success = true;
+            return reply;
+        } finally {
+            instrumentation.recordControlCommand(verbOf(s), System.nanoTime() - start, success);
+        }
+    }
+
+    private static String verbOf(String command) {
+        int end = 0;
+        while (end < command.length() && command.charAt(end) != ' ' && command.charAt(end) != '\r') {
+            end++;
+        }
+        return command.substring(0, end).toUpperCase(Locale.US);
+    }
+
     public void takeownership() throws IOException {
         sendAndWaitForResponse("TAKEOWNERSHIP\r\n", null);
     }
@@ -28,4 +64,77 @@ public final class TorControlConnection extends net.freehaven.tor.control.TorCon
     public void reloadConf() throws IOException {
         signal("HUP");
     }
+
+    /**
+     * Creates an ephemeral onion service with ADD_ONION. Nothing is written to disk by tor; the service lives until
+     * it is removed with {@link #delOnion(String)} or the control connection that created it is closed.
+     *
+     * @param key        either "NEW:BEST", "NEW:ED25519-V3" or a stored key in the form "ED25519-V3:base64"
+     * @param portLines  map of virtual port to target, e.g. 80 to "127.0.0.1:9343"
+     * @param flags      optional ADD_ONION flags such as "DiscardPK" or "Detach", may be null
+     * @return key/value pairs of the reply. This contains "ServiceID" and, for new keys not discarded, "PrivateKey"
+     */
+    public Map<String, String> addOnion(String key, Map<Integer, String> portLines, List<String> flags)
+            throws IOException {
+        if (key == null || key.isEmpty()) {
+            throw new IllegalArgumentException("key is empty");
+        }
+        if (portLines == null || portLines.isEmpty()) {
+            throw new IllegalArgumentException("At least one port is required for an onion service");
+        }
+        StringBuilder b = new StringBuilder("ADD_ONION ").append(key);
+        if (flags != null && !flags.isEmpty()) {
+            b.append(" Flags=");
+            for (Iterator<String> it = flags.iterator(); it.hasNext(); ) {
+                b.append(it.next());
+                if (it.hasNext()) b.append(',');
+            }
+        }
+        for (Map.Entry<Integer, String> portLine : portLines.entrySet()) {
+            b.append(" Port=").append(portLine.getKey());
+            if (portLine.getValue() != null && !portLine.getValue().isEmpty()) {
+                b.append(',').append(portLine.getValue());
+            }
+        }
+        b.append("\r\n");
+        List<ReplyLine> lst = sendAndWaitForResponse(b.toString(), null);
+        Map<String, String> result = new HashMap<>();
+        for (ReplyLine line : lst) {
+            int idx = line.msg.indexOf('=');
+            if (idx > 0) {
+                result.put(line.msg.substring(0, idx), line.msg.substring(idx + 1));
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Asks tor to resolve a host name. The reply only acknowledges the request; the answer comes as an ADDRMAP
+     * event.
+     */
+    public void resolve(String hostname) throws IOException {
+        sendAndWaitForResponse("RESOLVE " + hostname + "\r\n", null);
+    }
+
+    /**
+     * Has tor build a new general purpose circuit along a path of its choosing, with EXTENDCIRCUIT 0. The reply
+     * is sent as soon as the circuit is launched; a CIRC event reports when it is built.
+     *
+     * @return id of the new circuit
+     */
+    public String buildCircuit() throws IOException {
+        List<ReplyLine> lst = sendAndWaitForResponse("EXTENDCIRCUIT 0\r\n", null);
+        String msg = lst.get(0).msg;
+        int idx = msg.indexOf(' ');
+        return idx < 0 ? msg : msg.substring(idx + 1).trim();
+    }
+
+    /**
+     * Removes an onion service previously created with {@link #addOnion(String, Map, List)}
+     *
+     * @param serviceId service id, without the ".onion" suffix
+     */
+    public void delOnion(String serviceId) throws IOException {
+        sendAndWaitForResponse("DEL_ONION " + serviceId + "\r\n", null);
+    }
 }
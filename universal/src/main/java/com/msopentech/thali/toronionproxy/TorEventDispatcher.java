@@ -0,0 +1,138 @@
+/*
+Copyright (c) Microsoft Open Technologies, Inc.
+All Rights Reserved
+Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except in compliance with the
+License. You may obtain a copy of the License at http://www.apache.org/licenses/LICENSE-2.0
+
+THIS CODE IS PROVIDED ON AN *AS IS* BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, EITHER EXPRESS OR IMPLIED,
+INCLUDING WITHOUT LIMITATION ANY IMPLIED WARRANTIES OR CONDITIONS OF TITLE, FITNESS FOR A PARTICULAR PURPOSE,
+MERCHANTABLITY OR NON-INFRINGEMENT.
+
+See the Apache 2 License for the specific language governing permissions and limitations under the License.
+*/
+package com.msopentech.thali.toronionproxy;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+/**
+ * Converts the string callbacks of jtorctl into typed events and delivers them to each registered
+ * TorEventListener. Nothing is parsed or allocated for an event while no listener is registered.
+ */
+public final class TorEventDispatcher extends BaseEventHandler implements EventSubscriber, ProcessOutputHandler {
+    private static final Logger LOG = LoggerFactory.getLogger(TorEventDispatcher.class);
+
+    /**
+     * Event types for listeners that do not implement EventSubscriber: every type this dispatcher turns into a
+     * TorEvent, so such a listener receives StreamEvents too
+     */
+    static final List<String> DEFAULT_EVENT_TYPES = Arrays.asList(
+            "CIRC", "STREAM", "ORCONN", "NOTICE", "WARN", "ERR", "BW", "STATUS_CLIENT");
+
+    private final List<TorEventListener> listeners = new CopyOnWriteArrayList<>();
+    // Events are delivered from the single control connection reader thread
+    private final EventTokenizer tokenizer = new EventTokenizer();
+
+    public void addListener(TorEventListener listener) {
+        if (listener == null) {
+            throw new IllegalArgumentException("listener is null");
+        }
+        listeners.add(listener);
+    }
+
+    public boolean removeListener(TorEventListener listener) {
+        return listeners.remove(listener);
+    }
+
+    public List<TorEventListener> getListeners() {
+        return listeners;
+    }
+
+    /**
+     * @return union of the event types the registered listeners need, empty if there are none
+     */
+    @Override
+    public Collection<String> getEventTypes() {
+        Set<String> types = new LinkedHashSet<>();
+        for (TorEventListener listener : listeners) {
+            if (listener instanceof EventSubscriber) {
+                types.addAll(((EventSubscriber) listener).getEventTypes());
+            } else {
+                types.addAll(DEFAULT_EVENT_TYPES);
+            }
+        }
+        return types;
+    }
+
+    @Override
+    public void circuitStatus(String status, String id, String path) {
+        if (!listeners.isEmpty()) {
+            dispatch(new CircuitEvent(status, id, path));
+        }
+    }
+
+    @Override
+    public void streamStatus(String status, String id, String target) {
+        if (!listeners.isEmpty()) {
+            dispatch(new StreamEvent(status, id, target));
+        }
+    }
+
+    @Override
+    public void orConnStatus(String status, String orName) {
+        if (!listeners.isEmpty()) {
+            dispatch(new OrConnEvent(status, orName));
+        }
+    }
+
+    @Override
+    public void bandwidthUsed(long read, long written) {
+        if (!listeners.isEmpty()) {
+            dispatch(new BandwidthEvent(read, written));
+        }
+    }
+
+    @Override
+    public void message(String severity, String msg) {
+        if (!listeners.isEmpty()) {
+            dispatch(new LogEvent(LogEvent.Source.CONTROL_PORT, severity, msg));
+        }
+    }
+
+    @Override
+    public void unrecognized(String type, String msg) {
+        if (!listeners.isEmpty() && type != null && type.startsWith("STATUS_")) {
+            dispatch(StatusEvent.parse(type, msg, tokenizer));
+        }
+    }
+
+    /**
+     * Delivers a line of tor process output as a LogEvent
+     */
+    @Override
+    public void processOutput(LogEvent.Source source, String line) {
+        if (!listeners.isEmpty()) {
+            dispatch(LogEvent.parse(line, source));
+        }
+    }
+
+    /**
+     * Delivers an already typed event to the listeners
+     */
+    void dispatch(TorEvent event) {
+        for (TorEventListener listener : listeners) {
+            try {
+                event.deliverTo(listener);
+            } catch (RuntimeException e) {
+                LOG.warn("Event listener failed on " + event, e);
+            }
+        }
+    }
+}
@@ -0,0 +1,36 @@
+/*
+Copyright (c) Microsoft Open Technologies, Inc.
+All Rights Reserved
+Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except in compliance with the
+License. You may obtain a copy of the License at http://www.apache.org/licenses/LICENSE-2.0
+
+THIS CODE IS PROVIDED ON AN *AS IS* BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, EITHER EXPRESS OR IMPLIED,
+INCLUDING WITHOUT LIMITATION ANY IMPLIED WARRANTIES OR CONDITIONS OF TITLE, FITNESS FOR A PARTICULAR PURPOSE,
+MERCHANTABLITY OR NON-INFRINGEMENT.
+
+See the Apache 2 License for the specific language governing permissions and limitations under the License.
+*/
+package com.msopentech.thali.toronionproxy;
+
+/**
+ * Receives typed control port events. Register with <code>OnionProxyManager.addEventListener</code>.
+ * <p>
+ * Callbacks are made on the thread that delivers control port events, so implementations should return quickly.
+ */
+public interface TorEventListener {
+    void onCircuitEvent(CircuitEvent event);
+
+    void onStreamEvent(StreamEvent event);
+
+    void onOrConnEvent(OrConnEvent event);
+
+    void onBandwidthEvent(BandwidthEvent event);
+
+    void onStatusEvent(StatusEvent event);
+
+    /**
+     * Called for NOTICE, WARN and ERR control port events and for each line of tor process output. Process output
+     * is delivered on the thread reading it, so this may be called concurrently with the other callbacks.
+     */
+    void onLogEvent(LogEvent event);
+}
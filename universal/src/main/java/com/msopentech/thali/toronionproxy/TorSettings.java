@@ -5,6 +5,12 @@ import java.util.List;
 public interface TorSettings {
     boolean disableNetwork();
 
+    /**
+     * Seconds between calls to EventBroadcaster.broadcastBandwidth with the current rates and totals. 0 or less
+     * disables the broadcast.
+     */
+    int getBandwidthBroadcastInterval();
+
     String dnsPort();
 
     String getCustomTorrc();
@@ -13,6 +19,17 @@ public interface TorSettings {
 
     String getExcludeNodes();
 
+    /**
+     * What to do with control port events when the event queue is full. Only used if getEventQueueSize is set.
+     */
+    AsyncEventHandler.OverflowPolicy getEventOverflowPolicy();
+
+    /**
+     * Number of control port events that can wait for delivery to handlers. If 0 or less, handlers are called
+     * directly on the control connection's reader thread.
+     */
+    int getEventQueueSize();
+
     String getExitNodes();
 
     int getHttpTunnelPort();
@@ -22,6 +39,12 @@ public interface TorSettings {
      */
     List<String> getListOfSupportedBridges();
 
+    /**
+     * Maximum number of log messages of each severity sent to broadcastLogMessage per second. Repeats of the same
+     * message are coalesced into a count. If 0 or less, every message is broadcast.
+     */
+    int getLogRateLimit();
+
     String getProxyHost();
 
     String getProxyPassword();
@@ -42,14 +65,37 @@ public interface TorSettings {
 
     int getRelayPort();
 
+    /**
+     * Milliseconds to wait before persisting config changes made through the control port with SAVECONF. Changes
+     * made within this window are written in a single torrc rewrite. 0 or less saves immediately.
+     */
+    int getSaveConfDelay();
+
+    /**
+     * Additional named SOCKS listeners, each written as its own SOCKSPort line after the one from getSocksPort
+     */
+    List<SocksListener> getSocksListeners();
+
     String getSocksPort();
 
+    /**
+     * Seconds tor lets a SOCKS connection wait for a circuit. This applies to all SOCKS listeners. If 0 or less,
+     * tor's default is used.
+     */
+    int getSocksTimeout();
+
     String getVirtualAddressNetwork();
 
     boolean hasBridges();
 
     boolean hasConnectionPadding();
 
+    /**
+     * If false, NOTICE and WARN events are not requested from the control port. Tor writes the same messages to
+     * stdout, which is parsed into LogEvents either way, so this halves duplicated log traffic.
+     */
+    boolean hasControlPortLogEvents();
+
     boolean hasCookieAuthentication();
 
     boolean hasDebugLogs();
@@ -60,10 +106,25 @@ public interface TorSettings {
 
     boolean hasOpenProxyOnAllInterfaces();
 
+    /**
+     * If false, hidden services published through the control port only live in memory and torrc is never
+     * rewritten with SAVECONF.
+     */
+    boolean hasPersistentHiddenServices();
+
     boolean hasReachableAddress();
 
     boolean hasReducedConnectionPadding();
 
+    /**
+     * If true, the manager scores relays from observed circuits, and the ExitNodes and ExcludeNodes written to
+     * torrc include the recommendations of {@link RelayScoreboard}. ExitNodes from {@link #getExitNodes()} take
+     * precedence over recommended exits. Only relays with the Exit flag in the consensus are recommended as exits.
+     * Recommendations are not applied when {@link #hasStrictNodes()} is set, as StrictNodes would make recommended
+     * exclusions a hard ban.
+     */
+    boolean hasRelayRecommendations();
+
     boolean hasSafeSocks();
 
     boolean hasStrictNodes();
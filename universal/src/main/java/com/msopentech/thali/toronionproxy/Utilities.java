@@ -23,9 +23,17 @@ import java.net.SocketAddress;
 public class Utilities {
     private static final int READ_TIMEOUT_MILLISECONDS = 60000;
     private static final int CONNECT_TIMEOUT_MILLISECONDS = 60000;
+    private static volatile Instrumentation instrumentation = Instrumentation.NONE;
 
     private Utilities() {}
 
+    /**
+     * Sets where SOCKS handshake times are recorded
+     */
+    public static void setInstrumentation(Instrumentation instrumentation) {
+        Utilities.instrumentation = instrumentation == null ? Instrumentation.NONE : instrumentation;
+    }
+
     /**
      * When making a request via the Tor Proxy one needs to establish the socket using SOCKS4a. However Android
      * only supports SOCKS4 so this class provides a wrapper when getting a socket to handle things.
@@ -39,6 +47,19 @@ public class Utilities {
      */
     public static Socket socks4aSocketConnection(String networkHost, int networkPort, String socksHost, int socksPort)
             throws IOException {
+        return socks4aSocketConnection(networkHost, networkPort, socksHost, socksPort, null);
+    }
+
+    /**
+     * Same as {@link #socks4aSocketConnection(String, int, String, int)}, but sends the address cached by the
+     * resolver instead of the host name when it has a fresh one, so that the exit doesn't resolve it again
+     * @param resolver cache of tor's DNS answers, may be null
+     */
+    public static Socket socks4aSocketConnection(String networkHost, int networkPort, String socksHost, int socksPort,
+                                                 DnsResolver resolver) throws IOException {
+        if (resolver != null) {
+            networkHost = resolver.toSocksHost(networkHost);
+        }
         // Perform explicit SOCKS4a connection request. SOCKS4a supports remote host name resolution
         // (i.e., Tor resolves the hostname, which may be an onion address).
         // The Android (Apache Harmony) Socket class appears to support only SOCKS4 and throws an
@@ -58,6 +79,7 @@ public class Utilities {
         // field 5: the user ID string, variable length, terminated with a null (0x00)
         // field 6: the domain name of the host we want to contact, variable length, terminated with a null (0x00)
 
+        long handshakeStart = System.nanoTime();
         Socket socket = new Socket();
         socket.setSoTimeout(READ_TIMEOUT_MILLISECONDS);
         SocketAddress socksAddress = new InetSocketAddress(socksHost, socksPort);
@@ -76,6 +98,7 @@ public class Utilities {
         byte firstByte = inputStream.readByte();
         byte secondByte = inputStream.readByte();
         if (firstByte != (byte)0x00 || secondByte != (byte)0x5a) {
+            instrumentation.recordSocksHandshake(System.nanoTime() - handshakeStart, false);
             socket.close();
             throw new IOException("SOCKS4a connect failed, got " + firstByte + " - " + secondByte +
                     ", but expected 0x00 - 0x5a:, networkHost= " + networkHost + ", networkPort = " + networkPort
@@ -83,6 +106,95 @@ public class Utilities {
         }
         inputStream.readShort();
         inputStream.readInt();
+        instrumentation.recordSocksHandshake(System.nanoTime() - handshakeStart, true);
         return socket;
     }
+
+    /**
+     * Opens a SOCKS5 connection through the Tor Onion Proxy, authenticating with a username and password. Tor does
+     * not check the credentials; it uses them to keep streams with different credentials on different circuits.
+     * @param networkHost DNS or IP address of destination host, resolved by tor
+     * @param networkPort Port of destination host
+     * @param socksHost DNS or IP address of the local SOCKS5 Proxy (the Tor Onion Proxy)
+     * @param socksPort Port of SOCKS5 Proxy (the Tor Onion Proxy)
+     * @param username isolation username, 1 to 255 bytes
+     * @param password isolation password, 1 to 255 bytes
+     * @return A socket set up to relay via socks to the local Tor Onion Proxy and via the Tor Network to the
+     * destination host.
+     * @throws IOException Networking issues
+     */
+    public static Socket socks5SocketConnection(String networkHost, int networkPort, String socksHost, int socksPort,
+                                                String username, String password) throws IOException {
+        return socks5SocketConnection(networkHost, networkPort, socksHost, socksPort, username, password, null);
+    }
+
+    /**
+     * Same as {@link #socks5SocketConnection(String, int, String, int, String, String)}, but sends the address
+     * cached by the resolver instead of the host name when it has a fresh one
+     * @param resolver cache of tor's DNS answers, may be null
+     */
+    public static Socket socks5SocketConnection(String networkHost, int networkPort, String socksHost, int socksPort,
+                                                String username, String password, DnsResolver resolver)
+            throws IOException {
+        if (resolver != null) {
+            networkHost = resolver.toSocksHost(networkHost);
+        }
+        byte[] host = networkHost.getBytes("UTF-8");
+        byte[] user = username.getBytes("UTF-8");
+        byte[] pass = password.getBytes("UTF-8");
+        if (host.length > 255 || user.length == 0 || user.length > 255 || pass.length == 0 || pass.length > 255) {
+            throw new IllegalArgumentException("SOCKS5 host, username and password must be 1 to 255 bytes");
+        }
+
+        long handshakeStart = System.nanoTime();
+        Socket socket = new Socket();
+        socket.setSoTimeout(READ_TIMEOUT_MILLISECONDS);
+        SocketAddress socksAddress = new InetSocketAddress(socksHost, socksPort);
+        socket.connect(socksAddress, CONNECT_TIMEOUT_MILLISECONDS);
+        boolean success = false;
+        try {
+            DataOutputStream outputStream = new DataOutputStream(socket.getOutputStream());
+            DataInputStream inputStream = new DataInputStream(socket.getInputStream());
+
+            // Greeting: version 5, one method, username/password (RFC 1928, RFC 1929)
+            outputStream.write(new byte[] {0x05, 0x01, 0x02});
+            if (inputStream.readByte() != 0x05 || inputStream.readByte() != 0x02) {
+                throw new IOException("SOCKS5 proxy refused username/password authentication");
+            }
+            outputStream.write(0x01);
+            outputStream.write(user.length);
+            outputStream.write(user);
+            outputStream.write(pass.length);
+            outputStream.write(pass);
+            inputStream.readByte();
+            if (inputStream.readByte() != 0x00) {
+                throw new IOException("SOCKS5 authentication failed");
+            }
+
+            // Connect by domain name so that tor resolves it
+            outputStream.write(new byte[] {0x05, 0x01, 0x00, 0x03});
+            outputStream.write(host.length);
+            outputStream.write(host);
+            outputStream.writeShort((short) networkPort);
+            outputStream.flush();
+
+            inputStream.readByte();
+            byte reply = inputStream.readByte();
+            inputStream.readByte();
+            byte addressType = inputStream.readByte();
+            if (reply != 0x00) {
+                throw new IOException("SOCKS5 connect failed, got reply " + reply + ", networkHost= " + networkHost
+                        + ", networkPort = " + networkPort + ", socksHost=" + socksHost + ",socksPort=" + socksPort);
+            }
+            int addressLength = addressType == 0x01 ? 4 : addressType == 0x04 ? 16 : inputStream.readUnsignedByte();
+            inputStream.readFully(new byte[addressLength + 2]);
+            success = true;
+            return socket;
+        } finally {
+            instrumentation.recordSocksHandshake(System.nanoTime() - handshakeStart, success);
+            if (!success) {
+                socket.close();
+            }
+        }
+    }
 }
@@ -0,0 +1,133 @@
+/*
+Copyright (c) Microsoft Open Technologies, Inc.
+All Rights Reserved
+Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except in compliance with the
+License. You may obtain a copy of the License at http://www.apache.org/licenses/LICENSE-2.0
+
+THIS CODE IS PROVIDED ON AN *AS IS* BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, EITHER EXPRESS OR IMPLIED,
+INCLUDING WITHOUT LIMITATION ANY IMPLIED WARRANTIES OR CONDITIONS OF TITLE, FITNESS FOR A PARTICULAR PURPOSE,
+MERCHANTABLITY OR NON-INFRINGEMENT.
+
+See the Apache 2 License for the specific language governing permissions and limitations under the License.
+*/
+
+package com.msopentech.thali.toronionproxy;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.*;
+
+public class AsyncEventHandlerTest {
+
+    @Test
+    public void deliversInOrder() throws Exception {
+        final List<String> received = Collections.synchronizedList(new ArrayList<String>());
+        final CountDownLatch done = new CountDownLatch(1);
+        AsyncEventHandler handler = new AsyncEventHandler(new BaseEventHandler() {
+            @Override
+            public void circuitStatus(String status, String id, String path) {
+                received.add(id);
+                if ("99".equals(id)) done.countDown();
+            }
+        }, 8, AsyncEventHandler.OverflowPolicy.BLOCK);
+        handler.start();
+        for (int i = 0; i < 100; i++) {
+            handler.circuitStatus("BUILT", String.valueOf(i), "");
+        }
+        assertTrue(done.await(5, TimeUnit.SECONDS));
+        handler.stop();
+        assertEquals(100, received.size());
+        for (int i = 0; i < 100; i++) {
+            assertEquals(String.valueOf(i), received.get(i));
+        }
+        assertEquals(0, handler.getDroppedCount());
+    }
+
+    @Test
+    public void dropsWhenFull() {
+        AsyncEventHandler handler = new AsyncEventHandler(new BaseEventHandler() {}, 4,
+                AsyncEventHandler.OverflowPolicy.DROP);
+        // Not started, so nothing is consumed
+        for (int i = 0; i < 6; i++) {
+            handler.message("NOTICE", "message " + i);
+        }
+        assertEquals(4, handler.getBacklog());
+        assertEquals(2, handler.getDroppedCount());
+    }
+
+    @Test
+    public void coalescesBandwidth() throws Exception {
+        final long[] total = new long[2];
+        final CountDownLatch done = new CountDownLatch(1);
+        AsyncEventHandler handler = new AsyncEventHandler(new BaseEventHandler() {
+            @Override
+            public void bandwidthUsed(long read, long written) {
+                synchronized (total) {
+                    total[0] += read;
+                    total[1] += written;
+                    if (total[0] == 50) done.countDown();
+                }
+            }
+        }, 2, AsyncEventHandler.OverflowPolicy.COALESCE);
+        for (int i = 0; i < 5; i++) {
+            handler.bandwidthUsed(10, 1);
+        }
+        assertEquals(3, handler.getCoalescedCount());
+        handler.start();
+        assertTrue(waitForBacklog(handler));
+        handler.bandwidthUsed(0, 0);
+        assertTrue(done.await(5, TimeUnit.SECONDS));
+        handler.stop();
+        synchronized (total) {
+            assertEquals(50, total[0]);
+            assertEquals(5, total[1]);
+        }
+        assertEquals(0, handler.getDroppedCount());
+    }
+
+    @Test
+    public void queuesProcessOutputWithControlEvents() throws Exception {
+        final List<String> received = Collections.synchronizedList(new ArrayList<String>());
+        final List<Thread> threads = Collections.synchronizedList(new ArrayList<Thread>());
+        final CountDownLatch done = new CountDownLatch(3);
+        TorEventDispatcher dispatcher = new TorEventDispatcher();
+        dispatcher.addListener(new BaseTorEventListener() {
+            @Override
+            public void onLogEvent(LogEvent event) {
+                received.add(event.getSource() + " " + event.getSeverity() + " " + event.getMessage());
+                threads.add(Thread.currentThread());
+                done.countDown();
+            }
+        });
+        AsyncEventHandler handler = new AsyncEventHandler(dispatcher, 4, AsyncEventHandler.OverflowPolicy.DROP);
+        handler.message("NOTICE", "from control port");
+        handler.processOutput(LogEvent.Source.STDOUT, "Oct 19 12:00:00.000 [warn] from stdout");
+        handler.processOutput(LogEvent.Source.STDERR, "from stderr");
+        handler.circuitStatus("BUILT", "1", "");
+        handler.processOutput(LogEvent.Source.STDOUT, "dropped");
+        assertEquals(1, handler.getDroppedCount());
+
+        handler.start();
+        assertTrue(done.await(5, TimeUnit.SECONDS));
+        handler.stop();
+        assertEquals(Arrays.asList("CONTROL_PORT NOTICE from control port", "STDOUT WARN from stdout",
+                "STDERR ERR from stderr"), received);
+        assertEquals(1, new HashSet<>(threads).size());
+        assertNotSame(Thread.currentThread(), threads.get(0));
+    }
+
+    private static boolean waitForBacklog(AsyncEventHandler handler) throws InterruptedException {
+        for (int i = 0; i < 500 && handler.getBacklog() > 0; i++) {
+            Thread.sleep(10);
+        }
+        return handler.getBacklog() == 0;
+    }
+}
@@ -0,0 +1,100 @@
+/*
+Copyright (c) Microsoft Open Technologies, Inc.
+All Rights Reserved
+Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except in compliance with the
+License. You may obtain a copy of the License at http://www.apache.org/licenses/LICENSE-2.0
+
+THIS CODE IS PROVIDED ON AN *AS IS* BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, EITHER EXPRESS OR IMPLIED,
+INCLUDING WITHOUT LIMITATION ANY IMPLIED WARRANTIES OR CONDITIONS OF TITLE, FITNESS FOR A PARTICULAR PURPOSE,
+MERCHANTABLITY OR NON-INFRINGEMENT.
+
+See the Apache 2 License for the specific language governing permissions and limitations under the License.
+*/
+
+package com.msopentech.thali.toronionproxy;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+public class BandwidthMeterTest {
+    private static final long MINUTE = 60000;
+    // Start of a minute
+    private static final long NOW = 1000 * MINUTE;
+
+    @Test
+    public void ratesAreExponentiallyWeighted() {
+        BandwidthMeter meter = new BandwidthMeter(0.5);
+        meter.bandwidthUsed(100, 10, NOW);
+        assertEquals(100, meter.getReadRate(), 0.001);
+        assertEquals(10, meter.getWriteRate(), 0.001);
+        meter.bandwidthUsed(0, 0, NOW + 1000);
+        assertEquals(50, meter.getReadRate(), 0.001);
+        meter.bandwidthUsed(100, 30, NOW + 2000);
+        assertEquals(75, meter.getReadRate(), 0.001);
+        assertEquals(17.5, meter.getWriteRate(), 0.001);
+        assertEquals(200, meter.getTotalRead());
+        assertEquals(40, meter.getTotalWritten());
+    }
+
+    @Test
+    public void keepsPerMinuteTotalsForAnHour() {
+        BandwidthMeter meter = new BandwidthMeter();
+        meter.bandwidthUsed(10, 1, NOW);
+        meter.bandwidthUsed(5, 1, NOW + 30000);
+        meter.bandwidthUsed(20, 2, NOW + MINUTE);
+
+        long[] read = meter.getReadPerMinute(NOW + 3 * MINUTE);
+        assertEquals(60, read.length);
+        assertEquals(0, read[59]);
+        assertEquals(0, read[58]);
+        assertEquals(20, read[57]);
+        assertEquals(15, read[56]);
+        assertEquals(2, meter.getWrittenPerMinute(NOW + 3 * MINUTE)[57]);
+
+        // Minutes older than an hour are dropped
+        read = meter.getReadPerMinute(NOW + 60 * MINUTE);
+        assertEquals(20, read[0]);
+        assertEquals(0, read[59]);
+        read = meter.getReadPerMinute(NOW + 120 * MINUTE);
+        assertEquals(0, sum(read));
+        assertEquals(35, meter.getTotalRead());
+    }
+
+    @Test
+    public void parsesStreamAndCircuitBandwidth() {
+        BandwidthMeter meter = new BandwidthMeter();
+        meter.unrecognized(BandwidthMeter.STREAM_BW, "12 100 200 2020-01-01T00:00:00.000000");
+        meter.unrecognized(BandwidthMeter.STREAM_BW, "13 1 2");
+        meter.unrecognized(BandwidthMeter.CIRC_BW, "ID=5 READ=300 WRITTEN=400 TIME=2020-01-01T00:00:00.000000");
+        meter.unrecognized(BandwidthMeter.CIRC_BW, "ID=6 READ=x WRITTEN=4");
+        meter.unrecognized("ADDRMAP", "example.com 192.0.2.1 NEVER");
+        assertEquals(202, meter.getStreamBytesRead());
+        assertEquals(101, meter.getStreamBytesWritten());
+        assertEquals(300, meter.getCircuitBytesRead());
+        assertEquals(404, meter.getCircuitBytesWritten());
+        assertEquals(0, meter.getTotalRead());
+    }
+
+    @Test
+    public void resetClearsEverything() {
+        BandwidthMeter meter = new BandwidthMeter();
+        meter.bandwidthUsed(10, 20, NOW);
+        meter.unrecognized(BandwidthMeter.STREAM_BW, "12 100 200");
+        meter.reset();
+        assertEquals(0, meter.getTotalRead());
+        assertEquals(0, meter.getStreamBytesRead());
+        assertEquals(0, meter.getReadRate(), 0);
+        assertEquals(0, sum(meter.getReadPerMinute(NOW)));
+        meter.bandwidthUsed(4, 4, NOW);
+        assertEquals(4, meter.getReadRate(), 0);
+    }
+
+    private static long sum(long[] values) {
+        long sum = 0;
+        for (long value : values) {
+            sum += value;
+        }
+        return sum;
+    }
+}
@@ -0,0 +1,81 @@
+/*
+Copyright (c) Microsoft Open Technologies, Inc.
+All Rights Reserved
+Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except in compliance with the
+License. You may obtain a copy of the License at http://www.apache.org/licenses/LICENSE-2.0
+
+THIS CODE IS PROVIDED ON AN *AS IS* BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, EITHER EXPRESS OR IMPLIED,
+INCLUDING WITHOUT LIMITATION ANY IMPLIED WARRANTIES OR CONDITIONS OF TITLE, FITNESS FOR A PARTICULAR PURPOSE,
+MERCHANTABLITY OR NON-INFRINGEMENT.
+
+See the Apache 2 License for the specific language governing permissions and limitations under the License.
+*/
+
+package com.msopentech.thali.toronionproxy;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+public class CircuitRegistryTest {
+    private static final String PATH = "$AAAA~guard,$BBBB~middle,$CCCC~exit";
+
+    private final CircuitRegistry registry = new CircuitRegistry();
+
+    private void circuit(String status, String id) {
+        registry.onCircuitEvent(new CircuitEvent(status, id, PATH));
+    }
+
+    @Test
+    public void recordsBuildTimeFromLaunch() {
+        circuit("LAUNCHED", "1");
+        circuit("EXTENDED", "1");
+        circuit("BUILT", "1");
+
+        CircuitRegistry.Circuit circuit = registry.getCircuit("1");
+        assertTrue(circuit.isBuilt());
+        assertTrue(circuit.getBuildMillis() >= 0);
+        assertEquals(3, circuit.getTransitions().size());
+        assertEquals(1, registry.getTotalBuilt());
+        assertEquals(1, registry.getBuildTimeHistogram().getCount());
+        assertEquals(1, registry.getBuiltSince(60000));
+        assertTrue(registry.getBuildTimePercentile(99, 60000) >= 0);
+
+        circuit("CLOSED", "1");
+        assertNull(registry.getCircuit("1"));
+        assertEquals(0, registry.getBuiltCircuitCount());
+    }
+
+    @Test
+    public void ignoresBuildTimeWhenLaunchWasNotSeen() {
+        circuit("EXTENDED", "2");
+        circuit("BUILT", "2");
+
+        CircuitRegistry.Circuit circuit = registry.getCircuit("2");
+        assertTrue(circuit.isBuilt());
+        assertEquals(-1, circuit.getLaunchedAt());
+        assertEquals(-1, circuit.getBuildMillis());
+        assertEquals(1, registry.getBuiltCircuitCount());
+        assertEquals(1, registry.getTotalBuilt());
+        assertEquals(0, registry.getBuildTimeHistogram().getCount());
+        assertEquals(-1, registry.getBuildTimePercentile(50, 60000));
+    }
+
+    @Test
+    public void countsFailuresAndResets() {
+        circuit("LAUNCHED", "3");
+        circuit("FAILED", "3");
+        circuit("FAILED", "4");
+        assertEquals(2, registry.getTotalFailed());
+        assertTrue(registry.getCircuits().isEmpty());
+
+        circuit("LAUNCHED", "5");
+        circuit("BUILT", "5");
+        registry.reset();
+        assertTrue(registry.getCircuits().isEmpty());
+        assertEquals(0, registry.getTotalBuilt());
+        assertEquals(0, registry.getTotalFailed());
+        assertEquals(0, registry.getBuildTimeHistogram().getCount());
+        assertEquals(0, registry.getBuiltSince(60000));
+    }
+}
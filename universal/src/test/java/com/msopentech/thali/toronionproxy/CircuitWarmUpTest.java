@@ -0,0 +1,74 @@
+/*
+Copyright (c) Microsoft Open Technologies, Inc.
+All Rights Reserved
+Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except in compliance with the
+License. You may obtain a copy of the License at http://www.apache.org/licenses/LICENSE-2.0
+
+THIS CODE IS PROVIDED ON AN *AS IS* BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, EITHER EXPRESS OR IMPLIED,
+INCLUDING WITHOUT LIMITATION ANY IMPLIED WARRANTIES OR CONDITIONS OF TITLE, FITNESS FOR A PARTICULAR PURPOSE,
+MERCHANTABLITY OR NON-INFRINGEMENT.
+
+See the Apache 2 License for the specific language governing permissions and limitations under the License.
+*/
+
+package com.msopentech.thali.toronionproxy;
+
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.*;
+
+public class CircuitWarmUpTest {
+
+    @Test
+    public void countsBuiltCircuitsOnly() throws Exception {
+        CircuitWarmUp warmUp = new CircuitWarmUp();
+        warmUp.onCircuitEvent(new CircuitEvent("LAUNCHED", "1", ""));
+        warmUp.onCircuitEvent(new CircuitEvent("BUILT", "1", "$GGGG~g,$MMMM~m,$EEEE~e"));
+        warmUp.onCircuitEvent(new CircuitEvent("FAILED", "2", "$GGGG~g"));
+        warmUp.onCircuitEvent(new CircuitEvent("CLOSED", "2", "$GGGG~g"));
+        warmUp.onCircuitEvent(new CircuitEvent("CLOSED", "3", ""));
+        assertEquals(1, warmUp.await(Arrays.asList("1", "2", "3"), 0));
+    }
+
+    @Test
+    public void keepsFirstOutcome() throws Exception {
+        CircuitWarmUp warmUp = new CircuitWarmUp();
+        warmUp.onCircuitEvent(new CircuitEvent("BUILT", "1", "$GGGG~g,$MMMM~m,$EEEE~e"));
+        warmUp.onCircuitEvent(new CircuitEvent("CLOSED", "1", "$GGGG~g,$MMMM~m,$EEEE~e"));
+        assertEquals(1, warmUp.await(Collections.singletonList("1"), 0));
+    }
+
+    @Test
+    public void timesOutWithCircuitsBuiltSoFar() throws Exception {
+        CircuitWarmUp warmUp = new CircuitWarmUp();
+        warmUp.onCircuitEvent(new CircuitEvent("BUILT", "1", "$GGGG~g,$MMMM~m,$EEEE~e"));
+        warmUp.onCircuitEvent(new CircuitEvent("EXTENDED", "2", "$GGGG~g"));
+        assertEquals(1, warmUp.await(Arrays.asList("1", "2"), 10));
+    }
+
+    @Test
+    public void wakesWhenLastCircuitIsBuilt() throws Exception {
+        final CircuitWarmUp warmUp = new CircuitWarmUp();
+        final AtomicInteger built = new AtomicInteger(-1);
+        Thread waiter = new Thread() {
+            @Override
+            public void run() {
+                try {
+                    built.set(warmUp.await(Arrays.asList("1", "2"), 5000));
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+            }
+        };
+        waiter.start();
+        warmUp.onCircuitEvent(new CircuitEvent("BUILT", "1", "$GGGG~g,$MMMM~m,$EEEE~e"));
+        warmUp.onCircuitEvent(new CircuitEvent("BUILT", "2", "$GGGG~g,$MMMM~m,$FFFF~f"));
+        waiter.join(5000);
+        assertFalse(waiter.isAlive());
+        assertEquals(2, built.get());
+    }
+}
@@ -0,0 +1,198 @@
+/*
+Copyright (c) Microsoft Open Technologies, Inc.
+All Rights Reserved
+Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except in compliance with the
+License. You may obtain a copy of the License at http://www.apache.org/licenses/LICENSE-2.0
+
+THIS CODE IS PROVIDED ON AN *AS IS* BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, EITHER EXPRESS OR IMPLIED,
+INCLUDING WITHOUT LIMITATION ANY IMPLIED WARRANTIES OR CONDITIONS OF TITLE, FITNESS FOR A PARTICULAR PURPOSE,
+MERCHANTABLITY OR NON-INFRINGEMENT.
+
+See the Apache 2 License for the specific language governing permissions and limitations under the License.
+*/
+
+package com.msopentech.thali.toronionproxy;
+
+import org.junit.After;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.UnknownHostException;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.*;
+
+public class DnsResolverTest {
+    private static final long MAX_TTL = 60000;
+    private static final String FUTURE = "\"2999-01-01 00:00:00\"";
+    private static final String PAST = "\"2000-01-01 00:00:00\"";
+
+    private final List<String> resolves = new CopyOnWriteArrayList<>();
+    // Answers sent as soon as RESOLVE is sent, by host name
+    private final Map<String, String> answers = new HashMap<>();
+    private final ExecutorService executor = Executors.newCachedThreadPool();
+
+    private DnsResolver resolver = create(16);
+
+    private DnsResolver create(int maxEntries) {
+        return new DnsResolver(new DnsResolver.Transport() {
+            @Override
+            public void resolve(String hostname) throws IOException {
+                resolves.add(hostname);
+                String answer = answers.get(hostname);
+                if (answer != null) {
+                    resolver.unrecognized(DnsResolver.EVENT_TYPE, answer);
+                }
+            }
+        }, MAX_TTL, MAX_TTL, maxEntries);
+    }
+
+    @After
+    public void tearDown() {
+        executor.shutdownNow();
+    }
+
+    private InetAddress resolve(String hostname) throws Exception {
+        return resolver.resolve(hostname, 5, TimeUnit.SECONDS);
+    }
+
+    @Test
+    public void cachesUntilExpires() throws Exception {
+        answers.put("example.com", "example.com 192.0.2.1 " + FUTURE + " EXPIRES=" + FUTURE);
+        assertEquals(InetAddress.getByName("192.0.2.1"), resolve("example.com"));
+        assertEquals(InetAddress.getByName("192.0.2.1"), resolve("EXAMPLE.com"));
+        assertEquals("192.0.2.1", resolver.toSocksHost("example.com"));
+        assertEquals(1, resolves.size());
+        assertEquals(2, resolver.getHitCount());
+    }
+
+    @Test
+    public void expiredAnswerIsNotReused() throws Exception {
+        answers.put("example.com", "example.com 192.0.2.1 " + PAST + " EXPIRES=" + PAST);
+        assertEquals(InetAddress.getByName("192.0.2.1"), resolve("example.com"));
+        assertEquals("example.com", resolver.toSocksHost("example.com"));
+        resolve("example.com");
+        assertEquals(2, resolves.size());
+    }
+
+    @Test
+    public void cachesFailures() throws Exception {
+        answers.put("nx.example", "nx.example <error> " + FUTURE + " error=yes EXPIRES=" + FUTURE);
+        for (int i = 0; i < 2; i++) {
+            try {
+                resolve("nx.example");
+                fail();
+            } catch (UnknownHostException e) {
+                // expected
+            }
+        }
+        assertEquals(1, resolves.size());
+    }
+
+    @Test
+    public void coalescesConcurrentLookups() throws Exception {
+        Callable<InetAddress> lookup = new Callable<InetAddress>() {
+            @Override
+            public InetAddress call() throws Exception {
+                return resolve("example.com");
+            }
+        };
+        Future<InetAddress> first = executor.submit(lookup);
+        awaitTrue(new Callable<Boolean>() {
+            @Override
+            public Boolean call() {
+                return resolves.size() == 1;
+            }
+        });
+        Future<InetAddress> second = executor.submit(lookup);
+        awaitTrue(new Callable<Boolean>() {
+            @Override
+            public Boolean call() {
+                return resolver.getCoalescedCount() == 1;
+            }
+        });
+        resolver.unrecognized(DnsResolver.EVENT_TYPE, "example.com 192.0.2.1 " + FUTURE + " EXPIRES=" + FUTURE);
+        assertEquals(InetAddress.getByName("192.0.2.1"), first.get(5, TimeUnit.SECONDS));
+        assertEquals(InetAddress.getByName("192.0.2.1"), second.get(5, TimeUnit.SECONDS));
+        assertEquals(1, resolves.size());
+    }
+
+    @Test
+    public void timedOutWaiterLeavesLookupToOthers() throws Exception {
+        Future<InetAddress> impatient = executor.submit(new Callable<InetAddress>() {
+            @Override
+            public InetAddress call() throws Exception {
+                return resolver.resolve("example.com", 200, TimeUnit.MILLISECONDS);
+            }
+        });
+        awaitTrue(new Callable<Boolean>() {
+            @Override
+            public Boolean call() {
+                return resolves.size() == 1;
+            }
+        });
+        Future<InetAddress> patient = executor.submit(new Callable<InetAddress>() {
+            @Override
+            public InetAddress call() throws Exception {
+                return resolve("example.com");
+            }
+        });
+        awaitTrue(new Callable<Boolean>() {
+            @Override
+            public Boolean call() {
+                return resolver.getCoalescedCount() == 1;
+            }
+        });
+        try {
+            impatient.get(5, TimeUnit.SECONDS);
+            fail();
+        } catch (ExecutionException e) {
+            assertTrue(e.getCause() instanceof IOException);
+        }
+        resolver.unrecognized(DnsResolver.EVENT_TYPE, "example.com 192.0.2.1 " + FUTURE + " EXPIRES=" + FUTURE);
+        assertEquals(InetAddress.getByName("192.0.2.1"), patient.get(5, TimeUnit.SECONDS));
+        assertEquals(1, resolves.size());
+        assertEquals(1, resolver.getCacheSize());
+    }
+
+    @Test
+    public void ignoresUnsolicitedAnswers() {
+        resolver.unrecognized(DnsResolver.EVENT_TYPE, "other.example 192.0.2.2 " + FUTURE + " EXPIRES=" + FUTURE);
+        assertEquals(0, resolver.getCacheSize());
+        assertEquals("other.example", resolver.toSocksHost("other.example"));
+    }
+
+    @Test
+    public void boundsCacheSize() throws Exception {
+        resolver = create(2);
+        answers.put("stale.example", "stale.example 192.0.2.1 " + PAST + " EXPIRES=" + PAST);
+        answers.put("a.example", "a.example 192.0.2.2 " + FUTURE + " EXPIRES=" + FUTURE);
+        answers.put("b.example", "b.example 192.0.2.3 " + FUTURE + " EXPIRES=" + FUTURE);
+        answers.put("c.example", "c.example 192.0.2.4 " + FUTURE + " EXPIRES=" + FUTURE);
+        resolve("stale.example");
+        resolve("a.example");
+        resolve("b.example");
+        assertEquals(2, resolver.getCacheSize());
+        assertEquals("192.0.2.2", resolver.toSocksHost("a.example"));
+        resolve("c.example");
+        assertEquals(2, resolver.getCacheSize());
+    }
+
+    private static void awaitTrue(Callable<Boolean> condition) throws Exception {
+        long deadline = System.currentTimeMillis() + 5000;
+        while (!condition.call()) {
+            assertTrue(System.currentTimeMillis() < deadline);
+            Thread.sleep(10);
+        }
+    }
+}
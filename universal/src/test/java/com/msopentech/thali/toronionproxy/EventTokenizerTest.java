@@ -0,0 +1,75 @@
+/*
+Copyright (c) Microsoft Open Technologies, Inc.
+All Rights Reserved
+Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except in compliance with the
+License. You may obtain a copy of the License at http://www.apache.org/licenses/LICENSE-2.0
+
+THIS CODE IS PROVIDED ON AN *AS IS* BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, EITHER EXPRESS OR IMPLIED,
+INCLUDING WITHOUT LIMITATION ANY IMPLIED WARRANTIES OR CONDITIONS OF TITLE, FITNESS FOR A PARTICULAR PURPOSE,
+MERCHANTABLITY OR NON-INFRINGEMENT.
+
+See the Apache 2 License for the specific language governing permissions and limitations under the License.
+*/
+
+package com.msopentech.thali.toronionproxy;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+public class EventTokenizerTest {
+
+    @Test
+    public void quotedValueIsSingleToken() {
+        EventTokenizer tokenizer = new EventTokenizer().reset("NOTICE BOOTSTRAP PROGRESS=85 SUMMARY=\"Finishing handshake\" TAG=ap");
+        assertEquals("Finishing handshake", tokenizer.find("SUMMARY"));
+        assertTrue(tokenizer.next());
+        assertTrue(tokenizer.isKey("TAG"));
+        assertFalse(tokenizer.next());
+    }
+
+    @Test
+    public void parsesNumbers() {
+        EventTokenizer tokenizer = new EventTokenizer().reset("1024 abc");
+        assertTrue(tokenizer.next());
+        assertEquals(1024, tokenizer.longValue(-1));
+        assertTrue(tokenizer.next());
+        assertEquals(-1, tokenizer.longValue(-1));
+    }
+
+    @Test
+    public void statusEventBootstrapProgress() {
+        StatusEvent event = StatusEvent.parse("STATUS_CLIENT", "NOTICE BOOTSTRAP PROGRESS=100 TAG=done SUMMARY=\"Done\"",
+                new EventTokenizer());
+        assertEquals("NOTICE", event.getSeverity());
+        assertEquals("BOOTSTRAP", event.getAction());
+        assertEquals(100, event.getBootstrapProgress());
+        assertEquals("Done", event.getArgument("SUMMARY"));
+    }
+
+    @Test
+    public void circuitHops() {
+        CircuitEvent event = new CircuitEvent("BUILT", "7", "$AAAA~guard,$BBBB~middle,$CCCC~exit");
+        assertEquals(3, event.getHopCount());
+        assertEquals("$CCCC~exit", event.getLastHop());
+        assertEquals("CCCC", CircuitEvent.fingerprintOf(event.getLastHop()));
+        assertEquals(0, new CircuitEvent("LAUNCHED", "8", "").getHopCount());
+    }
+
+    @Test
+    public void logEventFromProcessOutput() {
+        LogEvent event = LogEvent.parse("Oct 19 12:00:00.000 [notice] Bootstrapped 45% (requesting_descriptors): Asking",
+                LogEvent.Source.STDOUT);
+        assertEquals("NOTICE", event.getSeverity());
+        assertEquals(45, event.getBootstrapProgress());
+        assertEquals("Bootstrapped 45% (requesting_descriptors): Asking", event.getMessage());
+
+        event = LogEvent.parse("[warn] Could not bind to 127.0.0.1:9050", LogEvent.Source.STDOUT);
+        assertEquals("WARN", event.getSeverity());
+        assertEquals(-1, event.getBootstrapProgress());
+
+        event = LogEvent.parse("no prefix [here]", LogEvent.Source.STDERR);
+        assertEquals("ERR", event.getSeverity());
+        assertEquals("no prefix [here]", event.getMessage());
+    }
+}
@@ -0,0 +1,42 @@
+/*
+Copyright (c) Microsoft Open Technologies, Inc.
+All Rights Reserved
+Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except in compliance with the
+License. You may obtain a copy of the License at http://www.apache.org/licenses/LICENSE-2.0
+
+THIS CODE IS PROVIDED ON AN *AS IS* BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, EITHER EXPRESS OR IMPLIED,
+INCLUDING WITHOUT LIMITATION ANY IMPLIED WARRANTIES OR CONDITIONS OF TITLE, FITNESS FOR A PARTICULAR PURPOSE,
+MERCHANTABLITY OR NON-INFRINGEMENT.
+
+See the Apache 2 License for the specific language governing permissions and limitations under the License.
+*/
+
+
+package com.msopentech.thali.toronionproxy;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+public class ExitNodeSpecTest {
+    private static final String FINGERPRINT = "0123456789ABCDEF0123456789ABCDEF01234567";
+
+    @Test
+    public void matchesEachKindOfEntry() {
+        ExitNodeSpec spec = new ExitNodeSpec("$" + FINGERPRINT + "~relay, {DE}, exitnick, 10.1.0.0/16");
+        assertTrue(spec.needsCountry());
+        assertTrue(spec.matches(FINGERPRINT.toLowerCase(), null, null, null));
+        assertTrue(spec.matches("FF", "ExitNick", null, null));
+        assertTrue(spec.matches("FF", null, "1.2.3.4", "de"));
+        assertTrue(spec.matches("FF", null, "10.1.200.3", "us"));
+        assertFalse(spec.matches("FF", "other", "10.2.0.1", "us"));
+        assertFalse(spec.matches("FF", null, null, null));
+    }
+
+    @Test
+    public void onlyFingerprintsNeedNoLookups() {
+        ExitNodeSpec spec = new ExitNodeSpec(FINGERPRINT);
+        assertFalse(spec.needsAddress());
+        assertTrue(spec.matches(FINGERPRINT, null, null, null));
+    }
+}
@@ -0,0 +1,191 @@
+/*
+Copyright (c) Microsoft Open Technologies, Inc.
+All Rights Reserved
+Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except in compliance with the
+License. You may obtain a copy of the License at http://www.apache.org/licenses/LICENSE-2.0
+
+THIS CODE IS PROVIDED ON AN *AS IS* BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, EITHER EXPRESS OR IMPLIED,
+INCLUDING WITHOUT LIMITATION ANY IMPLIED WARRANTIES OR CONDITIONS OF TITLE, FITNESS FOR A PARTICULAR PURPOSE,
+MERCHANTABLITY OR NON-INFRINGEMENT.
+
+See the Apache 2 License for the specific language governing permissions and limitations under the License.
+*/
+
+package com.msopentech.thali.toronionproxy;
+
+import java.io.*;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Minimal tor control port for driving an <code>OnionProxyManager</code> in tests: every command is recorded and
+ * answered with 250 OK, and GETINFO keys are answered with an empty value unless set with
+ * {@link #setInfo(String, String)}. Other replies can be set with {@link #setReply(String, String...)}.
+ */
+final class FakeControlPort implements Closeable {
+    private final ServerSocket serverSocket;
+    private final List<String> commands = new ArrayList<>();
+    private final Map<String, String> info = new LinkedHashMap<>();
+    private final Map<String, List<String>> replies = new LinkedHashMap<>();
+    private final Thread acceptor;
+    private volatile Writer current;
+
+    FakeControlPort() throws IOException {
+        serverSocket = new ServerSocket(0, 1, InetAddress.getByName("127.0.0.1"));
+        acceptor = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    while (true) {
+                        serve(serverSocket.accept());
+                    }
+                } catch (IOException e) {
+                    // closed
+                }
+            }
+        }, "FakeControlPort");
+        acceptor.setDaemon(true);
+        acceptor.start();
+    }
+
+    private void serve(Socket socket) {
+        try {
+            BufferedReader in = new BufferedReader(new InputStreamReader(socket.getInputStream(), "US-ASCII"));
+            Writer out = new OutputStreamWriter(socket.getOutputStream(), "US-ASCII");
+            current = out;
+            String line;
+            while ((line = in.readLine()) != null) {
+                synchronized (commands) {
+                    commands.add(line);
+                    commands.notifyAll();
+                }
+                synchronized (out) {
+                    answer(line, out);
+                    out.flush();
+                }
+            }
+        } catch (IOException e) {
+            // connection dropped
+        } finally {
+            try {
+                socket.close();
+            } catch (IOException e) {
+                // ignore
+            }
+        }
+    }
+
+    private void answer(String command, Writer out) throws IOException {
+        synchronized (commands) {
+            for (Map.Entry<String, List<String>> reply : replies.entrySet()) {
+                if (command.startsWith(reply.getKey())) {
+                    for (String line : reply.getValue()) {
+                        out.write(line + "\r\n");
+                    }
+                    return;
+                }
+            }
+            if (command.startsWith("GETINFO ")) {
+                for (String key : command.substring("GETINFO ".length()).split(" ")) {
+                    String value = info.get(key);
+                    if (value != null && value.contains("\n")) {
+                        out.write("250+" + key + "=\r\n" + value.replace("\n", "\r\n") + ".\r\n");
+                    } else {
+                        out.write("250-" + key + "=" + (value == null ? "" : value) + "\r\n");
+                    }
+                }
+            }
+        }
+        out.write("250 OK\r\n");
+    }
+
+    /**
+     * Sets the answer to GETINFO key. Values containing a newline are sent as a data block.
+     */
+    void setInfo(String key, String value) {
+        synchronized (commands) {
+            info.put(key, value);
+        }
+    }
+
+    /**
+     * Answers commands starting with the given prefix with the given reply lines instead of 250 OK
+     */
+    void setReply(String commandPrefix, String... lines) {
+        synchronized (commands) {
+            replies.put(commandPrefix, Arrays.asList(lines));
+        }
+    }
+
+    /**
+     * Sends an asynchronous event, without the 650 status, on the current connection
+     */
+    void sendEvent(String event) throws IOException {
+        Writer out = current;
+        if (out == null) {
+            throw new IOException("Not connected");
+        }
+        synchronized (out) {
+            out.write("650 " + event + "\r\n");
+            out.flush();
+        }
+    }
+
+    /**
+     * Creates a manager whose context points at this control port, as if tor were already running
+     */
+    OnionProxyManager createManager(File configDir, TorSettings settings) throws IOException {
+        TorConfig config = TorConfig.createDefault(configDir);
+        write(config.getControlPortFile(), "PORT=127.0.0.1:" + serverSocket.getLocalPort() + "\n");
+        write(config.getCookieAuthFile(), "cookie");
+        return new OnionProxyManager(new TestOnionProxyContext(config, settings));
+    }
+
+    private static void write(File file, String content) throws IOException {
+        file.getParentFile().mkdirs();
+        OutputStream out = new FileOutputStream(file);
+        try {
+            out.write(content.getBytes("US-ASCII"));
+        } finally {
+            out.close();
+        }
+    }
+
+    List<String> getCommands() {
+        synchronized (commands) {
+            return new ArrayList<>(commands);
+        }
+    }
+
+    /**
+     * Waits for a command starting with the given prefix to be received
+     */
+    boolean awaitCommand(String prefix, long timeoutMillis) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + timeoutMillis;
+        synchronized (commands) {
+            while (true) {
+                for (String command : commands) {
+                    if (command.startsWith(prefix)) {
+                        return true;
+                    }
+                }
+                long remaining = deadline - System.currentTimeMillis();
+                if (remaining <= 0) {
+                    return false;
+                }
+                commands.wait(remaining);
+            }
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        serverSocket.close();
+    }
+}
@@ -0,0 +1,132 @@
+/*
+Copyright (c) Microsoft Open Technologies, Inc.
+All Rights Reserved
+Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except in compliance with the
+License. You may obtain a copy of the License at http://www.apache.org/licenses/LICENSE-2.0
+
+THIS CODE IS PROVIDED ON AN *AS IS* BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, EITHER EXPRESS OR IMPLIED,
+INCLUDING WITHOUT LIMITATION ANY IMPLIED WARRANTIES OR CONDITIONS OF TITLE, FITNESS FOR A PARTICULAR PURPOSE,
+MERCHANTABLITY OR NON-INFRINGEMENT.
+
+See the Apache 2 License for the specific language governing permissions and limitations under the License.
+*/
+
+package com.msopentech.thali.toronionproxy;
+
+import org.junit.Test;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import static org.junit.Assert.*;
+
+public class HiddenServiceDescriptorTrackerTest {
+
+    private static final String SERVICE_ID = "abcdefghijklmnopqrstuvwxyz234567abcdefghijklmnopqrstuvwx";
+
+    @Test
+    public void notReachableBeforeUpload() throws Exception {
+        HiddenServiceDescriptorTracker tracker = new HiddenServiceDescriptorTracker();
+        tracker.track(SERVICE_ID + ".onion");
+        tracker.unrecognized("HS_DESC", "UPLOAD " + SERVICE_ID + " UNKNOWN $AAAA~relay");
+        assertFalse(tracker.awaitReachable(SERVICE_ID, 10, TimeUnit.MILLISECONDS));
+    }
+
+    @Test
+    public void reachableAfterUpload() throws Exception {
+        HiddenServiceDescriptorTracker tracker = new HiddenServiceDescriptorTracker();
+        tracker.track(SERVICE_ID);
+        tracker.unrecognized("HS_DESC", "UPLOADED " + SERVICE_ID + " UNKNOWN $AAAA~relay");
+        tracker.unrecognized("HS_DESC", "FAILED " + SERVICE_ID + " UNKNOWN $BBBB~relay REASON=UPLOAD_REJECTED");
+        assertTrue(tracker.awaitReachable(SERVICE_ID + ".onion", 0, TimeUnit.MILLISECONDS));
+        HiddenServiceDescriptorTracker.DescriptorUpload upload = tracker.getUpload(SERVICE_ID);
+        assertEquals(1, upload.getUploadCount());
+        assertEquals(1, upload.getFailureCount());
+        assertTrue(upload.getTimeToFirstUpload() >= 0);
+    }
+
+    @Test
+    public void ignoresUntrackedServices() {
+        HiddenServiceDescriptorTracker tracker = new HiddenServiceDescriptorTracker();
+        tracker.unrecognized("HS_DESC", "UPLOAD " + SERVICE_ID + " UNKNOWN $AAAA~relay");
+        tracker.unrecognized("HS_DESC", "UPLOADED " + SERVICE_ID + " UNKNOWN $AAAA~relay");
+        assertNull(tracker.getUpload(SERVICE_ID));
+    }
+
+    @Test
+    public void republishingResetsReachability() throws Exception {
+        HiddenServiceDescriptorTracker tracker = new HiddenServiceDescriptorTracker();
+        tracker.published(SERVICE_ID);
+        tracker.unrecognized("HS_DESC", "UPLOADED " + SERVICE_ID + " UNKNOWN $AAAA~relay");
+        assertTrue(tracker.awaitReachable(SERVICE_ID, 0, TimeUnit.MILLISECONDS));
+
+        tracker.published(SERVICE_ID + ".onion");
+        assertFalse(tracker.awaitReachable(SERVICE_ID, 10, TimeUnit.MILLISECONDS));
+        tracker.clear();
+        assertNull(tracker.getUpload(SERVICE_ID));
+    }
+
+    @Test
+    public void waitingDoesNotTrackUnknownServices() throws Exception {
+        HiddenServiceDescriptorTracker tracker = new HiddenServiceDescriptorTracker();
+        assertFalse(tracker.awaitReachable(SERVICE_ID, 0, TimeUnit.MILLISECONDS));
+        assertNull(tracker.getUpload(SERVICE_ID));
+    }
+
+    @Test
+    public void waitersFollowRepublishedService() throws Exception {
+        HiddenServiceDescriptorTracker tracker = new HiddenServiceDescriptorTracker();
+        tracker.published(SERVICE_ID);
+        AtomicBoolean reachable = new AtomicBoolean();
+        Thread waiter = startWaiter(tracker, reachable);
+
+        tracker.published(SERVICE_ID);
+        tracker.unrecognized("HS_DESC", "UPLOADED " + SERVICE_ID + " UNKNOWN $AAAA~relay");
+        waiter.join(5000);
+        assertFalse(waiter.isAlive());
+        assertTrue(reachable.get());
+    }
+
+    @Test
+    public void untrackingReleasesWaiters() throws Exception {
+        HiddenServiceDescriptorTracker tracker = new HiddenServiceDescriptorTracker();
+        tracker.published(SERVICE_ID);
+        AtomicBoolean reachable = new AtomicBoolean(true);
+        Thread waiter = startWaiter(tracker, reachable);
+
+        tracker.untrack(SERVICE_ID);
+        waiter.join(5000);
+        assertFalse(waiter.isAlive());
+        assertFalse(reachable.get());
+    }
+
+    /**
+     * Starts a thread waiting for the service to become reachable and returns once it waits
+     */
+    private static Thread startWaiter(final HiddenServiceDescriptorTracker tracker, final AtomicBoolean reachable)
+            throws InterruptedException {
+        Thread waiter = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    reachable.set(tracker.awaitReachable(SERVICE_ID, 5, TimeUnit.SECONDS));
+                } catch (InterruptedException e) {
+                    // test failed
+                }
+            }
+        });
+        waiter.start();
+        long deadline = System.currentTimeMillis() + 5000;
+        while (waiter.getState() != Thread.State.TIMED_WAITING && System.currentTimeMillis() < deadline) {
+            Thread.sleep(1);
+        }
+        return waiter;
+    }
+
+    @Test
+    public void ignoresOtherEvents() {
+        HiddenServiceDescriptorTracker tracker = new HiddenServiceDescriptorTracker();
+        tracker.unrecognized("STATUS_CLIENT", "NOTICE BOOTSTRAP PROGRESS=100");
+        assertNull(tracker.getUpload(SERVICE_ID));
+    }
+}
@@ -0,0 +1,113 @@
+/*
+Copyright (c) Microsoft Open Technologies, Inc.
+All Rights Reserved
+Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except in compliance with the
+License. You may obtain a copy of the License at http://www.apache.org/licenses/LICENSE-2.0
+
+THIS CODE IS PROVIDED ON AN *AS IS* BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, EITHER EXPRESS OR IMPLIED,
+INCLUDING WITHOUT LIMITATION ANY IMPLIED WARRANTIES OR CONDITIONS OF TITLE, FITNESS FOR A PARTICULAR PURPOSE,
+MERCHANTABLITY OR NON-INFRINGEMENT.
+
+See the Apache 2 License for the specific language governing permissions and limitations under the License.
+*/
+
+
+package com.msopentech.thali.toronionproxy;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.*;
+
+public class HiddenServiceKeyPoolTest {
+    private static final byte[] SECRET = new byte[16];
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private final AtomicInteger generated = new AtomicInteger();
+    private volatile Thread lastGeneratorThread;
+
+    private final HiddenServiceKeyPool.KeyGenerator generator = new HiddenServiceKeyPool.KeyGenerator() {
+        @Override
+        public String generate() throws IOException {
+            lastGeneratorThread = Thread.currentThread();
+            return "ED25519-V3:key" + generated.incrementAndGet();
+        }
+    };
+
+    @Test
+    public void emptyPoolGeneratesInCallingThread() throws Exception {
+        HiddenServiceKeyPool pool = new HiddenServiceKeyPool(generator, folder.newFolder("pool"), SECRET, 0, 1);
+        pool.stop();
+        assertEquals("ED25519-V3:key1", pool.take());
+        assertSame(Thread.currentThread(), lastGeneratorThread);
+    }
+
+    @Test
+    public void refillsBelowLowWatermark() throws Exception {
+        File dir = folder.newFolder("pool");
+        HiddenServiceKeyPool pool = new HiddenServiceKeyPool(generator, dir, SECRET, 2, 3);
+        pool.start();
+        awaitSize(pool, 3);
+
+        Set<String> taken = new HashSet<>();
+        taken.add(pool.take());
+        assertEquals(2, pool.size());
+        taken.add(pool.take());
+        awaitSize(pool, 3);
+        assertEquals(5, generated.get());
+        assertEquals(2, taken.size());
+        for (String key : taken) {
+            assertTrue(key, key.startsWith("ED25519-V3:key"));
+        }
+        pool.stop();
+
+        HiddenServiceKeyPool reloaded = new HiddenServiceKeyPool(generator, dir, SECRET, 0, 3);
+        reloaded.start();
+        assertEquals(3, reloaded.size());
+        reloaded.stop();
+    }
+
+    @Test
+    public void discardsTamperedKeys() throws Exception {
+        File dir = folder.newFolder("pool");
+        HiddenServiceKeyPool pool = new HiddenServiceKeyPool(generator, dir, SECRET, 1, 1);
+        pool.start();
+        awaitSize(pool, 1);
+        pool.stop();
+
+        File[] files = dir.listFiles();
+        assertEquals(1, files.length);
+        byte[] content = FileUtilities.read(files[0]);
+        // Flip a bit of the ciphertext, after the 16 byte IV
+        content[16] ^= 1;
+        assertTrue(files[0].setWritable(true));
+        OutputStream out = new FileOutputStream(files[0]);
+        out.write(content);
+        out.close();
+
+        HiddenServiceKeyPool reloaded = new HiddenServiceKeyPool(generator, dir, SECRET, 0, 1);
+        reloaded.start();
+        reloaded.stop();
+        assertEquals("ED25519-V3:key2", reloaded.take());
+        assertEquals(0, dir.listFiles().length);
+    }
+
+    private static void awaitSize(HiddenServiceKeyPool pool, int size) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + 5000;
+        while (pool.size() < size && System.currentTimeMillis() < deadline) {
+            Thread.sleep(10);
+        }
+        assertEquals(size, pool.size());
+    }
+}
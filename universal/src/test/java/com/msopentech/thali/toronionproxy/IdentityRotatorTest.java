@@ -0,0 +1,74 @@
+/*
+Copyright (c) Microsoft Open Technologies, Inc.
+All Rights Reserved
+Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except in compliance with the
+License. You may obtain a copy of the License at http://www.apache.org/licenses/LICENSE-2.0
+
+THIS CODE IS PROVIDED ON AN *AS IS* BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, EITHER EXPRESS OR IMPLIED,
+INCLUDING WITHOUT LIMITATION ANY IMPLIED WARRANTIES OR CONDITIONS OF TITLE, FITNESS FOR A PARTICULAR PURPOSE,
+MERCHANTABLITY OR NON-INFRINGEMENT.
+
+See the Apache 2 License for the specific language governing permissions and limitations under the License.
+*/
+
+
+package com.msopentech.thali.toronionproxy;
+
+import org.junit.Test;
+
+import java.io.IOException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.*;
+
+public class IdentityRotatorTest {
+
+    @Test
+    public void batchesRequestsAndCompletesOnNewCircuit() throws Exception {
+        final AtomicInteger signals = new AtomicInteger();
+        ScheduledExecutorService scheduler = Executors.newSingleThreadScheduledExecutor();
+        try {
+            IdentityRotator rotator = new IdentityRotator(new IdentityRotator.Signaller() {
+                @Override
+                public void newnym() throws IOException {
+                    signals.incrementAndGet();
+                }
+            }, scheduler);
+            // Holds the scheduler so both requests arrive before the signal is sent
+            scheduler.submit(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        Thread.sleep(100);
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                    }
+                }
+            });
+            IdentityRotator.Rotation first = rotator.requestRotation();
+            IdentityRotator.Rotation second = rotator.requestRotation();
+            assertSame(first, second);
+            assertEquals(2, first.getRequestCount());
+
+            scheduler.submit(new Runnable() {
+                @Override
+                public void run() {
+                }
+            }).get();
+            assertEquals(1, signals.get());
+
+            rotator.onCircuitEvent(new CircuitEvent(CircuitEvent.BUILT, "1", "$A,$B,$C"));
+            assertFalse(first.isComplete());
+            rotator.onCircuitEvent(new CircuitEvent(CircuitEvent.LAUNCHED, "2", ""));
+            rotator.onCircuitEvent(new CircuitEvent(CircuitEvent.BUILT, "2", "$A,$B,$C"));
+            assertTrue(first.await(1, TimeUnit.SECONDS));
+            assertEquals(1, rotator.getRotationCount());
+            assertTrue(rotator.getDelayUntilNextSignal() > 0);
+        } finally {
+            scheduler.shutdownNow();
+        }
+    }
+}
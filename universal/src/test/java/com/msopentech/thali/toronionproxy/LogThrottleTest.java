@@ -0,0 +1,48 @@
+/*
+Copyright (c) Microsoft Open Technologies, Inc.
+All Rights Reserved
+Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except in compliance with the
+License. You may obtain a copy of the License at http://www.apache.org/licenses/LICENSE-2.0
+
+THIS CODE IS PROVIDED ON AN *AS IS* BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, EITHER EXPRESS OR IMPLIED,
+INCLUDING WITHOUT LIMITATION ANY IMPLIED WARRANTIES OR CONDITIONS OF TITLE, FITNESS FOR A PARTICULAR PURPOSE,
+MERCHANTABLITY OR NON-INFRINGEMENT.
+
+See the Apache 2 License for the specific language governing permissions and limitations under the License.
+*/
+
+package com.msopentech.thali.toronionproxy;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+public class LogThrottleTest {
+
+    @Test
+    public void coalescesRepeats() {
+        LogThrottle throttle = new LogThrottle(100);
+        assertEquals("a", throttle.admit("a", 1000));
+        assertNull(throttle.admit("a", 1001));
+        assertNull(throttle.admit("a", 1002));
+        assertEquals("Last message repeated 2 times\nb", throttle.admit("b", 1003));
+        assertEquals("a", throttle.admit("a", 1004));
+    }
+
+    @Test
+    public void repeatsAfterWindowAreBroadcast() {
+        LogThrottle throttle = new LogThrottle(100);
+        assertEquals("a", throttle.admit("a", 1000));
+        assertEquals("a", throttle.admit("a", 1000 + LogThrottle.COALESCE_MILLIS));
+    }
+
+    @Test
+    public void rateLimits() {
+        LogThrottle throttle = new LogThrottle(2);
+        assertEquals("1", throttle.admit("1", 1000));
+        assertEquals("2", throttle.admit("2", 1000));
+        assertNull(throttle.admit("3", 1000));
+        assertNull(throttle.admit("4", 1000));
+        assertEquals("2 messages suppressed\n5", throttle.admit("5", 1500));
+    }
+}
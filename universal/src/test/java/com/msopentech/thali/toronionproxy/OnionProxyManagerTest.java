@@ -0,0 +1,318 @@
+/*
+Copyright (c) Microsoft Open Technologies, Inc.
+All Rights Reserved
+Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except in compliance with the
+License. You may obtain a copy of the License at http://www.apache.org/licenses/LICENSE-2.0
+
+THIS CODE IS PROVIDED ON AN *AS IS* BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, EITHER EXPRESS OR IMPLIED,
+INCLUDING WITHOUT LIMITATION ANY IMPLIED WARRANTIES OR CONDITIONS OF TITLE, FITNESS FOR A PARTICULAR PURPOSE,
+MERCHANTABLITY OR NON-INFRINGEMENT.
+
+See the Apache 2 License for the specific language governing permissions and limitations under the License.
+*/
+
+package com.msopentech.thali.toronionproxy;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.Inet6Address;
+import java.net.InetSocketAddress;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.*;
+
+public class OnionProxyManagerTest {
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private FakeControlPort controlPort;
+
+    @Before
+    public void setUp() throws Exception {
+        controlPort = new FakeControlPort();
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        controlPort.close();
+    }
+
+    @Test
+    public void killFlushesDeferredSaveConf() throws Exception {
+        OnionProxyManager manager = controlPort.createManager(folder.newFolder("tor"), new DefaultSettings() {
+            @Override
+            public int getSaveConfDelay() {
+                return 60000;
+            }
+        });
+        manager.start();
+
+        File serviceDir = folder.newFolder("service");
+        File hostname = new File(serviceDir, "hostname");
+        OutputStream out = new FileOutputStream(hostname);
+        out.write("abcdefghijklmnop.onion\n".getBytes("US-ASCII"));
+        out.close();
+        manager.publishHiddenServices(Collections.singletonList(
+                new HiddenServiceConfig.Builder(serviceDir).port(80, 8080).build()));
+        assertFalse(controlPort.getCommands().contains("SAVECONF"));
+
+        manager.killTorProcess();
+        assertTrue(controlPort.awaitCommand("SIGNAL HALT", 5000));
+        List<String> commands = controlPort.getCommands();
+        int saveConf = commands.indexOf("SAVECONF");
+        assertTrue("SAVECONF not flushed: " + commands, saveConf >= 0);
+        assertTrue(saveConf < commands.indexOf("SIGNAL HALT"));
+    }
+
+    @Test
+    public void defaultSettingsSubscribeOnlyToEventsInUse() throws Exception {
+        OnionProxyManager manager = controlPort.createManager(folder.newFolder("tor"), null);
+        manager.start();
+        assertEquals(Collections.singletonList("SETEVENTS HS_DESC"), setEventsCommands());
+
+        manager.getBandwidthMeter();
+        assertEquals(Arrays.asList("SETEVENTS HS_DESC", "SETEVENTS HS_DESC BW STREAM_BW CIRC_BW"),
+                setEventsCommands());
+        manager.stop();
+    }
+
+    private List<String> setEventsCommands() {
+        List<String> setEvents = new ArrayList<>();
+        for (String command : controlPort.getCommands()) {
+            if (command.startsWith("SETEVENTS")) {
+                setEvents.add(command);
+            }
+        }
+        return setEvents;
+    }
+
+    @Test
+    public void restartReloadsConfigWithoutStoppingTor() throws Exception {
+        OnionProxyManager manager = controlPort.createManager(folder.newFolder("tor"), null);
+        manager.start();
+        // Connecting to an existing tor already reloads once
+        int reloads = Collections.frequency(controlPort.getCommands(), "SIGNAL HUP");
+        manager.restartTorProcess();
+        assertEquals(reloads + 1, Collections.frequency(controlPort.getCommands(), "SIGNAL HUP"));
+        assertTrue(manager.hasControlConnection());
+        assertFalse(controlPort.getCommands().contains("SIGNAL HALT"));
+        manager.stop();
+    }
+
+    @Test
+    public void exitFlagsComeFromConsensus() throws Exception {
+        controlPort.setInfo("ns/id/EEEE", "r exit AAAA BBBB 2020-01-01 00:00:00 1.2.3.4 9001 0\n"
+                + "s Exit Fast Running Stable Valid\nw Bandwidth=100\n");
+        controlPort.setInfo("ns/id/HSDR", "r hsdir AAAA BBBB 2020-01-01 00:00:00 1.2.3.5 9001 0\n"
+                + "s Fast HSDir Running Stable Valid\nw Bandwidth=100\n");
+        controlPort.setInfo("ns/id/BADX", "r badexit AAAA BBBB 2020-01-01 00:00:00 1.2.3.6 9001 0\n"
+                + "s BadExit Exit Fast Running Valid\nw Bandwidth=100\n");
+        OnionProxyManager manager = controlPort.createManager(folder.newFolder("tor"), null);
+        manager.start();
+        RelayScoreboard scoreboard = manager.getRelayScoreboard();
+        int id = 0;
+        for (String lastHop : Arrays.asList("$EEEE~e", "$HSDR~hs", "$BADX~bad")) {
+            scoreboard.onCircuitEvent(new CircuitEvent("LAUNCHED", String.valueOf(++id), ""));
+            scoreboard.onCircuitEvent(new CircuitEvent("BUILT", String.valueOf(id), "$GGGG~g," + lastHop));
+        }
+
+        manager.checkExitFlags();
+        assertTrue(controlPort.getCommands().contains("GETINFO ns/id/HSDR"));
+        assertTrue(scoreboard.getScore("EEEE").isExit());
+        assertFalse(scoreboard.getScore("HSDR").isExit());
+        assertFalse(scoreboard.getScore("BADX").isExit());
+        assertFalse(controlPort.getCommands().contains("GETINFO ns/id/GGGG"));
+        assertTrue(scoreboard.getUnverifiedLastHops().isEmpty());
+        manager.stop();
+    }
+
+    @Test
+    public void drainWaitsForStreamsOpenAtStart() throws Exception {
+        // Stream 2 finishes after the drain listener is registered but before stream-status is read
+        controlPort.setReply("GETINFO stream-status", "650 STREAM 2 CLOSED 5 b.example:80",
+                "250+stream-status=", "1 SUCCEEDED 5 a.example:80", "2 SUCCEEDED 5 b.example:80",
+                "3 SUCCEEDED 5 c.example:80", ".", "250 OK");
+        final OnionProxyManager manager = controlPort.createManager(folder.newFolder("tor"), null);
+        manager.start();
+        final BlockingQueue<Integer> progress = new LinkedBlockingQueue<>();
+        ExecutorService executor = Executors.newSingleThreadExecutor();
+        try {
+            Future<Integer> remaining = executor.submit(new Callable<Integer>() {
+                @Override
+                public Integer call() throws Exception {
+                    return manager.drainAndStop(500, TimeUnit.MILLISECONDS, new DrainListener() {
+                        @Override
+                        public void onDrainProgress(int remaining, long elapsedMillis) {
+                            progress.add(remaining);
+                        }
+                    });
+                }
+            });
+            assertEquals(Integer.valueOf(2), progress.poll(5, TimeUnit.SECONDS));
+            // Stream 1 finishes during the drain; stream 3 is still open at the deadline
+            controlPort.sendEvent("STREAM 1 CLOSED 5 a.example:80");
+            assertEquals(Integer.valueOf(1), progress.poll(5, TimeUnit.SECONDS));
+            assertEquals(Integer.valueOf(1), remaining.get(5, TimeUnit.SECONDS));
+        } finally {
+            executor.shutdownNow();
+        }
+
+        assertTrue(controlPort.awaitCommand("SIGNAL HALT", 5000));
+        List<String> commands = controlPort.getCommands();
+        int subscribe = commands.indexOf("SETEVENTS HS_DESC STREAM");
+        assertTrue(commands.toString(), subscribe >= 0);
+        assertTrue(subscribe < commands.indexOf("SETCONF SocksPort=\"0\""));
+        assertFalse(manager.hasControlConnection());
+    }
+
+    @Test
+    public void drainFailsWhenStreamEventsCantBeSubscribed() throws Exception {
+        OnionProxyManager manager = controlPort.createManager(folder.newFolder("tor"), null);
+        manager.start();
+        controlPort.setReply("SETEVENTS", "552 Unrecognized event");
+        try {
+            manager.drainAndStop(500, TimeUnit.MILLISECONDS, null);
+            fail();
+        } catch (IOException e) {
+            // expected
+        }
+        assertFalse(controlPort.getCommands().contains("SETCONF SocksPort=\"0\""));
+        assertTrue(manager.hasControlConnection());
+        manager.stop();
+    }
+
+    @Test
+    public void exitNodesCloseOnlyDisallowedGeneralCircuits() throws Exception {
+        String exit = "0123456789ABCDEF0123456789ABCDEF01234567";
+        String hops = "$GGGG~g,$MMMM~m,";
+        controlPort.setInfo("circuit-status", "1 BUILT " + hops + "$" + exit + "~e PURPOSE=GENERAL\n"
+                + "2 BUILT " + hops + "$XXXX~x BUILD_FLAGS=NEED_CAPACITY PURPOSE=GENERAL\n"
+                + "3 BUILT " + hops + "$YYYY~exitnick PURPOSE=GENERAL\n"
+                + "4 BUILT " + hops + "$ZZZZ~z BUILD_FLAGS=IS_INTERNAL,NEED_CAPACITY PURPOSE=GENERAL\n"
+                + "5 BUILT " + hops + "$HSDR~hs PURPOSE=HS_CLIENT_REND\n"
+                + "6 EXTENDED $GGGG~g,$WWWW~w PURPOSE=GENERAL\n");
+        OnionProxyManager manager = controlPort.createManager(folder.newFolder("tor"), null);
+        manager.start();
+        int before = controlPort.getCommands().size();
+
+        assertEquals(1, manager.applyExitNodes("$" + exit + ",exitnick"));
+        List<String> commands = controlPort.getCommands();
+        commands = commands.subList(before, commands.size());
+        int setConf = 0;
+        for (String command : commands) {
+            if (command.startsWith("SETCONF")) setConf++;
+        }
+        assertEquals(1, setConf);
+        assertTrue(commands.contains("SETCONF ExitNodes=\"$" + exit + ",exitnick\" StrictNodes=\"1\""));
+        assertTrue(commands.contains("CLOSECIRCUIT 2"));
+        for (String circuitId : Arrays.asList("1", "3", "4", "5", "6")) {
+            assertFalse(commands.contains("CLOSECIRCUIT " + circuitId));
+        }
+        manager.stop();
+    }
+
+    @Test
+    public void publishesEphemeralServiceFromAddOnionReply() throws Exception {
+        String serviceId = "abcdefghijklmnopqrstuvwxyz234567abcdefghijklmnopqrstuvwx";
+        controlPort.setReply("ADD_ONION", "250-ServiceID=" + serviceId, "250-PrivateKey=ED25519-V3:a2V5==",
+                "250 OK");
+        OnionProxyManager manager = controlPort.createManager(folder.newFolder("tor"), null);
+        manager.start();
+
+        EphemeralHiddenService service = manager.publishEphemeralHiddenService(80, 9343);
+        assertTrue(controlPort.getCommands().contains("ADD_ONION NEW:ED25519-V3 Port=80,127.0.0.1:9343"));
+        assertEquals(serviceId, service.getServiceId());
+        assertEquals(serviceId + ".onion", service.getOnionAddress());
+        assertEquals("ED25519-V3:a2V5==", service.getPrivateKey());
+        assertNotNull(manager.getHiddenServiceDescriptorTracker().getUpload(serviceId));
+
+        assertTrue(manager.removeEphemeralHiddenService(service.getOnionAddress()));
+        assertTrue(controlPort.getCommands().contains("DEL_ONION " + serviceId));
+        assertNull(manager.getHiddenServiceDescriptorTracker().getUpload(serviceId));
+        manager.stop();
+    }
+
+    @Test
+    public void republishesEphemeralServiceWithStoredKey() throws Exception {
+        String serviceId = "abcdefghijklmnopqrstuvwxyz234567abcdefghijklmnopqrstuvwx";
+        controlPort.setReply("ADD_ONION", "250-ServiceID=" + serviceId, "250 OK");
+        OnionProxyManager manager = controlPort.createManager(folder.newFolder("tor"), null);
+        manager.start();
+
+        EphemeralHiddenService service = manager.publishEphemeralHiddenService(80, 9343, "ED25519-V3:a2V5==");
+        assertTrue(controlPort.getCommands().contains("ADD_ONION ED25519-V3:a2V5== Port=80,127.0.0.1:9343"));
+        assertEquals(serviceId, service.getServiceId());
+        assertEquals("ED25519-V3:a2V5==", service.getPrivateKey());
+        manager.stop();
+    }
+
+    @Test
+    public void ephemeralServiceErrors() throws Exception {
+        controlPort.setReply("ADD_ONION", "250 OK");
+        controlPort.setReply("DEL_ONION", "552 Unknown Onion Service id");
+        OnionProxyManager manager = controlPort.createManager(folder.newFolder("tor"), null);
+        try {
+            manager.publishEphemeralHiddenService(80, 9343);
+            fail();
+        } catch (IllegalStateException e) {
+            // not started
+        }
+        manager.start();
+        try {
+            manager.publishEphemeralHiddenService(80, 9343);
+            fail();
+        } catch (IOException e) {
+            // no ServiceID in the reply
+        }
+        assertFalse(manager.removeEphemeralHiddenService("unknown"));
+        manager.stop();
+    }
+
+    @Test
+    public void matchesSocksEndpointsByPort() {
+        Map<String, String> ports = new LinkedHashMap<>();
+        ports.put("default", "9050");
+        ports.put("auto1", "auto");
+        ports.put("fixed", "127.0.0.1:9151");
+        ports.put("socket", "unix:/tmp/socks");
+        ports.put("auto2", "auto");
+        // tor reports the fixed listener first and the second auto listener on IPv6
+        Map<String, InetSocketAddress> endpoints = OnionProxyManager.matchSocksEndpoints(ports,
+                "\"127.0.0.1:9151\" \"127.0.0.1:9050\" \"127.0.0.1:41000\" \"unix:/tmp/socks\" \"[::1]:41001\"");
+        assertEquals(Arrays.asList("default", "auto1", "fixed", "auto2"), new ArrayList<>(endpoints.keySet()));
+        assertEquals(9050, endpoints.get("default").getPort());
+        assertEquals(41000, endpoints.get("auto1").getPort());
+        assertEquals(9151, endpoints.get("fixed").getPort());
+        assertEquals(41001, endpoints.get("auto2").getPort());
+        assertTrue(endpoints.get("auto2").getAddress() instanceof Inet6Address);
+    }
+
+    @Test
+    public void takenSocksPortFallsBackToAuto() {
+        Map<String, String> ports = new LinkedHashMap<>();
+        ports.put("default", "9050");
+        Map<String, InetSocketAddress> endpoints = OnionProxyManager.matchSocksEndpoints(ports,
+                "\"127.0.0.1:43210\"");
+        assertEquals(43210, endpoints.get("default").getPort());
+    }
+}
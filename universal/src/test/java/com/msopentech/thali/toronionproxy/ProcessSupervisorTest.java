@@ -0,0 +1,127 @@
+/*
+Copyright (c) Microsoft Open Technologies, Inc.
+All Rights Reserved
+Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except in compliance with the
+License. You may obtain a copy of the License at http://www.apache.org/licenses/LICENSE-2.0
+
+THIS CODE IS PROVIDED ON AN *AS IS* BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, EITHER EXPRESS OR IMPLIED,
+INCLUDING WITHOUT LIMITATION ANY IMPLIED WARRANTIES OR CONDITIONS OF TITLE, FITNESS FOR A PARTICULAR PURPOSE,
+MERCHANTABLITY OR NON-INFRINGEMENT.
+
+See the Apache 2 License for the specific language governing permissions and limitations under the License.
+*/
+
+package com.msopentech.thali.toronionproxy;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.IOException;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.*;
+
+public class ProcessSupervisorTest {
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private final Semaphore recovered = new Semaphore(0);
+    private final AtomicInteger failuresLeft = new AtomicInteger();
+
+    private ProcessSupervisor createSupervisor() throws IOException {
+        OnionProxyManager manager = new OnionProxyManager(new TestOnionProxyContext(
+                TorConfig.createDefault(folder.newFolder()), null)) {
+            @Override
+            void recover() throws IOException {
+                try {
+                    if (failuresLeft.getAndDecrement() > 0) {
+                        throw new IOException("tor did not start");
+                    }
+                } finally {
+                    recovered.release();
+                }
+            }
+        };
+        ProcessSupervisor supervisor = manager.getProcessSupervisor();
+        supervisor.setBackoff(10, 40);
+        return supervisor;
+    }
+
+    /**
+     * @return a control reader thread that has already ended, as when tor closes the control socket
+     */
+    private static Thread closedControlReader() throws InterruptedException {
+        Thread reader = new Thread();
+        reader.start();
+        reader.join();
+        return reader;
+    }
+
+    @Test
+    public void backoffDoublesUpToMax() {
+        assertEquals(1000, ProcessSupervisor.backoffMillis(0, 1000, 300000));
+        assertEquals(8000, ProcessSupervisor.backoffMillis(3, 1000, 300000));
+        assertEquals(256000, ProcessSupervisor.backoffMillis(8, 1000, 300000));
+        assertEquals(300000, ProcessSupervisor.backoffMillis(9, 1000, 300000));
+        assertEquals(300000, ProcessSupervisor.backoffMillis(1000, 1000, 300000));
+        assertEquals(Long.MAX_VALUE, ProcessSupervisor.backoffMillis(63, Long.MAX_VALUE / 2, Long.MAX_VALUE));
+    }
+
+    @Test
+    public void restartsWhenControlConnectionCloses() throws Exception {
+        ProcessSupervisor supervisor = createSupervisor();
+        supervisor.setEnabled(true);
+        supervisor.watch(null, closedControlReader());
+        assertTrue(recovered.tryAcquire(5, TimeUnit.SECONDS));
+        assertEquals(ProcessSupervisor.CAUSE_CONTROL_EOF, supervisor.getLastCause());
+        awaitRestartCount(supervisor, 1);
+    }
+
+    @Test
+    public void retriesFailedRestarts() throws Exception {
+        ProcessSupervisor supervisor = createSupervisor();
+        supervisor.setEnabled(true);
+        failuresLeft.set(2);
+        supervisor.watch(null, closedControlReader());
+        assertTrue(recovered.tryAcquire(3, 5, TimeUnit.SECONDS));
+        awaitRestartCount(supervisor, 1);
+        assertEquals(2, supervisor.getFailedRestartCount());
+    }
+
+    @Test
+    public void ignoresStopsOnPurpose() throws Exception {
+        ProcessSupervisor supervisor = createSupervisor();
+        supervisor.setEnabled(true);
+        final Semaphore stopped = new Semaphore(0);
+        Thread reader = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                stopped.acquireUninterruptibly();
+            }
+        });
+        reader.start();
+        supervisor.watch(null, reader);
+        supervisor.unwatch();
+        stopped.release();
+        assertFalse(recovered.tryAcquire(200, TimeUnit.MILLISECONDS));
+        assertNull(supervisor.getLastCause());
+    }
+
+    @Test
+    public void doesNothingUntilEnabled() throws Exception {
+        ProcessSupervisor supervisor = createSupervisor();
+        supervisor.watch(null, closedControlReader());
+        assertFalse(recovered.tryAcquire(200, TimeUnit.MILLISECONDS));
+    }
+
+    private static void awaitRestartCount(ProcessSupervisor supervisor, long count) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + 5000;
+        while (supervisor.getRestartCount() < count && System.currentTimeMillis() < deadline) {
+            Thread.sleep(10);
+        }
+        assertEquals(count, supervisor.getRestartCount());
+    }
+}
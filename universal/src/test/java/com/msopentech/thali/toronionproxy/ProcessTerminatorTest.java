@@ -0,0 +1,68 @@
+/*
+Copyright (c) Microsoft Open Technologies, Inc.
+All Rights Reserved
+Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except in compliance with the
+License. You may obtain a copy of the License at http://www.apache.org/licenses/LICENSE-2.0
+
+THIS CODE IS PROVIDED ON AN *AS IS* BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, EITHER EXPRESS OR IMPLIED,
+INCLUDING WITHOUT LIMITATION ANY IMPLIED WARRANTIES OR CONDITIONS OF TITLE, FITNESS FOR A PARTICULAR PURPOSE,
+MERCHANTABLITY OR NON-INFRINGEMENT.
+
+See the Apache 2 License for the specific language governing permissions and limitations under the License.
+*/
+
+package com.msopentech.thali.toronionproxy;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.InputStreamReader;
+
+import static org.junit.Assert.*;
+import static org.junit.Assume.assumeTrue;
+
+public class ProcessTerminatorTest {
+    private Process process;
+
+    @Before
+    public void setUp() {
+        assumeTrue(new File("/bin/sh").canExecute());
+    }
+
+    @After
+    public void tearDown() {
+        if (process != null) {
+            process.destroy();
+        }
+    }
+
+    /**
+     * Starts a shell that prints "ready" once its trap is set, then sleeps as the same process
+     */
+    private Process start(String trap) throws Exception {
+        process = new ProcessBuilder("/bin/sh", "-c", trap + "; echo ready; exec sleep 30").start();
+        BufferedReader out = new BufferedReader(new InputStreamReader(process.getInputStream(), "US-ASCII"));
+        assertEquals("ready", out.readLine());
+        return process;
+    }
+
+    @Test
+    public void killsChildThatIgnoresSigterm() throws Exception {
+        Process child = start("trap '' TERM");
+        long started = System.currentTimeMillis();
+        assertTrue(ProcessTerminator.terminate(child, -1, 100, 5000));
+        assertTrue(System.currentTimeMillis() - started < 5000);
+        // Exit code of a process killed by SIGKILL rather than SIGTERM
+        assertEquals(128 + 9, child.exitValue());
+    }
+
+    @Test
+    public void terminatesChildOnSigterm() throws Exception {
+        Process child = start("trap - TERM");
+        assertTrue(ProcessTerminator.terminate(child, -1, 100, 5000));
+        assertEquals(128 + 15, child.exitValue());
+    }
+}
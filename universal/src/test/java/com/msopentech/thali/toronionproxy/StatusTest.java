@@ -0,0 +1,138 @@
+/*
+Copyright (c) Microsoft Open Technologies, Inc.
+All Rights Reserved
+Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except in compliance with the
+License. You may obtain a copy of the License at http://www.apache.org/licenses/LICENSE-2.0
+
+THIS CODE IS PROVIDED ON AN *AS IS* BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, EITHER EXPRESS OR IMPLIED,
+INCLUDING WITHOUT LIMITATION ANY IMPLIED WARRANTIES OR CONDITIONS OF TITLE, FITNESS FOR A PARTICULAR PURPOSE,
+MERCHANTABLITY OR NON-INFRINGEMENT.
+
+See the Apache 2 License for the specific language governing permissions and limitations under the License.
+*/
+
+package com.msopentech.thali.toronionproxy;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.*;
+
+public class StatusTest {
+    private final AtomicInteger broadcasts = new AtomicInteger();
+    private final List<String> transitions = new ArrayList<>();
+    private Status status;
+
+    @Before
+    public void setUp() {
+        status = new Status(new BaseEventBroadcaster(new DefaultSettings()) {
+            @Override
+            public void broadcastBandwidth(long upload, long download, long written, long read) {
+            }
+
+            @Override
+            public void broadcastLogMessage(String logMessage) {
+            }
+
+            @Override
+            public void broadcastStatus() {
+                broadcasts.incrementAndGet();
+            }
+        });
+        status.addListener(new Status.Listener() {
+            @Override
+            public void onStatusChanged(Status.State from, Status.State to, long durationMillis) {
+                assertTrue(durationMillis >= 0);
+                synchronized (transitions) {
+                    transitions.add(from + "->" + to);
+                }
+            }
+        });
+    }
+
+    @Test
+    public void transitionsNotifyListenersAndBroadcast() {
+        assertTrue(status.isOff());
+        assertEquals(-1, status.getLastDuration(Status.State.OFF));
+        status.starting();
+        status.on();
+        assertTrue(status.isOn());
+        assertEquals("ON", status.getStatus());
+        assertEquals(Arrays.asList("OFF->STARTING", "STARTING->ON"), transitions);
+        assertEquals(2, broadcasts.get());
+        assertTrue(status.getLastDuration(Status.State.STARTING) >= 0);
+        assertEquals(-1, status.getLastDuration(Status.State.ON));
+    }
+
+    @Test
+    public void repeatedStateDoesNotBroadcast() {
+        status.starting();
+        long since = status.getSince();
+        status.starting();
+        assertTrue(status.compareAndSet(Status.State.STARTING, Status.State.STARTING));
+        assertEquals(Arrays.asList("OFF->STARTING"), transitions);
+        assertEquals(1, broadcasts.get());
+        assertEquals(since, status.getSince());
+    }
+
+    @Test
+    public void compareAndSetOnlyFromExpectedState() {
+        assertFalse(status.compareAndSet(Status.State.ON, Status.State.STOPPING));
+        assertTrue(status.isOff());
+        assertEquals(0, broadcasts.get());
+
+        assertTrue(status.compareAndSet(Status.State.OFF, Status.State.STARTING));
+        assertTrue(status.isStarting());
+        assertEquals(Arrays.asList("OFF->STARTING"), transitions);
+    }
+
+    @Test
+    public void concurrentCompareAndSetHasOneWinner() throws Exception {
+        final CountDownLatch start = new CountDownLatch(1);
+        final AtomicInteger winners = new AtomicInteger();
+        List<Thread> threads = new ArrayList<>();
+        for (int i = 0; i < 8; i++) {
+            Thread thread = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        start.await();
+                    } catch (InterruptedException e) {
+                        return;
+                    }
+                    if (status.compareAndSet(Status.State.OFF, Status.State.STARTING)) {
+                        winners.incrementAndGet();
+                    }
+                }
+            });
+            thread.start();
+            threads.add(thread);
+        }
+        start.countDown();
+        for (Thread thread : threads) {
+            thread.join(5000);
+        }
+        assertEquals(1, winners.get());
+        assertEquals(1, broadcasts.get());
+        assertEquals(Arrays.asList("OFF->STARTING"), transitions);
+    }
+
+    @Test
+    public void failingListenerDoesNotStopTransition() {
+        status.addListener(new Status.Listener() {
+            @Override
+            public void onStatusChanged(Status.State from, Status.State to, long durationMillis) {
+                throw new IllegalStateException("listener failed");
+            }
+        });
+        status.stopping();
+        assertTrue(status.isStopping());
+        assertEquals(1, broadcasts.get());
+    }
+}
@@ -0,0 +1,143 @@
+/*
+Copyright (c) Microsoft Open Technologies, Inc.
+All Rights Reserved
+Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except in compliance with the
+License. You may obtain a copy of the License at http://www.apache.org/licenses/LICENSE-2.0
+
+THIS CODE IS PROVIDED ON AN *AS IS* BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, EITHER EXPRESS OR IMPLIED,
+INCLUDING WITHOUT LIMITATION ANY IMPLIED WARRANTIES OR CONDITIONS OF TITLE, FITNESS FOR A PARTICULAR PURPOSE,
+MERCHANTABLITY OR NON-INFRINGEMENT.
+
+See the Apache 2 License for the specific language governing permissions and limitations under the License.
+*/
+
+package com.msopentech.thali.toronionproxy;
+
+import org.junit.Test;
+
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.*;
+
+public class StreamIsolationTest {
+
+    @Test
+    public void tenantsKeepTheirCredentials() {
+        StreamIsolation isolation = new StreamIsolation("127.0.0.1", 9050, 4);
+        String a = isolation.getCredentials("a").getUsername();
+        assertEquals(a, isolation.getCredentials("a").getUsername());
+        assertNotEquals(a, isolation.getCredentials("b").getUsername());
+        isolation.rotate("a");
+        assertNotEquals(a, isolation.getCredentials("a").getUsername());
+    }
+
+    @Test
+    public void evictsLeastRecentlyUsed() {
+        StreamIsolation isolation = new StreamIsolation("127.0.0.1", 9050, 2);
+        String a = isolation.getCredentials("a").getUsername();
+        String b = isolation.getCredentials("b").getUsername();
+        isolation.getCredentials("a");
+        isolation.getCredentials("c");
+        assertEquals(2, isolation.getGroupCount());
+        assertEquals(1, isolation.getEvictionCount());
+        assertEquals(a, isolation.getCredentials("a").getUsername());
+        assertNotEquals(b, isolation.getCredentials("b").getUsername());
+    }
+
+    @Test
+    public void rotatingNewTenantEvicts() {
+        StreamIsolation isolation = new StreamIsolation("127.0.0.1", 9050, 2);
+        isolation.getCredentials("a");
+        isolation.getCredentials("b");
+        isolation.rotate("c");
+        isolation.rotate("d");
+        assertEquals(2, isolation.getGroupCount());
+        assertEquals(2, isolation.getEvictionCount());
+
+        isolation.rotate("c");
+        assertEquals(2, isolation.getGroupCount());
+        assertEquals(2, isolation.getEvictionCount());
+    }
+
+    @Test
+    public void countsCircuitsPerTenant() {
+        StreamIsolation isolation = new StreamIsolation("127.0.0.1", 9050, 4);
+        String a = isolation.getCredentials("a").getUsername();
+        String status = "1 BUILT $A~a,$B~b PURPOSE=GENERAL SOCKS_USERNAME=\"" + a + "\" SOCKS_PASSWORD=\"x\"\n"
+                + "2 BUILT $A~a,$C~c PURPOSE=GENERAL\n"
+                + "3 BUILT $D~d,$C~c PURPOSE=GENERAL SOCKS_USERNAME=\"" + a + "\"";
+        Map<String, Integer> counts = isolation.countCircuits(status);
+        assertEquals(1, counts.size());
+        assertEquals(Integer.valueOf(2), counts.get("a"));
+    }
+
+    @Test
+    public void connectSendsCachedAddress() throws Exception {
+        final DnsResolver[] resolver = new DnsResolver[1];
+        resolver[0] = new DnsResolver(new DnsResolver.Transport() {
+            @Override
+            public void resolve(String hostname) {
+                resolver[0].unrecognized(DnsResolver.EVENT_TYPE,
+                        hostname + " 192.0.2.1 \"2999-01-01 00:00:00\" EXPIRES=\"2999-01-01 00:00:00\"");
+            }
+        }, 60000, 60000, 16);
+        resolver[0].resolve("example.com", 5, TimeUnit.SECONDS);
+
+        final ServerSocket server = new ServerSocket(0, 1, InetAddress.getByName("127.0.0.1"));
+        ExecutorService executor = Executors.newSingleThreadExecutor();
+        try {
+            Future<String> requested = executor.submit(new Callable<String>() {
+                @Override
+                public String call() throws Exception {
+                    return acceptSocks5(server);
+                }
+            });
+            StreamIsolation isolation = new StreamIsolation("127.0.0.1", server.getLocalPort(), 4);
+            isolation.setDnsResolver(resolver[0]);
+            isolation.connect("a", "example.com", 80).close();
+            assertEquals("192.0.2.1", requested.get(5, TimeUnit.SECONDS));
+        } finally {
+            executor.shutdownNow();
+            server.close();
+        }
+    }
+
+    /**
+     * Answers one SOCKS5 username/password connect request with success
+     *
+     * @return the requested host
+     */
+    private static String acceptSocks5(ServerSocket server) throws IOException {
+        Socket socket = server.accept();
+        try {
+            DataInputStream in = new DataInputStream(socket.getInputStream());
+            OutputStream out = socket.getOutputStream();
+            in.readFully(new byte[3]);
+            out.write(new byte[] {0x05, 0x02});
+            in.readByte();
+            in.readFully(new byte[in.readUnsignedByte()]);
+            in.readFully(new byte[in.readUnsignedByte()]);
+            out.write(new byte[] {0x01, 0x00});
+            in.readFully(new byte[4]);
+            byte[] host = new byte[in.readUnsignedByte()];
+            in.readFully(host);
+            in.readShort();
+            out.write(new byte[] {0x05, 0x00, 0x00, 0x01, 0, 0, 0, 0, 0, 0});
+            out.flush();
+            return new String(host, "US-ASCII");
+        } finally {
+            socket.close();
+        }
+    }
+}
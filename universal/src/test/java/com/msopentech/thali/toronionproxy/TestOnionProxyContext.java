@@ -0,0 +1,56 @@
+/*
+Copyright (c) Microsoft Open Technologies, Inc.
+All Rights Reserved
+Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except in compliance with the
+License. You may obtain a copy of the License at http://www.apache.org/licenses/LICENSE-2.0
+
+THIS CODE IS PROVIDED ON AN *AS IS* BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, EITHER EXPRESS OR IMPLIED,
+INCLUDING WITHOUT LIMITATION ANY IMPLIED WARRANTIES OR CONDITIONS OF TITLE, FITNESS FOR A PARTICULAR PURPOSE,
+MERCHANTABLITY OR NON-INFRINGEMENT.
+
+See the Apache 2 License for the specific language governing permissions and limitations under the License.
+*/
+
+package com.msopentech.thali.toronionproxy;
+
+import java.io.File;
+import java.io.InputStream;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Context for tests that never install or run tor. A file counts as written once it is non-empty.
+ */
+class TestOnionProxyContext extends OnionProxyContext {
+
+    TestOnionProxyContext(TorConfig config, TorSettings settings) {
+        super(config, new TorInstaller() {
+            @Override
+            public void setup() {
+            }
+
+            @Override
+            public void updateTorConfigCustom(String content) {
+            }
+
+            @Override
+            public InputStream openBridgesStream() {
+                return null;
+            }
+        }, settings);
+    }
+
+    @Override
+    public String getProcessId() {
+        return "1";
+    }
+
+    @Override
+    public WriteObserver generateWriteObserver(final File file) {
+        return new WriteObserver() {
+            @Override
+            public boolean poll(long timeout, TimeUnit unit) {
+                return file.length() > 0;
+            }
+        };
+    }
+}
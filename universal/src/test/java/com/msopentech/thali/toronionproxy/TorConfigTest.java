@@ -16,8 +16,11 @@ package com.msopentech.thali.toronionproxy;
 import org.junit.Test;
 
 import java.io.File;
+import java.util.Arrays;
+import java.util.List;
 
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
 
 public class TorConfigTest {
 
@@ -64,4 +67,123 @@ public class TorConfigTest {
         TorConfig config = new TorConfig.Builder(sampleFile, sampleFile).build();
         assertEquals(new File(sampleFile, TorConfig.GEO_IP_NAME).getPath(), config.getGeoIpFile().getPath());
     }
+
+    @Test
+    public void socksListener() {
+        SocksListener listener = new SocksListener.Builder("isolated", "127.0.0.1:9150")
+                .isolate("IsolateDestAddr").ipv6Traffic(false).build();
+        TorConfigBuilder builder = new TorConfigBuilder(context(new DefaultSettings()));
+        assertEquals("SOCKSPort 127.0.0.1:9150 IsolateDestAddr KeepAliveIsolateSOCKSAuth\n",
+                builder.socksListener(listener).asString());
+    }
+
+    @Test
+    public void socksListenersFollowMainPort() {
+        final List<SocksListener> listeners = Arrays.asList(new SocksListener.Builder("a", "auto").build(),
+                new SocksListener.Builder("b", "9151").keepAliveIsolateSOCKSAuth(false).build());
+        TorConfigBuilder builder = new TorConfigBuilder(context(new DefaultSettings() {
+            @Override
+            public String getSocksPort() {
+                return "auto";
+            }
+
+            @Override
+            public List<SocksListener> getSocksListeners() {
+                return listeners;
+            }
+        }));
+        assertEquals("SOCKSPort auto KeepAliveIsolateSOCKSAuth IPv6Traffic PreferIPv6\n"
+                        + "SOCKSPort auto KeepAliveIsolateSOCKSAuth IPv6Traffic PreferIPv6\n"
+                        + "SOCKSPort 9151 IPv6Traffic PreferIPv6\n",
+                builder.socksPortFromSettings().asString());
+    }
+
+    @Test
+    public void socksTimeoutFromSettings() {
+        assertEquals("", new TorConfigBuilder(context(new DefaultSettings())).socksTimeoutFromSettings().asString());
+        TorConfigBuilder builder = new TorConfigBuilder(context(new DefaultSettings() {
+            @Override
+            public int getSocksTimeout() {
+                return 30;
+            }
+        }));
+        assertEquals("SocksTimeout 30\n", builder.socksTimeoutFromSettings().asString());
+    }
+
+    @Test
+    public void nodesMergeRelayRecommendations() {
+        OnionProxyContext context = context(new RecommendingSettings(false));
+        scoreCircuits(context.getRelayScoreboard());
+        assertEquals("ExitNodes $EEEE\nExcludeNodes {us},$BAD1\n",
+                new TorConfigBuilder(context).nodesFromSettings().asString());
+    }
+
+    @Test
+    public void nodesLeaveUnverifiedLastHopsOutOfExitNodes() {
+        OnionProxyContext context = context(new RecommendingSettings(false));
+        RelayScoreboard scoreboard = context.getRelayScoreboard();
+        for (int id = 1; id <= 4; id++) {
+            scoreboard.onCircuitEvent(new CircuitEvent("LAUNCHED", String.valueOf(id), ""));
+            scoreboard.onCircuitEvent(new CircuitEvent("BUILT", String.valueOf(id), "$GGGG~g,$MMMM~m,$HSDR~hs"));
+        }
+        assertEquals("ExcludeNodes {us}\n", new TorConfigBuilder(context).nodesFromSettings().asString());
+    }
+
+    @Test
+    public void nodesSkipRecommendationsUnderStrictNodes() {
+        OnionProxyContext context = context(new RecommendingSettings(true));
+        scoreCircuits(context.getRelayScoreboard());
+        assertEquals("ExcludeNodes {us}\n", new TorConfigBuilder(context).nodesFromSettings().asString());
+    }
+
+    /**
+     * Builds circuits through a good exit and through a non-exit last hop, as for an onion service circuit, and
+     * fails others at a bad middle and, more often still, at the guard. Scores decay between events, so each relay
+     * gets more than the minimum number of samples. Only the exit has a confirmed Exit flag.
+     */
+    private static void scoreCircuits(RelayScoreboard scoreboard) {
+        int id = 0;
+        for (int i = 0; i < 4; i++) {
+            scoreboard.onCircuitEvent(new CircuitEvent("LAUNCHED", String.valueOf(++id), ""));
+            scoreboard.onCircuitEvent(new CircuitEvent("BUILT", String.valueOf(id), "$GGGG~g,$MMMM~m,$EEEE~e"));
+            scoreboard.onCircuitEvent(new CircuitEvent("LAUNCHED", String.valueOf(++id), ""));
+            scoreboard.onCircuitEvent(new CircuitEvent("BUILT", String.valueOf(id), "$GGGG~g,$MMMM~m,$HSDR~hs"));
+            scoreboard.onCircuitEvent(new CircuitEvent("FAILED", String.valueOf(++id), "$GGGG~g,$BAD1~bad"));
+        }
+        for (int i = 0; i < 10; i++) {
+            scoreboard.onCircuitEvent(new CircuitEvent("FAILED", String.valueOf(++id), "$GGGG~g"));
+        }
+        assertTrue(scoreboard.getScore("GGGG").getFailureRate(System.currentTimeMillis()) > 0.5);
+        assertTrue(scoreboard.getUnverifiedLastHops().containsAll(Arrays.asList("EEEE", "HSDR")));
+        scoreboard.setExitFlag("$EEEE", true);
+        scoreboard.setExitFlag("$HSDR", false);
+        assertTrue(scoreboard.getUnverifiedLastHops().isEmpty());
+    }
+
+    private static final class RecommendingSettings extends DefaultSettings {
+        private final boolean strictNodes;
+
+        RecommendingSettings(boolean strictNodes) {
+            this.strictNodes = strictNodes;
+        }
+
+        @Override
+        public boolean hasRelayRecommendations() {
+            return true;
+        }
+
+        @Override
+        public boolean hasStrictNodes() {
+            return strictNodes;
+        }
+
+        @Override
+        public String getExcludeNodes() {
+            return "{us}";
+        }
+    }
+
+    private OnionProxyContext context(TorSettings settings) {
+        return new TestOnionProxyContext(TorConfig.createDefault(sampleFile), settings);
+    }
 }